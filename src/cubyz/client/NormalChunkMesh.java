@@ -237,6 +237,11 @@ public class NormalChunkMesh extends ChunkMesh {
 				}
 			}
 			if(!needsUpdate) {
+				if(chunk != null && chunk.getVisibles().size == 0 && vaoId == -1 && transparentVaoId == -1) {
+					// There is nothing to render, which is common for uniform chunks. No need to go through the mesh queue.
+					generated = true;
+					return;
+				}
 				needsUpdate = true;
 				Meshes.queueMesh(this);
 			}
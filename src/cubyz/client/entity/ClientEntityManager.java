@@ -4,7 +4,7 @@ import cubyz.Constants;
 import cubyz.api.CubyzRegistries;
 import cubyz.utils.datastructures.SimpleList;
 import cubyz.utils.interpolation.TimeDifference;
-import cubyz.utils.math.Bits;
+import cubyz.world.entity.EntitySnapshot;
 import pixelguys.json.JsonObject;
 
 public final class ClientEntityManager {
@@ -50,30 +50,26 @@ public final class ClientEntityManager {
 		timeDifference.reset();
 	}
 
-	public static void serverUpdate(short time, byte[] data, int offset, int length) {
+	public static void serverUpdate(short time, EntitySnapshot.Group snapshot) {
 		timeDifference.addDataPoint(time);
-		int num = length/(4+24+12+24);
-		for(int i = 0; i < num; i++) {
-			int id = Bits.getInt(data, offset);
-			offset += 4;
+		ClientEntity[] entities = ClientEntityManager.entities.toArray();
+		for(int i = 0; i < snapshot.size; i++) {
 			double[] position = new double[]{
-				Bits.getDouble(data, offset),
-				Bits.getDouble(data, offset + 8),
-				Bits.getDouble(data, offset + 16),
-				Bits.getFloat(data, offset + 24),
-				Bits.getFloat(data, offset + 28),
-				Bits.getFloat(data, offset + 32),
+				snapshot.getPosition(i, 0),
+				snapshot.getPosition(i, 1),
+				snapshot.getPosition(i, 2),
+				snapshot.getRotation(i, 0),
+				snapshot.getRotation(i, 1),
+				snapshot.getRotation(i, 2),
 			};
-			offset += 36;
 			double[] velocity = new double[]{
-				Bits.getDouble(data, offset),
-				Bits.getDouble(data, offset + 8),
-				Bits.getDouble(data, offset + 16),
+				snapshot.getVelocity(i, 0),
+				snapshot.getVelocity(i, 1),
+				snapshot.getVelocity(i, 2),
 				0, 0, 0,
 			};
-			offset += 24;
-			for(ClientEntity ent : entities.toArray()) {
-				if(ent.id == id) {
+			for(ClientEntity ent : entities) {
+				if(ent.id == snapshot.ids[i]) {
 					ent.updatePosition(position, velocity, time);
 				}
 			}
@@ -3,11 +3,13 @@ package cubyz.client.entity;
 import cubyz.Constants;
 import cubyz.utils.interpolation.GenericInterpolation;
 import cubyz.utils.interpolation.TimeDifference;
-import cubyz.utils.math.Bits;
 import cubyz.world.World;
+import cubyz.world.entity.EntitySnapshot;
 import cubyz.world.entity.ItemEntityManager;
 import cubyz.world.items.ItemStack;
 
+import java.util.Arrays;
+
 public class InterpolatedItemEntityManager extends ItemEntityManager {
 	private final GenericInterpolation interpolation = new GenericInterpolation(super.posxyz, super.velxyz);
 	private short lastTime = (short)System.currentTimeMillis();
@@ -17,27 +19,17 @@ public class InterpolatedItemEntityManager extends ItemEntityManager {
 		super(world);
 	}
 
-	public void readPosition(byte[] data, int offset, int length, short time) {
-		assert length%(6*8 + 2) == 0 : "length must be a multiple of 6*8 + 2";
+	public void readPosition(EntitySnapshot.Group snapshot, short time) {
 		timeDifference.addDataPoint(time);
-		double[] pos = new double[3*MAX_CAPACITY];
+		// Items outside of the area of interest of this client are not in the snapshot, they just stay where they were.
+		double[] pos = Arrays.copyOf(interpolation.lastPosition[interpolation.frontIndex], 3*MAX_CAPACITY);
 		double[] vel = new double[3*MAX_CAPACITY];
-		length += offset;
-		while(offset < length) {
-			int i = Bits.getShort(data, offset) & 0xffff;
-			offset += 2;
-			pos[3*i] = Bits.getDouble(data, offset);
-			offset += 8;
-			pos[3*i+1] = Bits.getDouble(data, offset);
-			offset += 8;
-			pos[3*i+2] = Bits.getDouble(data, offset);
-			offset += 8;
-			vel[3*i] = Bits.getDouble(data, offset);
-			offset += 8;
-			vel[3*i+1] = Bits.getDouble(data, offset);
-			offset += 8;
-			vel[3*i+2] = Bits.getDouble(data, offset);
-			offset += 8;
+		for(int j = 0; j < snapshot.size; j++) {
+			int i = snapshot.ids[j];
+			for(int k = 0; k < 3; k++) {
+				pos[3*i + k] = snapshot.getPosition(j, k);
+				vel[3*i + k] = snapshot.getVelocity(j, k);
+			}
 		}
 		interpolation.updatePosition(pos, vel, time);
 	}
@@ -0,0 +1,45 @@
+package cubyz.command;
+
+import cubyz.api.Resource;
+import cubyz.multiplayer.server.Server;
+import cubyz.world.terrain.GenerationStage;
+
+/**
+ * Shows how much time the terrain generation spends in each stage and how well the chunk prefetching works.
+ */
+
+public class GenerationCommand extends CommandBase {
+
+	public GenerationCommand() {
+		name = "/generation";
+		expectedArgs = new String[1];
+		expectedArgs[0] = "<reset>";
+	}
+
+	@Override
+	public Resource getRegistryID() {
+		return new Resource("cubyz", "generation");
+	}
+
+	@Override
+	public void commandExecute(CommandSource source, String[] args) {
+		if (args.length > 1) {
+			if (!args[1].equals("reset")) {
+				source.feedback("Usage: /generation [reset]");
+				return;
+			}
+			GenerationStage.resetTimings();
+			source.feedback("Reset the generation timings.");
+			return;
+		}
+		for(String line : GenerationStage.getStatus()) {
+			source.feedback(line);
+		}
+		if (Server.world != null) {
+			for(String line : Server.world.chunkManager.prefetcher.getStatus()) {
+				source.feedback(line);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,38 @@
+package cubyz.command;
+
+import cubyz.api.Resource;
+import cubyz.utils.MemoryGovernor;
+
+/**
+ * Shows how much memory the server caches use and allows changing their budget.
+ */
+
+public class MemoryCommand extends CommandBase {
+
+	public MemoryCommand() {
+		name = "/memory";
+		expectedArgs = new String[1];
+		expectedArgs[0] = "<heap fraction: 0.05 - 0.9>";
+	}
+
+	@Override
+	public Resource getRegistryID() {
+		return new Resource("cubyz", "memory");
+	}
+
+	@Override
+	public void commandExecute(CommandSource source, String[] args) {
+		if (args.length > 1) {
+			try {
+				MemoryGovernor.setHeapFraction(Float.parseFloat(args[1]));
+			} catch (NumberFormatException e) {
+				source.feedback(args[1] + " is not a number between 0.05 and 0.9");
+				return;
+			}
+		}
+		for(String line : MemoryGovernor.getStatus()) {
+			source.feedback(line);
+		}
+	}
+
+}
@@ -14,7 +14,9 @@ import cubyz.rendering.ShaderProgram;
 import cubyz.rendering.Window;
 import cubyz.rendering.text.Fonts;
 import cubyz.utils.Logger;
+import cubyz.utils.MemoryGovernor;
 import cubyz.utils.ThreadPool;
+import cubyz.utils.WorkerPool;
 import cubyz.utils.Utils;
 import cubyz.world.entity.Player;
 
@@ -88,7 +90,8 @@ public class DebugOverlay extends MenuGUI {
 				Graphics.drawText(0*GUI_SCALE, 70*GUI_SCALE, "Queue Size: " + ThreadPool.getQueueSize());
 				Graphics.drawText(0 * GUI_SCALE, 80 * GUI_SCALE, "Biome: " + (Cubyz.world.playerBiome == null ? "null" : Cubyz.world.playerBiome.getRegistryID()));
 
-				Graphics.drawText(0*GUI_SCALE, 100*GUI_SCALE, "Packet loss: "+Math.round(10000*UDPConnection.packets_resent/(float)UDPConnection.packets_sent)/100.0f+"% ("+UDPConnection.packets_resent+"/"+ UDPConnection.packets_sent +")");
+				UDPConnection connection = Cubyz.world.serverConnection;
+				Graphics.drawText(0*GUI_SCALE, 100*GUI_SCALE, "Packet loss: "+Math.round(10000*connection.packetsResent/(float)connection.packetsSent)/100.0f+"% ("+connection.packetsResent+"/"+ connection.packetsSent +"), RTT: " + Math.round(connection.getRoundTripTime()) + " ms, window: " + Math.round(connection.getCongestionWindow()) + " packets");
 				Graphics.drawText(0*GUI_SCALE, 110*GUI_SCALE, "Important Protocols total: " + (Protocols.bytesReceived[Protocols.IMPORTANT_PACKET & 0xff] >> 10) + "kiB in " + Protocols.packetsReceived[Protocols.IMPORTANT_PACKET & 0xff] + " packets");
 				Graphics.drawText(0*GUI_SCALE, 120*GUI_SCALE, "Keep-alive: " + (Protocols.bytesReceived[Protocols.KEEP_ALIVE] >> 10) + "kiB in " + Protocols.packetsReceived[Protocols.KEEP_ALIVE] + " packets");
 				int yText = 130;
@@ -98,6 +101,14 @@ public class DebugOverlay extends MenuGUI {
 						yText += 10;
 					}
 				}
+				for(WorkerPool pool : ThreadPool.POOLS) {
+					Graphics.drawText(0*GUI_SCALE, yText*GUI_SCALE, "Pool " + pool.name + ": " + pool.getQueueSize() + " queued, " + Math.round(pool.getThroughput()) + " tasks/s, p99 wait " + pool.getWaitTimeP99() + " ms" + (pool.getRejectedTasks() != 0 ? ", " + pool.getRejectedTasks() + " rejected" : ""));
+					yText += 10;
+				}
+				for(String line : MemoryGovernor.getStatus()) {
+					Graphics.drawText(0*GUI_SCALE, yText*GUI_SCALE, line);
+					yText += 10;
+				}
 			}
 			
 			int h = Window.getHeight();
@@ -48,6 +48,8 @@ public class BaseMod implements Mod {
 		CubyzRegistries.COMMAND_REGISTRY.register(new GameTimeCycleCommand());
 		CubyzRegistries.COMMAND_REGISTRY.register(new GiveCommand());
 		CubyzRegistries.COMMAND_REGISTRY.register(new InviteCommand());
+		CubyzRegistries.COMMAND_REGISTRY.register(new MemoryCommand());
+		CubyzRegistries.COMMAND_REGISTRY.register(new GenerationCommand());
 		CubyzRegistries.COMMAND_REGISTRY.register(new ClearCommand());
 		CubyzRegistries.COMMAND_REGISTRY.register(new CureCommand());
 		CubyzRegistries.COMMAND_REGISTRY.register(new TimeCommand());
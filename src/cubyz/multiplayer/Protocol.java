@@ -2,10 +2,18 @@ package cubyz.multiplayer;
 
 public abstract class Protocol {
 	public final byte id;
+	/** The reliable stream that is used for the important messages of this protocol. */
+	public final byte stream;
 
 	public Protocol(byte id) {
+		this(id, Protocols.CONTROL_STREAM);
+	}
+
+	public Protocol(byte id, byte stream) {
 		assert Protocols.list[id & 0xff] == null && id != Protocols.IMPORTANT_PACKET && id != Protocols.KEEP_ALIVE : "Protocols have duplicate id : " + this.getClass() + " " + Protocols.list[id & 0xff].getClass();
+		assert stream >= 0 && stream < Protocols.STREAMS : "Invalid stream " + stream + " for " + this.getClass();
 		this.id = id;
+		this.stream = stream;
 		Protocols.list[id & 0xff] = this;
 	}
 
@@ -9,6 +9,11 @@ public final class Protocols {
 
 	public static final byte KEEP_ALIVE = 0;
 	public static final byte IMPORTANT_PACKET = (byte)0xff;
+	// The reliable streams, ordered by priority. A lost packet only delays the messages of its own stream:
+	public static final byte CONTROL_STREAM = 0;
+	public static final byte CHAT_STREAM = 1;
+	public static final byte BULK_STREAM = 2;
+	public static final int STREAMS = 3;
 	public static final HandshakeProtocol HANDSHAKE = new HandshakeProtocol();
 	public static final ChunkRequestProtocol CHUNK_REQUEST = new ChunkRequestProtocol();
 	public static final ChunkTransmissionProtocol CHUNK_TRANSMISSION = new ChunkTransmissionProtocol();
@@ -0,0 +1,58 @@
+package cubyz.multiplayer;
+
+/**
+ * Limits the rate at which bytes are sent.<br>
+ * The bucket fills up with the given rate until it reaches its capacity. Sending takes bytes out of it, which may leave it in debt,
+ * so a datagram is never too big for the bucket.
+ */
+final class TokenBucket {
+	/** Bytes per second. */
+	private double rate = Double.POSITIVE_INFINITY;
+	private double capacity = Double.POSITIVE_INFINITY;
+	private double tokens = 0;
+	private long lastTime = System.nanoTime();
+
+	/**
+	 * @param rate in bytes per second. Infinite disables the limit.
+	 * @param capacity the maximum burst in bytes.
+	 */
+	synchronized void setRate(double rate, double capacity) {
+		refill(System.nanoTime());
+		this.rate = rate;
+		this.capacity = capacity;
+		tokens = Math.min(tokens, capacity);
+	}
+
+	private void refill(long time) {
+		if(rate == Double.POSITIVE_INFINITY) {
+			tokens = capacity; // Infinity*0 would be NaN, which never compares as empty again.
+		} else {
+			tokens = Math.min(capacity, tokens + rate*(time - lastTime)/1e9);
+		}
+		lastTime = time;
+	}
+
+	/**
+	 * @param bytes
+	 * @param time from {@link System#nanoTime()}
+	 * @return true if the bytes may be sent now. In that case they are taken from the bucket.
+	 */
+	synchronized boolean tryConsume(int bytes, long time) {
+		if(rate == Double.POSITIVE_INFINITY) return true;
+		refill(time);
+		if(tokens <= 0) return false;
+		tokens -= bytes;
+		return true;
+	}
+
+	/**
+	 * @param time from {@link System#nanoTime()}
+	 * @return the time in ns until something may be sent again.
+	 */
+	synchronized long getDelay(long time) {
+		if(rate == Double.POSITIVE_INFINITY) return 0;
+		refill(time);
+		if(tokens > 0) return 0;
+		return (long)Math.ceil(-tokens/rate*1e9) + 1;
+	}
+}
@@ -5,38 +5,85 @@ import cubyz.client.Cubyz;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
 import cubyz.utils.Logger;
-import cubyz.utils.datastructures.IntSimpleList;
-import cubyz.utils.datastructures.SimpleList;
 import cubyz.utils.math.Bits;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.function.BooleanSupplier;
 
 public class UDPConnection {
 	private static final int MAX_PACKET_SIZE = 65507; // max udp packet size
-	private static final int IMPORTANT_HEADER_SIZE = 5;
+	/** 0xff, the packet id, the stream and the sequence number of the packet in the stream. */
+	private static final int IMPORTANT_HEADER_SIZE = 10;
 	private static final int MAX_IMPORTANT_PACKET_SIZE = 1500 - 20 - 8; // Ethernet MTU minus IP header minus udp header
-
+	/** The maximum number of unconfirmed important packets. Must be a power of 2. */
+	private static final int MAX_IN_FLIGHT = 8192;
+	private static final int IN_FLIGHT_MASK = MAX_IN_FLIGHT - 1;
+	/** The maximum number of packets after the cumulative ack that are confirmed in one ack. */
+	private static final int MAX_SACK_BITS = 4096;
+	/** An ack is sent after this many important packets were received, without waiting for the next keep-alive. The congestion window only grows with the acks. */
+	private static final int ACK_FREQUENCY = 2;
+	/** The remaining packets are acked at most this long after the first of them was received, in ns. */
+	private static final long MAX_ACK_DELAY = 10_000_000L;
+	/** A packet counts as lost, when a packet that was sent after it and at least this many ids later was confirmed. */
+	private static final int REORDERING_THRESHOLD = 3;
+	// Retransmission timeouts in ns:
+	private static final long INITIAL_RTO = 300_000_000L;
+	private static final long MIN_RTO = 150_000_000L; // Acks can be delayed by up to one keep-alive interval.
+	private static final long MAX_RTO = 5_000_000_000L;
+	private static final long CLOCK_GRANULARITY = 10_000_000L;
+	// Congestion window in packets:
+	private static final float INITIAL_WINDOW = 16;
+	private static final float MIN_WINDOW = 4;
+	/** The pacer sends a bit faster than the congestion window alone would, so the window can still grow. */
+	private static final float PACING_GAIN = 1.25f;
+	/** The pacer allows bursts of this length in ns. */
+	private static final long PACING_BURST_TIME = 5_000_000L;
+
+	/** Totals of all connections. */
 	public static int packets_sent = 0;
 	public static int packets_resent = 0;
+	public int packetsSent = 0;
+	public int packetsResent = 0;
+	/** Messages that were dropped before sending, because they were no longer needed. */
+	public int messagesDropped = 0;
 
 	private final UDPConnectionManager manager;
 
 	final InetAddress remoteAddress;
 	int remotePort;
+	volatile InetSocketAddress remoteSocketAddress;
 	boolean bruteforcingPort;
 	private int bruteForcedPortRange = 0;
 
-	private final byte[] streamBuffer = new byte[MAX_IMPORTANT_PACKET_SIZE];
-	private int streamPosition = IMPORTANT_HEADER_SIZE;
-	private int messageID = 0;
-	private final SimpleList<UnconfirmedPackage> unconfirmedPackets = new SimpleList<>(new UnconfirmedPackage[1024]);
-	private final IntSimpleList[] receivedPackets = new IntSimpleList[]{new IntSimpleList(), new IntSimpleList(), new IntSimpleList()}; // Resend the confirmation 3 times, to make sure the server doesn't need to resend stuff.
-	private final byte[][] lastReceivedPackets = new byte[65536][];
-	private int lastIndex = 0;
+	/** Ordered by priority. */
+	private final Stream[] streams = new Stream[Protocols.STREAMS];
 
-	int lastIncompletePacket = 0;
+	// The sent packets that weren't confirmed yet, indexed by id & IN_FLIGHT_MASK. Guarded by inFlightPackets:
+	private final byte[][] inFlightPackets = new byte[MAX_IN_FLIGHT][];
+	private final long[] inFlightSendTimes = new long[MAX_IN_FLIGHT];
+	private final boolean[] inFlightResent = new boolean[MAX_IN_FLIGHT];
+	/** The oldest unconfirmed id. */
+	private int sendBase = 0;
+	/** The next id. */
+	private int messageID = 0;
+	private long smoothedRTT = 0, rttVariance = 0, retransmissionTimeout = INITIAL_RTO;
+	private int packetsInFlight = 0;
+	private float congestionWindow = INITIAL_WINDOW, slowStartThreshold = MAX_IN_FLIGHT;
+	/** The window is only reduced once per loss event. The loss event ends when everything that was sent before it is confirmed. */
+	private int recoveryPoint = 0;
+	/** In bytes per second. 0 means unlimited. */
+	private int bandwidthLimit = 0;
+
+	/** The received packet ids after lastIncompletePacket, indexed by id & IN_FLIGHT_MASK. Guards everything that is received. */
+	private final boolean[] receivedPackets = new boolean[MAX_IN_FLIGHT];
+	private int highestReceivedPacket = -1;
+	private int packetsSinceAck = 0;
+	private long firstUnackedTime = 0;
+	/** The oldest packet id that wasn't received. */
+	private int lastIncompletePacket = 0;
 
 
 	int lastKeepAliveSent = 0, lastKeepAliveReceived = 0, otherKeepAliveReceived = 0;
@@ -46,6 +93,15 @@ public class UDPConnection {
 
 	public long lastConnection = System.currentTimeMillis();
 
+	// Guarded by the send lock of the manager:
+	final ArrayDeque<UDPConnectionManager.Datagram> sendQueue = new ArrayDeque<>();
+	/** The important packets, they are sent at the rate of the pacer. */
+	final ArrayDeque<UDPConnectionManager.Datagram> pacedSendQueue = new ArrayDeque<>();
+	/** The important packets of the control stream, they are sent at the rate of the pacer before the other paced packets. */
+	final ArrayDeque<UDPConnectionManager.Datagram> urgentSendQueue = new ArrayDeque<>();
+	boolean isReadyToSend = false;
+	final TokenBucket pacer = new TokenBucket();
+
 	public UDPConnection(UDPConnectionManager manager, String ipPort) {
 		if(ipPort.contains("?")) {
 			bruteforcingPort = true;
@@ -63,7 +119,9 @@ public class UDPConnection {
 
 		Logger.debug(ipOnly+":"+remotePort);
 		this.manager = manager;
-		manager.addConnection(this);
+		for(byte i = 0; i < streams.length; i++) {
+			streams[i] = new Stream(i);
+		}
 
 		//connect
 		InetAddress remoteAddress = null;
@@ -73,35 +131,196 @@ public class UDPConnection {
 			Logger.error(e);
 		}
 		this.remoteAddress = remoteAddress;
+		remoteSocketAddress = new InetSocketAddress(remoteAddress, remotePort);
+		manager.addConnection(this);
+	}
+
+	void setRemotePort(int port) {
+		remotePort = port;
+		remoteSocketAddress = new InetSocketAddress(remoteAddress, port);
 	}
 
 	private void flush() {
-		synchronized(streamBuffer) {
-			if(streamPosition == IMPORTANT_HEADER_SIZE) return; // Don't send empty packets.
-			// Fill the header:
-			streamBuffer[0] = (byte)0xff;
+		for(Stream stream : streams) {
+			stream.flush();
+		}
+	}
+
+	/**
+	 * Sends the waiting packets that fit into the in-flight window, the streams with a higher priority first. Needs the lock of inFlightPackets.
+	 */
+	private void sendWaitingPackets() {
+		while(hasWindowSpace()) {
+			byte[] packet = null;
+			for(Stream stream : streams) {
+				packet = stream.waitingPackets.poll();
+				if(packet != null) {
+					stream.packetsInFlight++;
+					break;
+				}
+			}
+			if(packet == null) return;
 			int ID = messageID++;
 			if(ID == -1) { // :
 				Logger.crash("Well you managed to stay online for too long. Terabytes of data were sent. That's beyond what Cubyz was designed to handle.");
 				disconnect();
 			}
-			Bits.putInt(streamBuffer, 1, ID);
+			Bits.putInt(packet, 1, ID);
+			int index = ID & IN_FLIGHT_MASK;
+			inFlightPackets[index] = packet;
+			inFlightSendTimes[index] = System.nanoTime();
+			inFlightResent[index] = false;
+			packetsInFlight++;
+			packetsSent++;
+			packets_sent++;
+			manager.sendPaced(this, packet, isUrgent(packet));
+		}
+	}
+
+	/**
+	 * The control stream needs a low latency, so it doesn't wait behind the bulk data in the pacer.
+	 * It is still paced, since it also carries big packets like the handshake assets.
+	 */
+	private static boolean isUrgent(byte[] packet) {
+		return packet[5] != Protocols.CONTROL_STREAM;
+	}
+
+	/**
+	 * Needs the lock of inFlightPackets.
+	 */
+	private boolean hasWindowSpace() {
+		return messageID - sendBase < MAX_IN_FLIGHT && packetsInFlight < congestionWindow;
+	}
+
+	/**
+	 * Needs the lock of inFlightPackets.
+	 */
+	private void resend(int id, long time) {
+		int index = id & IN_FLIGHT_MASK;
+		inFlightSendTimes[index] = time;
+		inFlightResent[index] = true;
+		packetsSent++;
+		packetsResent++;
+		packets_sent++;
+		packets_resent++;
+		manager.sendPaced(this, inFlightPackets[index], isUrgent(inFlightPackets[index]));
+	}
 
-			DatagramPacket packet = new DatagramPacket(Arrays.copyOf(streamBuffer, streamPosition), streamPosition, remoteAddress, remotePort);
-			synchronized(unconfirmedPackets) {
-				unconfirmedPackets.add(new UnconfirmedPackage(packet, lastKeepAliveSent, ID));
+	/**
+	 * Removes the packet from the in-flight window. Needs the lock of inFlightPackets.
+	 * @return true if the packet was in flight.
+	 */
+	private boolean confirm(int id, long time) {
+		if(id - sendBase < 0 || id - messageID >= 0) return false;
+		int index = id & IN_FLIGHT_MASK;
+		if(inFlightPackets[index] == null) return false;
+		streams[inFlightPackets[index][5]].packetsInFlight--;
+		inFlightPackets[index] = null;
+		packetsInFlight--;
+		// Additive increase, but only if the window is actually used, otherwise it would grow without any feedback from the network:
+		if(2*(packetsInFlight + 1) >= congestionWindow) {
+			if(congestionWindow < slowStartThreshold) {
+				congestionWindow++;
+			} else {
+				congestionWindow += 1/congestionWindow;
 			}
-			packets_sent++;
-			manager.send(packet);
+		}
+		if(!inFlightResent[index]) { // Karn's algorithm: The ack of a resent packet could belong to either transmission.
+			updateRoundTripTime(time - inFlightSendTimes[index]);
+		}
+		return true;
+	}
+
+	/**
+	 * Jacobson/Karels estimation of the retransmission timeout.
+	 */
+	private void updateRoundTripTime(long sample) {
+		if(smoothedRTT == 0) {
+			smoothedRTT = sample;
+			rttVariance = sample/2;
+		} else {
+			rttVariance += (Math.abs(smoothedRTT - sample) - rttVariance)/4;
+			smoothedRTT += (sample - smoothedRTT)/8;
+		}
+		retransmissionTimeout = Math.max(MIN_RTO, Math.min(MAX_RTO, smoothedRTT + Math.max(CLOCK_GRANULARITY, 4*rttVariance)));
+	}
+
+	/**
+	 * Multiplicative decrease, at most once per loss event. Needs the lock of inFlightPackets.
+	 * @param timeout after a timeout the window starts again from the minimum.
+	 */
+	private void onLoss(boolean timeout) {
+		if(recoveryPoint - sendBase > 0 && !timeout) return; // Still the same loss event.
+		slowStartThreshold = Math.max(MIN_WINDOW, congestionWindow/2);
+		congestionWindow = timeout ? MIN_WINDOW : slowStartThreshold;
+		recoveryPoint = messageID;
+	}
+
+	/**
+	 * Limits the send rate to the congestion window per round trip and to the bandwidth limit. Needs the lock of inFlightPackets.
+	 */
+	private void updatePacingRate() {
+		// Without a limit the window could grow far beyond what is in flight, so it wouldn't react to losses in time:
+		if(bandwidthLimit != 0 && smoothedRTT != 0) {
+			float limitWindow = 2*bandwidthLimit*(smoothedRTT/1e9f)/MAX_IMPORTANT_PACKET_SIZE;
+			congestionWindow = Math.min(congestionWindow, Math.max(MIN_WINDOW, limitWindow));
+		}
+		congestionWindow = Math.min(congestionWindow, MAX_IN_FLIGHT);
+		double rate = Double.POSITIVE_INFINITY;
+		if(smoothedRTT != 0) {
+			rate = PACING_GAIN*congestionWindow*MAX_IMPORTANT_PACKET_SIZE/(smoothedRTT/1e9);
+		}
+		if(bandwidthLimit != 0) {
+			rate = Math.min(rate, bandwidthLimit);
+		}
+		pacer.setRate(rate, Math.max(MIN_WINDOW*MAX_IMPORTANT_PACKET_SIZE, rate*PACING_BURST_TIME/1e9));
+	}
+
+	/**
+	 * Limits the bandwidth that is used by the important packets of this connection.
+	 * @param bytesPerSecond 0 means unlimited.
+	 */
+	public void setBandwidthLimit(int bytesPerSecond) {
+		synchronized(inFlightPackets) {
+			bandwidthLimit = bytesPerSecond;
+			updatePacingRate();
+		}
+	}
 
-			streamPosition = IMPORTANT_HEADER_SIZE;
+	/**
+	 * @return the congestion window in packets.
+	 */
+	public float getCongestionWindow() {
+		synchronized(inFlightPackets) {
+			return congestionWindow;
+		}
+	}
+
+	/**
+	 * Needs the lock of inFlightPackets.
+	 */
+	private void resendTimedOutPackets(long time) {
+		boolean timedOut = false;
+		for(int id = sendBase; id - messageID < 0; id++) {
+			int index = id & IN_FLIGHT_MASK;
+			if(inFlightPackets[index] != null && time - inFlightSendTimes[index] > retransmissionTimeout) {
+				resend(id, time);
+				timedOut = true;
+			}
+		}
+		if(timedOut) {
+			retransmissionTimeout = Math.min(MAX_RTO, 2*retransmissionTimeout); // Back off until the next valid sample.
+			onLoss(true);
+			updatePacingRate();
 		}
 	}
 
-	private void writeByteToStream(byte data) {
-		streamBuffer[streamPosition++] = data;
-		if(streamPosition == streamBuffer.length) {
-			flush();
+	/**
+	 * @return the smoothed round trip time in ms, including the delay of the acks.
+	 */
+	public float getRoundTripTime() {
+		synchronized(inFlightPackets) {
+			return smoothedRTT/1e6f;
 		}
 	}
 
@@ -109,30 +328,65 @@ public class UDPConnection {
 		sendImportant(source, data, 0, data.length);
 	}
 
+	public void sendImportant(Protocol source, byte[] data, BooleanSupplier isStillNeeded) {
+		sendImportant(source, data, 0, data.length, isStillNeeded);
+	}
+
 	public void sendImportant(Protocol source, byte[] data, int offset, int length) {
+		sendImportant(source, data, offset, length, null);
+	}
+
+	/**
+	 * Sends the data reliably on the stream of the protocol. If earlier packets of that stream are still waiting for the congestion window, it waits in a queue.
+	 * @param source
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param isStillNeeded gets checked before the data leaves the queue, if it returns false, the data is dropped. May be null.
+	 */
+	public void sendImportant(Protocol source, byte[] data, int offset, int length, BooleanSupplier isStillNeeded) {
+		sendImportant(source, source.stream, data, offset, length, isStillNeeded);
+	}
+
+	/**
+	 * Like {@link #sendImportant(Protocol, byte[], int, int, BooleanSupplier)}, but on a different stream than the one of the protocol.
+	 * Can be used to keep a message in order with the messages of another stream.
+	 */
+	public void sendImportant(Protocol source, byte streamID, byte[] data, int offset, int length, BooleanSupplier isStillNeeded) {
 		if(disconnected) return;
-		synchronized(streamBuffer) {
-			writeByteToStream(source.id);
-			int processedLength = length;
-			while(processedLength > 0x7f) {
-				writeByteToStream((byte)((processedLength & 0x7f) | 0x80));
-				processedLength >>>= 7;
+		Stream stream = streams[streamID];
+		synchronized(stream) {
+			if(!stream.queuedMessages.isEmpty() || !stream.hasSpace()) {
+				stream.queuedMessages.add(new QueuedMessage(source.id, Arrays.copyOfRange(data, offset, offset + length), isStillNeeded));
+				return;
 			}
-			writeByteToStream((byte)processedLength);
+			stream.write(source.id, data, offset, length);
+		}
+	}
 
-			while(length != 0) {
-				int copyableSize = Math.min(length, streamBuffer.length - streamPosition);
-				System.arraycopy(data, offset, streamBuffer, streamPosition, copyableSize);
-				streamPosition += copyableSize;
-				length -= copyableSize;
-				offset += copyableSize;
-				if(streamPosition == streamBuffer.length) {
-					flush();
-				}
+	/**
+	 * @param streamID
+	 * @return true if some messages of the stream might not have reached the other side yet.
+	 */
+	public boolean hasUnconfirmedData(byte streamID) {
+		Stream stream = streams[streamID];
+		synchronized(stream) {
+			if(!stream.queuedMessages.isEmpty() || stream.position != IMPORTANT_HEADER_SIZE) return true;
+			synchronized(inFlightPackets) {
+				return !stream.waitingPackets.isEmpty() || stream.packetsInFlight != 0;
 			}
 		}
 	}
 
+	/**
+	 * Moves the queued messages into their streams, as far as the congestion window allows.
+	 */
+	private void sendQueuedMessages() {
+		for(Stream stream : streams) {
+			stream.sendQueuedMessages();
+		}
+	}
+
 	public void sendUnimportant(Protocol source, byte[] data) {
 		sendUnimportant(source, data, 0, data.length);
 	}
@@ -140,100 +394,96 @@ public class UDPConnection {
 	public void sendUnimportant(Protocol source, byte[] data, int offset, int length) {
 		if(disconnected) return;
 		assert(length + 1 < MAX_PACKET_SIZE) : "Package is too big. Please split it into smaller packages.";
-		byte[] fullData = new byte[length + 1];
-		fullData[0] = source.id;
-		System.arraycopy(data, offset, fullData, 1, length);
-		manager.send(new DatagramPacket(fullData, fullData.length, remoteAddress, remotePort));
+		manager.send(this, source.id & 0xff, data, offset, length);
 	}
 
 	private void receiveKeepAlive(byte[] data, int offset, int length) {
 		otherKeepAliveReceived = Bits.getInt(data, offset);
 		lastKeepAliveReceived = Bits.getInt(data, offset + 4);
-		for(int i = offset + 8; i + 8 <= offset + length; i += 8) {
-			int start = Bits.getInt(data, i);
-			int len = Bits.getInt(data, i + 4);
-			synchronized(unconfirmedPackets) {
-				for(int j = 0; j < unconfirmedPackets.size; j++) {
-					int diff = unconfirmedPackets.array[j].id - start;
-					if(diff >= 0 && diff < len) {
-						unconfirmedPackets.remove(j);
-						j--;
+		if(length < 12) return;
+		int cumulativeAck = Bits.getInt(data, offset + 8);
+		long time = System.nanoTime();
+		synchronized(inFlightPackets) {
+			int highestConfirmed = cumulativeAck - 1;
+			boolean lost = false;
+			for(int id = sendBase; id - cumulativeAck < 0 && id - messageID < 0; id++) {
+				confirm(id, time);
+			}
+			int bits = Math.min(MAX_SACK_BITS, (length - 12)*8);
+			for(int i = 0; i < bits; i++) {
+				if((data[offset + 12 + (i >> 3)] & 1 << (i & 7)) != 0) {
+					confirm(cumulativeAck + i, time);
+					highestConfirmed = cumulativeAck + i;
+				}
+			}
+			while(sendBase - messageID < 0 && inFlightPackets[sendBase & IN_FLIGHT_MASK] == null) {
+				sendBase++;
+			}
+			// Fast retransmit of the gaps before the confirmed packets:
+			if(highestConfirmed - sendBase >= REORDERING_THRESHOLD && highestConfirmed - messageID < 0) {
+				long confirmedSendTime = inFlightSendTimes[highestConfirmed & IN_FLIGHT_MASK];
+				for(int id = sendBase; highestConfirmed - id >= REORDERING_THRESHOLD; id++) {
+					int index = id & IN_FLIGHT_MASK;
+					// Packets that were resent after the confirmed packet was sent get another chance:
+					if(inFlightPackets[index] != null && inFlightSendTimes[index] - confirmedSendTime <= 0) {
+						resend(id, time);
+						lost = true;
 					}
 				}
 			}
+			if(lost) {
+				onLoss(false);
+			}
+			updatePacingRate();
+			sendWaitingPackets();
 		}
+		sendQueuedMessages();
 	}
 
-	void sendKeepAlive() {
+	/**
+	 * Sends the cumulative ack followed by a bitmap of the received packets after it.
+	 * @param isKeepAlive
+	 */
+	private void sendAck(boolean isKeepAlive) {
 		byte[] data;
 		synchronized(receivedPackets) {
-			IntSimpleList runLengthEncodingStarts = new IntSimpleList();
-			IntSimpleList runLengthEncodingLengths = new IntSimpleList();
-			for(var packets : receivedPackets) {
-				outer:
-				for(int i = 0; i < packets.size; i++) {
-					int value = packets.array[i];
-					int leftRegion = -1;
-					int rightRegion = -1;
-					for(int reg = 0; reg < runLengthEncodingStarts.size; reg++) {
-						int diff = value - runLengthEncodingStarts.array[reg];
-						if(diff >= 0 && diff < runLengthEncodingLengths.array[reg]) {
-							continue outer; // Value is already in the list.
-						}
-						if(diff == runLengthEncodingLengths.array[reg]) {
-							leftRegion = reg;
-						}
-						if(diff == -1) {
-							rightRegion = reg;
-						}
-					}
-					if(leftRegion == -1) {
-						if(rightRegion == -1) {
-							runLengthEncodingStarts.add(value);
-							runLengthEncodingLengths.add(1);
-						} else {
-							runLengthEncodingStarts.array[rightRegion]--;
-							runLengthEncodingLengths.array[rightRegion]++;
-						}
-					} else if(rightRegion == -1) {
-						runLengthEncodingLengths.array[leftRegion]++;
-					} else {
-						// Needs to combine the regions:
-						runLengthEncodingLengths.array[leftRegion] += runLengthEncodingLengths.array[rightRegion] + 1;
-						runLengthEncodingStarts.removeIndex(rightRegion);
-						runLengthEncodingLengths.removeIndex(rightRegion);
-					}
-				}
-			}
-			IntSimpleList putBackToFront = receivedPackets[receivedPackets.length - 1];
-			System.arraycopy(receivedPackets, 0, receivedPackets, 1, receivedPackets.length - 1);
-			receivedPackets[0] = putBackToFront;
-			receivedPackets[0].clear();
-			data = new byte[runLengthEncodingStarts.size*8 + 9];
+			packetsSinceAck = 0;
+			int bits = Math.max(0, Math.min(MAX_SACK_BITS, highestReceivedPacket - lastIncompletePacket + 1));
+			data = new byte[13 + (bits + 7)/8];
 			data[0] = Protocols.KEEP_ALIVE;
-			Bits.putInt(data, 1, lastKeepAliveSent++);
+			Bits.putInt(data, 1, isKeepAlive ? lastKeepAliveSent++ : Math.max(0, lastKeepAliveSent - 1));
 			Bits.putInt(data, 5, otherKeepAliveReceived);
-			int cur = 9;
-			for(int i = 0; i < runLengthEncodingStarts.size; i++) {
-				Bits.putInt(data, cur, runLengthEncodingStarts.array[i]);
-				cur += 4;
-				Bits.putInt(data, cur, runLengthEncodingLengths.array[i]);
-				cur += 4;
-			}
-			assert(cur == data.length);
-		}
-		manager.send(new DatagramPacket(data, data.length, remoteAddress, remotePort));
-		synchronized(unconfirmedPackets) {
-			// Resend packets that didn't receive confirmation within the last 2 keep-alive signals.
-			for(int i = 0; i < unconfirmedPackets.size; i++) {
-				if(lastKeepAliveReceived - unconfirmedPackets.array[i].lastKeepAliveSentBefore >= 2) {
-					packets_sent++;
-					packets_resent++;
-					manager.send(unconfirmedPackets.array[i].packet);
-					unconfirmedPackets.array[i].lastKeepAliveSentBefore = lastKeepAliveSent;
+			Bits.putInt(data, 9, lastIncompletePacket);
+			for(int i = 0; i < bits; i++) {
+				if(receivedPackets[(lastIncompletePacket + i) & IN_FLIGHT_MASK]) {
+					data[13 + (i >> 3)] |= 1 << (i & 7);
 				}
 			}
 		}
+		manager.send(this, -1, data, 0, data.length);
+	}
+
+	/**
+	 * Sends the ack for the remaining packets once it is due.
+	 * @param time
+	 * @return the time in ns until the next ack is due or Long.MAX_VALUE if there is nothing to ack.
+	 */
+	long sendDelayedAck(long time) {
+		synchronized(receivedPackets) {
+			if(packetsSinceAck == 0) return Long.MAX_VALUE;
+			long delay = firstUnackedTime + MAX_ACK_DELAY - time;
+			if(delay > 0) return delay;
+		}
+		sendAck(false);
+		return Long.MAX_VALUE;
+	}
+
+	void sendKeepAlive() {
+		sendAck(true);
+		synchronized(inFlightPackets) {
+			resendTimedOutPackets(System.nanoTime());
+		}
+		sendQueuedMessages();
 		flush();
 		if(bruteforcingPort) { // Brute force through some ports.
 			// This is called every 100 ms, so if I send 10 requests it shouldn't be too bad.
@@ -241,10 +491,10 @@ public class UDPConnection {
 				byte[] fullData = new byte[0];
 				//fullData[0] = Protocols.KEEP_ALIVE.id;
 				if(((remotePort + bruteForcedPortRange) & 65535) != 0) {
-					manager.send(new DatagramPacket(fullData, fullData.length, remoteAddress, (remotePort + bruteForcedPortRange) & 65535));
+					manager.send(new InetSocketAddress(remoteAddress, (remotePort + bruteForcedPortRange) & 65535), fullData, 0, fullData.length);
 				}
 				if(((remotePort - bruteForcedPortRange) & 65535) != 0) {
-					manager.send(new DatagramPacket(fullData, fullData.length, remoteAddress, (remotePort - bruteForcedPortRange) & 65535));
+					manager.send(new InetSocketAddress(remoteAddress, (remotePort - bruteForcedPortRange) & 65535), fullData, 0, fullData.length);
 				}
 				bruteForcedPortRange++;
 			}
@@ -255,67 +505,6 @@ public class UDPConnection {
 		return otherKeepAliveReceived != 0;
 	}
 
-	private void collectPackets() {
-		byte[] data;
-		byte protocol;
-		while(true) {
-			synchronized(lastReceivedPackets) {
-				int id = lastIncompletePacket;
-				if(lastReceivedPackets[id & 65535] == null)
-					return;
-				int newIndex = lastIndex;
-				protocol = lastReceivedPackets[id & 65535][newIndex++];
-				if(Cubyz.world == null && protocol != Protocols.HANDSHAKE.id)
-					return;
-				// Determine the next packet length:
-				int len = 0;
-				int shift = 0;
-				while(true) {
-					if(newIndex == lastReceivedPackets[id & 65535].length) {
-						newIndex = 0;
-						id++;
-						if(lastReceivedPackets[id & 65535] == null)
-							return;
-					}
-					byte nextByte = lastReceivedPackets[id & 65535][newIndex++];
-					len |= (nextByte & 0x7f) << shift;
-					if((nextByte & 0x80) != 0) {
-						shift += 7;
-					} else {
-						break;
-					}
-				}
-
-				// Check if there is enough data available to fill the packets needs:
-				int dataAvailable = lastReceivedPackets[id & 65535].length - newIndex;
-				for(int idd = id + 1; dataAvailable < len; idd++) {
-					if(lastReceivedPackets[idd & 65535] == null) return;
-					dataAvailable += lastReceivedPackets[idd & 65535].length;
-				}
-
-				// Copy the data to an array:
-				data = new byte[len];
-				int offset = 0;
-				do {
-					dataAvailable = Math.min(lastReceivedPackets[id & 65535].length - newIndex, len - offset);
-					System.arraycopy(lastReceivedPackets[id & 65535], newIndex, data, offset, dataAvailable);
-					newIndex += dataAvailable;
-					offset += dataAvailable;
-					if(newIndex == lastReceivedPackets[id & 65535].length) {
-						id++;
-						newIndex = 0;
-					}
-				} while(offset != len);
-				for(; lastIncompletePacket != id; lastIncompletePacket++) {
-					lastReceivedPackets[lastIncompletePacket & 65535] = null;
-				}
-				lastIndex = newIndex;
-			}
-			Protocols.bytesReceived[protocol & 0xff] += data.length + 1;
-			Protocols.list[protocol].receive(this, data, 0, data.length);
-		}
-	}
-
 	public void receive(byte[] data, int len) {
 		byte protocol = data[0];
 		if(!handShakeComplete && protocol != Protocols.HANDSHAKE.id && protocol != Protocols.KEEP_ALIVE && protocol != (byte)0xff) {
@@ -343,20 +532,47 @@ public class UDPConnection {
 					Logger.error("Server 'reconnected'? This makes no sense and the game can't handle that.");
 				}
 			}
-			if(id - lastIncompletePacket >= 65536) {
+			if(id - lastIncompletePacket >= MAX_IN_FLIGHT) {
 				Logger.warning("Many incomplete packages. Cannot process any more packages for now.");
 				return;
 			}
-			synchronized(receivedPackets) {
-				receivedPackets[0].add(id);
+			if(len < IMPORTANT_HEADER_SIZE || data[5] < 0 || data[5] >= streams.length) {
+				Logger.warning("Received an important packet with an invalid stream.");
+				return;
 			}
-			synchronized(lastReceivedPackets) {
-				if(id - lastIncompletePacket < 0 || lastReceivedPackets[id & 65535] != null) {
-					return; // Already received the package in the past.
+			Stream stream = streams[data[5]];
+			boolean sendAck;
+			synchronized(receivedPackets) {
+				// Duplicates are counted as well, they mean that an ack got lost.
+				if(packetsSinceAck++ == 0) {
+					firstUnackedTime = System.nanoTime();
+				}
+				sendAck = packetsSinceAck >= ACK_FREQUENCY;
+				if(id - lastIncompletePacket >= 0 && !receivedPackets[id & IN_FLIGHT_MASK]) {
+					receivedPackets[id & IN_FLIGHT_MASK] = true;
+					// The sender needs to know about gaps as soon as possible, so a packet that opens or fills a gap is acked immediately:
+					if(id - highestReceivedPacket != 1) {
+						sendAck = true;
+					}
+					if(id - highestReceivedPacket > 0) {
+						highestReceivedPacket = id;
+					}
+					while(receivedPackets[lastIncompletePacket & IN_FLIGHT_MASK]) {
+						receivedPackets[lastIncompletePacket & IN_FLIGHT_MASK] = false;
+						lastIncompletePacket++;
+					}
+					// A packet of a stream is sent after all earlier packets of that stream, so the sequence numbers are within the same window as the ids:
+					stream.receivedData[Bits.getInt(data, 6) & IN_FLIGHT_MASK] = Arrays.copyOfRange(data, IMPORTANT_HEADER_SIZE, len);
+				} else {
+					sendAck = true;
 				}
-				lastReceivedPackets[id & 65535] = Arrays.copyOfRange(data, IMPORTANT_HEADER_SIZE, len);
-				// Check if a message got completed:
-				collectPackets();
+			}
+			if(sendAck) {
+				sendAck(false);
+			}
+			// Check if a message got completed. Streams that waited for the handshake may continue now as well:
+			for(Stream other : streams) {
+				other.collectPackets();
 			}
 		} else if(protocol == Protocols.KEEP_ALIVE) {
 			receiveKeepAlive(data, 1, len - 1);
@@ -378,15 +594,176 @@ public class UDPConnection {
 		Logger.info("Disconnected");
 	}
 
-	private static final class UnconfirmedPackage {
-		private final DatagramPacket packet;
-		private int lastKeepAliveSentBefore;
-		private final int id;
+	/**
+	 * An independent ordered stream of messages. All streams share the packet ids, the acks and the congestion window,
+	 * but a lost packet only holds back the messages of its own stream.
+	 */
+	private final class Stream {
+		private final byte streamID;
+
+		// Sending, guarded by this:
+		private final byte[] buffer = new byte[MAX_IMPORTANT_PACKET_SIZE];
+		private int position = IMPORTANT_HEADER_SIZE;
+		private int nextSequence = 0;
+		/** Messages that wait until the earlier packets of this stream got sent. */
+		private final ArrayDeque<QueuedMessage> queuedMessages = new ArrayDeque<>();
+		/** Packets that don't fit into the congestion window yet. Their id is assigned when they get sent. Guarded by inFlightPackets. */
+		private final ArrayDeque<byte[]> waitingPackets = new ArrayDeque<>();
+		/** The sent packets of this stream that weren't confirmed yet. Guarded by inFlightPackets. */
+		private int packetsInFlight = 0;
+
+		// Receiving, guarded by receivedPackets:
+		/** Indexed by the sequence number & IN_FLIGHT_MASK. */
+		private final byte[][] receivedData = new byte[MAX_IN_FLIGHT][];
+		private int lastIncompleteSequence = 0;
+		private int lastIndex = 0;
+
+		private Stream(byte streamID) {
+			this.streamID = streamID;
+		}
+
+		private synchronized void flush() {
+			if(position == IMPORTANT_HEADER_SIZE) return; // Don't send empty packets.
+			// Fill the header, the id is added when it gets sent:
+			buffer[0] = (byte)0xff;
+			buffer[5] = streamID;
+			Bits.putInt(buffer, 6, nextSequence++);
+			byte[] packet = Arrays.copyOf(buffer, position); // Kept until it is confirmed.
+			synchronized(inFlightPackets) {
+				waitingPackets.add(packet);
+				sendWaitingPackets();
+			}
+
+			position = IMPORTANT_HEADER_SIZE;
+		}
+
+		/**
+		 * Needs the lock of this.
+		 * @return true if nothing of this stream is waiting for the congestion window.
+		 */
+		private boolean hasSpace() {
+			synchronized(inFlightPackets) {
+				return waitingPackets.isEmpty();
+			}
+		}
+
+		private synchronized void sendQueuedMessages() {
+			while(!queuedMessages.isEmpty() && hasSpace()) {
+				QueuedMessage message = queuedMessages.poll();
+				if(message.isStillNeeded != null && !message.isStillNeeded.getAsBoolean()) {
+					messagesDropped++;
+					continue;
+				}
+				write(message.protocol, message.data, 0, message.data.length);
+			}
+		}
+
+		private void writeByte(byte data) {
+			buffer[position++] = data;
+			if(position == buffer.length) {
+				flush();
+			}
+		}
+
+		/**
+		 * Needs the lock of this.
+		 */
+		private void write(byte protocol, byte[] data, int offset, int length) {
+			writeByte(protocol);
+			int processedLength = length;
+			while(processedLength > 0x7f) {
+				writeByte((byte)((processedLength & 0x7f) | 0x80));
+				processedLength >>>= 7;
+			}
+			writeByte((byte)processedLength);
+
+			while(length != 0) {
+				int copyableSize = Math.min(length, buffer.length - position);
+				System.arraycopy(data, offset, buffer, position, copyableSize);
+				position += copyableSize;
+				length -= copyableSize;
+				offset += copyableSize;
+				if(position == buffer.length) {
+					flush();
+				}
+			}
+			// The other streams collect the messages until the next keep-alive to fill the packets, control messages shouldn't wait that long:
+			if(streamID == Protocols.CONTROL_STREAM) {
+				flush();
+			}
+		}
+
+		private void collectPackets() {
+			byte[] data;
+			byte protocol;
+			while(true) {
+				synchronized(receivedPackets) {
+					int id = lastIncompleteSequence;
+					if(receivedData[id & IN_FLIGHT_MASK] == null)
+						return;
+					int newIndex = lastIndex;
+					protocol = receivedData[id & IN_FLIGHT_MASK][newIndex++];
+					if(Cubyz.world == null && protocol != Protocols.HANDSHAKE.id)
+						return;
+					// Determine the next packet length:
+					int len = 0;
+					int shift = 0;
+					while(true) {
+						if(newIndex == receivedData[id & IN_FLIGHT_MASK].length) {
+							newIndex = 0;
+							id++;
+							if(receivedData[id & IN_FLIGHT_MASK] == null)
+								return;
+						}
+						byte nextByte = receivedData[id & IN_FLIGHT_MASK][newIndex++];
+						len |= (nextByte & 0x7f) << shift;
+						if((nextByte & 0x80) != 0) {
+							shift += 7;
+						} else {
+							break;
+						}
+					}
+
+					// Check if there is enough data available to fill the packets needs:
+					int dataAvailable = receivedData[id & IN_FLIGHT_MASK].length - newIndex;
+					for(int idd = id + 1; dataAvailable < len; idd++) {
+						if(receivedData[idd & IN_FLIGHT_MASK] == null) return;
+						dataAvailable += receivedData[idd & IN_FLIGHT_MASK].length;
+					}
+
+					// Copy the data to an array:
+					data = new byte[len];
+					int offset = 0;
+					do {
+						dataAvailable = Math.min(receivedData[id & IN_FLIGHT_MASK].length - newIndex, len - offset);
+						System.arraycopy(receivedData[id & IN_FLIGHT_MASK], newIndex, data, offset, dataAvailable);
+						newIndex += dataAvailable;
+						offset += dataAvailable;
+						if(newIndex == receivedData[id & IN_FLIGHT_MASK].length) {
+							id++;
+							newIndex = 0;
+						}
+					} while(offset != len);
+					for(; lastIncompleteSequence != id; lastIncompleteSequence++) {
+						receivedData[lastIncompleteSequence & IN_FLIGHT_MASK] = null;
+					}
+					lastIndex = newIndex;
+				}
+				Protocols.bytesReceived[protocol & 0xff] += data.length + 1;
+				Protocols.list[protocol].receive(UDPConnection.this, data, 0, data.length);
+			}
+		}
+	}
+
+	private static final class QueuedMessage {
+		private final byte protocol;
+		private final byte[] data;
+		private final BooleanSupplier isStillNeeded;
 
-		private UnconfirmedPackage(DatagramPacket packet, int lastKeepAliveSentBefore, int id) {
-			this.packet = packet;
-			this.lastKeepAliveSentBefore = lastKeepAliveSentBefore;
-			this.id = id;
+		private QueuedMessage(byte protocol, byte[] data, BooleanSupplier isStillNeeded) {
+			this.protocol = protocol;
+			this.data = data;
+			this.isStillNeeded = isStillNeeded;
 		}
 	}
 }
@@ -4,15 +4,39 @@ import cubyz.utils.Logger;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 
 import static cubyz.Constants.CONNECTION_TIMEOUT;
 
+/**
+ * Owns the udp socket of this side.<br>
+ * This thread receives all datagrams and passes them to their connection. A separate {@link Sender} thread puts the outgoing datagrams
+ * of all connections on the wire, so a slow network never blocks the threads that send something.
+ */
 public final class UDPConnectionManager extends Thread {
-	private final DatagramSocket socket;
-	private final DatagramPacket receivedPacket;
+	private static final int MAX_DATAGRAM_SIZE = 65536;
+	/** Enough for every important packet and most of the others. Bigger datagrams get their own heap buffer. */
+	private static final int POOLED_BUFFER_SIZE = 2048;
+	private static final int MAX_POOLED_BUFFERS = 1024;
+	/** The number of datagrams of one connection that are sent before the next connection gets its turn. */
+	private static final int SEND_BATCH = 16;
+	private static final int SOCKET_BUFFER_SIZE = 1 << 21;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Sender sender;
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+	private final byte[] receivedData = new byte[MAX_DATAGRAM_SIZE];
 	public final ArrayList<UDPConnection> connections = new ArrayList<>();
+	/** Guarded by {@link #connections}. Connections that still search their remote port are not in here. */
+	private final HashMap<InetSocketAddress, UDPConnection> connectionsByAddress = new HashMap<>();
 	private final ArrayList<DatagramPacket> requests = new ArrayList<>();
 	private volatile boolean running = true;
 	public String externalIPPort = null;
@@ -20,22 +44,54 @@ public final class UDPConnectionManager extends Thread {
 	private int externalPort = 0;
 	public boolean online = false;
 
+	// Guarded by sendLock:
+	private final Object sendLock = new Object();
+	private final ArrayDeque<Datagram> bufferPool = new ArrayDeque<>();
+	/** Datagrams that don't belong to any connection. */
+	private final ArrayDeque<Datagram> otherDatagrams = new ArrayDeque<>();
+	/** Connections that have datagrams in their {@link UDPConnection#sendQueue}. */
+	private final ArrayDeque<UDPConnection> readyConnections = new ArrayDeque<>();
+
 	public UDPConnectionManager(int localPort, boolean online) {
 		// Connect
-		DatagramSocket socket = null;
+		DatagramChannel channel = null;
 		//TODO: Might want to use SSL or something similar to encode the message
-		while(socket == null) {
+		while(channel == null) {
+			try {
+				channel = DatagramChannel.open();
+			} catch(IOException e) {
+				Logger.crash(e);
+				throw new IllegalStateException(e);
+			}
 			try {
-				socket = new DatagramSocket(localPort);
-			} catch(SocketException e) {
+				channel.bind(new InetSocketAddress(localPort));
+			} catch(IOException e) {
 				Logger.warning("Couldn't use port "+localPort+".");
+				try {
+					channel.close();
+				} catch(IOException e2) {
+					Logger.error(e2);
+				}
+				channel = null;
 				localPort++;
 			}
 		}
-		this.socket = socket;
-
-		receivedPacket = new DatagramPacket(new byte[65536], 65536);
+		this.channel = channel;
+		Selector selector = null;
+		try {
+			channel.configureBlocking(false);
+			// Chunk streaming can send many datagrams at once, which would overflow the default buffers of some systems:
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch(IOException e) {
+			Logger.crash(e);
+		}
+		this.selector = selector;
 
+		sender = new Sender();
+		sender.start();
 		start();
 		if(online) {
 			makeOnline();
@@ -62,14 +118,95 @@ public final class UDPConnectionManager extends Thread {
 		}
 	}
 
-	public void send(DatagramPacket packet) {
-		try {
-			socket.send(packet);
-		} catch(IOException e) {
-			Logger.error(e);
+	/**
+	 * Takes a buffer from the pool, or creates a new one if the pool is empty or the datagram is too big for the pooled buffers.
+	 */
+	private Datagram obtain(int length) {
+		assert length <= MAX_DATAGRAM_SIZE : "Datagram is too big.";
+		if(length > POOLED_BUFFER_SIZE) {
+			return new Datagram(ByteBuffer.allocate(length), false);
+		}
+		synchronized(sendLock) {
+			Datagram datagram = bufferPool.poll();
+			if(datagram != null) return datagram;
+		}
+		return new Datagram(ByteBuffer.allocateDirect(POOLED_BUFFER_SIZE), true);
+	}
+
+	private void free(Datagram datagram) {
+		datagram.target = null;
+		if(!datagram.pooled) return;
+		synchronized(sendLock) {
+			if(bufferPool.size() < MAX_POOLED_BUFFERS) {
+				bufferPool.add(datagram);
+			}
+		}
+	}
+
+	/**
+	 * Queues a datagram to the remote address of the connection.
+	 * @param connection
+	 * @param header is put in front of the data, may be -1 if there is no header.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	void send(UDPConnection connection, int header, byte[] data, int offset, int length) {
+		send(connection, header, data, offset, length, connection.sendQueue);
+	}
+
+	/**
+	 * Queues a datagram that waits for the {@link UDPConnection#pacer} of the connection.
+	 * @param connection
+	 * @param data
+	 * @param urgent if true the datagram skips ahead of the other paced datagrams, but it still waits for the pacer.
+	 */
+	void sendPaced(UDPConnection connection, byte[] data, boolean urgent) {
+		send(connection, -1, data, 0, data.length, urgent ? connection.urgentSendQueue : connection.pacedSendQueue);
+	}
+
+	private void send(UDPConnection connection, int header, byte[] data, int offset, int length, ArrayDeque<Datagram> queue) {
+		Datagram datagram = obtain(length + (header == -1 ? 0 : 1));
+		datagram.buffer.clear();
+		if(header != -1) {
+			datagram.buffer.put((byte)header);
+		}
+		datagram.buffer.put(data, offset, length);
+		datagram.buffer.flip();
+		datagram.target = connection.remoteSocketAddress;
+		synchronized(sendLock) {
+			queue.add(datagram);
+			if(!connection.isReadyToSend) {
+				connection.isReadyToSend = true;
+				readyConnections.add(connection);
+				sendLock.notify();
+			}
 		}
 	}
 
+	/**
+	 * Queues a datagram that doesn't belong to any connection.
+	 * @param target
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	void send(InetSocketAddress target, byte[] data, int offset, int length) {
+		Datagram datagram = obtain(length);
+		datagram.buffer.clear();
+		datagram.buffer.put(data, offset, length);
+		datagram.buffer.flip();
+		datagram.target = target;
+		synchronized(sendLock) {
+			otherDatagrams.add(datagram);
+			sendLock.notify();
+		}
+	}
+
+	public void send(DatagramPacket packet) {
+		send(new InetSocketAddress(packet.getAddress(), packet.getPort()), packet.getData(), packet.getOffset(), packet.getLength());
+	}
+
 	public byte[] sendRequest(DatagramPacket packet, long timeout) {
 		send(packet);
 		byte[] request = packet.getData();
@@ -94,13 +231,18 @@ public final class UDPConnectionManager extends Thread {
 	public void addConnection(UDPConnection connection) {
 		synchronized(connections) {
 			connections.add(connection);
+			if(!connection.bruteforcingPort) {
+				connectionsByAddress.put(connection.remoteSocketAddress, connection);
+			}
 		}
 	}
 
 	public void removeConnection(UDPConnection connection) {
 		synchronized(connections) {
 			connections.remove(connection);
+			connectionsByAddress.remove(connection.remoteSocketAddress, connection);
 		}
+		// The datagrams that are still queued get sent anyways, so the disconnect messages reach the other side.
 	}
 
 	public void cleanup() {
@@ -108,34 +250,52 @@ public final class UDPConnectionManager extends Thread {
 			connections.get(0).disconnect();
 		}
 		running = false;
-		if(Thread.currentThread() != this) {
-			interrupt();
-			try {
+		synchronized(sendLock) {
+			sendLock.notifyAll();
+		}
+		// Not interrupting, because that would close the channel:
+		selector.wakeup();
+		try {
+			if(Thread.currentThread() != this) {
 				join();
-			} catch(InterruptedException e) {
-				Logger.error(e);
 			}
+			sender.join();
+		} catch(InterruptedException e) {
+			Logger.error(e);
+		}
+		try {
+			selector.close();
+			channel.close();
+		} catch(IOException e) {
+			Logger.error(e);
 		}
-		socket.close();
 	}
 
-	private void onReceive() {
-		byte[] data = receivedPacket.getData();
-		int len = receivedPacket.getLength();
-		InetAddress addr = receivedPacket.getAddress();
-		int port = receivedPacket.getPort();
-		for(UDPConnection connection : connections) {
-			if(connection.remoteAddress.equals(addr)) {
-				if(connection.bruteforcingPort) { // brute-forcing the port was successful.
-					connection.remotePort = port;
-					connection.bruteforcingPort = false;
-				}
-				if(connection.remotePort == port) {
-					connection.receive(data, len);
-					return;
+	private UDPConnection findConnection(InetSocketAddress address) {
+		synchronized(connections) {
+			UDPConnection connection = connectionsByAddress.get(address);
+			if(connection != null) return connection;
+			for(UDPConnection other : connections) {
+				if(other.bruteforcingPort && other.remoteAddress.equals(address.getAddress())) { // brute-forcing the port was successful.
+					other.setRemotePort(address.getPort());
+					other.bruteforcingPort = false;
+					connectionsByAddress.put(other.remoteSocketAddress, other);
+					return other;
 				}
 			}
 		}
+		return null;
+	}
+
+	private void onReceive(InetSocketAddress address, int len) {
+		byte[] data = receivedData;
+		InetAddress addr = address.getAddress();
+		int port = address.getPort();
+		UDPConnection connection = findConnection(address);
+		if(connection != null) {
+			connection.receive(data, len);
+			return;
+		}
 		// Check if it's part of an active request:
 		synchronized(requests) {
 			for(DatagramPacket packet : requests) {
@@ -158,14 +318,35 @@ public final class UDPConnectionManager extends Thread {
 	public void run() {
 		assert Thread.currentThread() == this : "UDPConnectionManager.run() shouldn't be called by anyone.";
 		try {
-			socket.setSoTimeout(100);
 			long lastTime = System.currentTimeMillis();
+			long ackDelay = Long.MAX_VALUE;
 			while (running) {
-				try {
-					socket.receive(receivedPacket);
-					onReceive();
-				} catch(SocketTimeoutException e) {
-					// No message within the last ~100 ms.
+				selector.select(Math.min(100, ackDelay/1000000 + 1));
+				selector.selectedKeys().clear();
+				// Receive everything that arrived since the last select:
+				while(running) {
+					receiveBuffer.clear();
+					SocketAddress address;
+					try {
+						address = channel.receive(receiveBuffer);
+					} catch(IOException e) {
+						if(!channel.isOpen()) throw e;
+						// For example an ICMP port unreachable from a previous send.
+						Logger.debug(e);
+						continue;
+					}
+					if(address == null) break;
+					receiveBuffer.flip();
+					int len = receiveBuffer.remaining();
+					receiveBuffer.get(receivedData, 0, len);
+					onReceive((InetSocketAddress)address, len);
+				}
+
+				// Ack the packets that didn't fill up an ack yet:
+				long time = System.nanoTime();
+				ackDelay = Long.MAX_VALUE;
+				for(UDPConnection connection : connections.toArray(new UDPConnection[0])) {
+					ackDelay = Math.min(ackDelay, connection.sendDelayedAck(time));
 				}
 
 				// Send a keep-alive packet roughly every 100 ms:
@@ -182,11 +363,7 @@ public final class UDPConnectionManager extends Thread {
 					}
 					if(connections.isEmpty() && externalAddress != null) {
 						// Send a message to external ip, to keep the port open:
-						DatagramPacket packet = new DatagramPacket(new byte[0], 0);
-						packet.setAddress(externalAddress);
-						packet.setPort(externalPort);
-						packet.setLength(0);
-						send(packet);
+						send(new InetSocketAddress(externalAddress, externalPort), new byte[0], 0, 0);
 					}
 				}
 			}
@@ -194,4 +371,126 @@ public final class UDPConnectionManager extends Thread {
 			Logger.crash(e);
 		}
 	}
+
+	/**
+	 * A datagram waiting to be sent.
+	 */
+	static final class Datagram {
+		final ByteBuffer buffer;
+		final boolean pooled;
+		SocketAddress target;
+
+		private Datagram(ByteBuffer buffer, boolean pooled) {
+			this.buffer = buffer;
+			this.pooled = pooled;
+		}
+	}
+
+	/**
+	 * Drains the send queues of the connections in turns of up to {@value #SEND_BATCH} datagrams.
+	 * The paced datagrams of a connection are only sent when its pacer allows it.
+	 * After the manager stopped running, it still sends the remaining datagrams, except for the paced ones.
+	 */
+	private final class Sender extends Thread {
+		private final Datagram[] batch = new Datagram[SEND_BATCH];
+		private Selector writeSelector;
+
+		private Sender() {
+			super("UDPSender");
+			setDaemon(true);
+		}
+
+		private int takeBatch() {
+			synchronized(sendLock) {
+				while(true) {
+					int size = 0;
+					while(size < SEND_BATCH && !otherDatagrams.isEmpty()) {
+						batch[size++] = otherDatagrams.poll();
+					}
+					long time = System.nanoTime();
+					long delay = Long.MAX_VALUE;
+					// Each connection gets one turn:
+					for(int i = readyConnections.size(); i > 0 && size < SEND_BATCH; i--) {
+						UDPConnection connection = readyConnections.poll();
+						while(size < SEND_BATCH && !connection.sendQueue.isEmpty()) {
+							batch[size++] = connection.sendQueue.poll();
+						}
+						while(size < SEND_BATCH && !connection.urgentSendQueue.isEmpty() && connection.pacer.tryConsume(connection.urgentSendQueue.peek().buffer.remaining(), time)) {
+							batch[size++] = connection.urgentSendQueue.poll();
+						}
+						while(size < SEND_BATCH && connection.urgentSendQueue.isEmpty() && !connection.pacedSendQueue.isEmpty() && connection.pacer.tryConsume(connection.pacedSendQueue.peek().buffer.remaining(), time)) {
+							batch[size++] = connection.pacedSendQueue.poll();
+						}
+						if(!connection.sendQueue.isEmpty()) {
+							readyConnections.add(connection); // Back to the end of the line.
+							delay = 0;
+						} else if((!connection.urgentSendQueue.isEmpty() || !connection.pacedSendQueue.isEmpty()) && running) {
+							readyConnections.add(connection);
+							delay = Math.min(delay, connection.pacer.getDelay(time));
+						} else {
+							freeAll(connection.urgentSendQueue);
+							freeAll(connection.pacedSendQueue);
+							connection.isReadyToSend = false;
+						}
+					}
+					if(size != 0 || !running) return size;
+					try {
+						if(delay == Long.MAX_VALUE) {
+							sendLock.wait();
+						} else if(delay > 0) {
+							sendLock.wait(delay/1000000, (int)(delay%1000000));
+						}
+					} catch(InterruptedException e) {
+						Logger.error(e);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Needs the send lock.
+		 */
+		private void freeAll(ArrayDeque<Datagram> queue) {
+			while(!queue.isEmpty()) {
+				Datagram datagram = queue.poll();
+				datagram.target = null;
+				if(datagram.pooled && bufferPool.size() < MAX_POOLED_BUFFERS) {
+					bufferPool.add(datagram);
+				}
+			}
+		}
+
+		private void sendNow(Datagram datagram) throws IOException {
+			try {
+				// The socket buffer may be full, in which case nothing gets sent:
+				while(channel.send(datagram.buffer, datagram.target) == 0) {
+					writeSelector.select(10);
+					writeSelector.selectedKeys().clear();
+				}
+			} catch(IOException e) {
+				if(!channel.isOpen()) throw e;
+				Logger.error(e);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				writeSelector = Selector.open();
+				channel.register(writeSelector, SelectionKey.OP_WRITE);
+				while(true) {
+					int size = takeBatch();
+					if(size == 0 && !running) break;
+					for(int i = 0; i < size; i++) {
+						sendNow(batch[i]);
+						free(batch[i]);
+						batch[i] = null;
+					}
+				}
+				writeSelector.close();
+			} catch(IOException e) {
+				Logger.crash(e);
+			}
+		}
+	}
 }
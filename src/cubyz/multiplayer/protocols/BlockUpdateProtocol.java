@@ -2,6 +2,7 @@ package cubyz.multiplayer.protocols;
 
 import cubyz.client.Cubyz;
 import cubyz.multiplayer.Protocol;
+import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.UDPConnection;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
@@ -25,6 +26,11 @@ public class BlockUpdateProtocol extends Protocol {
 		}
 	}
 
+	/**
+	 * Block updates are sent on the control stream, so they arrive quickly.
+	 * The chunk data is sent on the bulk stream and could overtake them, overwriting the update with older data.
+	 * So while chunk data might be on its way, the update is sent on the bulk stream as well. Applying it twice doesn't hurt.
+	 */
 	public void send(UDPConnection conn, int x, int y, int z, int newBlock) {
 		byte[] data = new byte[4*4];
 		Bits.putInt(data, 0, x);
@@ -32,5 +38,8 @@ public class BlockUpdateProtocol extends Protocol {
 		Bits.putInt(data, 8, z);
 		Bits.putInt(data, 12, newBlock);
 		conn.sendImportant(this, data);
+		if(conn.hasUnconfirmedData(Protocols.BULK_STREAM)) {
+			conn.sendImportant(this, Protocols.BULK_STREAM, data, 0, data.length, null);
+		}
 	}
 }
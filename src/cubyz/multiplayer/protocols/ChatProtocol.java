@@ -5,6 +5,7 @@ import cubyz.command.CommandExecutor;
 import cubyz.gui.MenuGUI;
 import cubyz.gui.game.GameOverlay;
 import cubyz.multiplayer.Protocol;
+import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.UDPConnection;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
@@ -14,7 +15,7 @@ import java.nio.charset.StandardCharsets;
 
 public class ChatProtocol extends Protocol {
 	public ChatProtocol() {
-		super((byte)10);
+		super((byte)10, Protocols.CHAT_STREAM);
 	}
 
 	@Override
@@ -1,6 +1,7 @@
 package cubyz.multiplayer.protocols;
 
 import cubyz.multiplayer.Protocol;
+import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.UDPConnection;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
@@ -9,7 +10,7 @@ import cubyz.world.ChunkData;
 
 public class ChunkRequestProtocol extends Protocol {
 	public ChunkRequestProtocol() {
-		super((byte)2);
+		super((byte)2, Protocols.BULK_STREAM);
 	}
 
 	@Override
@@ -2,20 +2,31 @@ package cubyz.multiplayer.protocols;
 
 import cubyz.client.Cubyz;
 import cubyz.multiplayer.Protocol;
+import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.UDPConnection;
 import cubyz.rendering.VisibleChunk;
+import cubyz.utils.Logger;
 import cubyz.utils.ThreadPool;
+import cubyz.utils.WorkerPool;
 import cubyz.utils.math.Bits;
 import cubyz.world.ChunkData;
 import cubyz.world.NormalChunk;
 import cubyz.world.ReducedChunkVisibilityData;
+import cubyz.world.save.ChunkCodec;
+import cubyz.world.save.ChunkCodecs;
 import cubyz.world.save.ChunkIO;
 
 import java.util.Arrays;
+import java.util.function.BooleanSupplier;
 
 public class ChunkTransmissionProtocol extends Protocol {
+	/** wx, wy, wz, voxelSize and the id of the compression algorithm */
+	private static final int HEADER_SIZE = 17;
+	/** Used instead of a compression algorithm id for chunks that only contain a single block. Only that block follows the header. */
+	private static final byte UNIFORM_CHUNK = (byte)255;
+
 	public ChunkTransmissionProtocol() {
-		super((byte)3);
+		super((byte)3, Protocols.BULK_STREAM);
 	}
 
 	@Override
@@ -24,17 +35,30 @@ public class ChunkTransmissionProtocol extends Protocol {
 		int wy = Bits.getInt(data, offset + 4);
 		int wz = Bits.getInt(data, offset + 8);
 		int voxelSize = Bits.getInt(data, offset + 12);
-		offset += 16;
-		length -= 16;
-		if(voxelSize == 1) {
-			byte[] chunkData = ChunkIO.decompressChunk(data, offset, length);
-			if(chunkData == null)
+		byte codecID = data[offset + 16];
+		offset += HEADER_SIZE;
+		length -= HEADER_SIZE;
+		if(codecID == UNIFORM_CHUNK) {
+			VisibleChunk ch = new VisibleChunk(Cubyz.world, wx, wy, wz);
+			if(!ch.loadFromByteArray(Arrays.copyOfRange(data, offset, offset + 4), 4))
 				return;
+			ThreadPool.addTask(new ChunkLoadTask(ch));
+			return;
+		}
+		ChunkCodec codec = ChunkCodecs.get(codecID & 0xff);
+		if(codec == null) {
+			Logger.error("Received chunk with unknown compression algorithm " + (data[offset - 1] & 0xff) + ".");
+			return;
+		}
+		if(voxelSize == 1) {
 			VisibleChunk ch = new VisibleChunk(Cubyz.world, wx, wy, wz);
-			ch.loadFromByteArray(chunkData, chunkData.length);
+			if(!ChunkIO.decompressChunk(data, offset, length, codec, ch))
+				return;
 			ThreadPool.addTask(new ChunkLoadTask(ch));
 		} else {
-			data = ChunkIO.decompressChunk(data, offset, length);
+			data = ChunkIO.decompressChunk(data, offset, length, codec);
+			if(data == null)
+				return;
 			length = data.length;
 			offset = 0;
 			int size = length/8;
@@ -54,26 +78,32 @@ public class ChunkTransmissionProtocol extends Protocol {
 	}
 
 	public void sendChunk(UDPConnection conn, ChunkData ch) {
+		sendChunk(conn, ch, null);
+	}
+
+	/**
+	 * @param conn
+	 * @param ch
+	 * @param isStillNeeded if it returns false while the chunk waits for the congestion window, the chunk isn't sent. May be null.
+	 */
+	public void sendChunk(UDPConnection conn, ChunkData ch, BooleanSupplier isStillNeeded) {
 		byte[] data;
+		byte codecID = ChunkCodecs.NETWORK.id;
 		if(ch instanceof NormalChunk) {
-			byte[] compressedChunk = ChunkIO.compressChunk((NormalChunk)ch);
-			data = new byte[compressedChunk.length + 16];
-			System.arraycopy(compressedChunk, 0, data, 16, compressedChunk.length);
-		} else if(ch instanceof ReducedChunkVisibilityData) {
-			ReducedChunkVisibilityData visDat = (ReducedChunkVisibilityData)ch;
-			data = new byte[visDat.size*8];
-			System.arraycopy(visDat.x, 0, data, 0, visDat.size);
-			System.arraycopy(visDat.y, 0, data, visDat.size, visDat.size);
-			System.arraycopy(visDat.z, 0, data, 2*visDat.size, visDat.size);
-			System.arraycopy(visDat.neighbors, 0, data, 3*visDat.size, visDat.size);
-			int offset = 4*visDat.size;
-			for(int i = 0; i < visDat.size; i++) {
-				Bits.putInt(data, offset, visDat.visibleBlocks[i]);
-				offset += 4;
+			byte[] blockData = ((NormalChunk)ch).saveToByteArray();
+			if(blockData.length == 4) { // The chunk is uniform and fits into a tiny fixed size message, no need to compress anything.
+				data = new byte[HEADER_SIZE + 4];
+				System.arraycopy(blockData, 0, data, HEADER_SIZE, 4);
+				codecID = UNIFORM_CHUNK;
+			} else {
+				byte[] compressedChunk = ChunkIO.compressChunk(blockData, ChunkCodecs.NETWORK);
+				data = new byte[compressedChunk.length + HEADER_SIZE];
+				System.arraycopy(compressedChunk, 0, data, HEADER_SIZE, compressedChunk.length);
 			}
-			byte[] compressedData = ChunkIO.compressChunk(data);
-			data = new byte[compressedData.length + 16];
-			System.arraycopy(compressedData, 0, data, 16, compressedData.length);
+		} else if(ch instanceof ReducedChunkVisibilityData) {
+			byte[] compressedData = ((ReducedChunkVisibilityData)ch).getCompressedData();
+			data = new byte[compressedData.length + HEADER_SIZE];
+			System.arraycopy(compressedData, 0, data, HEADER_SIZE, compressedData.length);
 		} else {
 			assert false: "Invalid chunk class to send over the network " + ch.getClass() + ".";
 			return;
@@ -82,7 +112,8 @@ public class ChunkTransmissionProtocol extends Protocol {
 		Bits.putInt(data, 4, ch.wy);
 		Bits.putInt(data, 8, ch.wz);
 		Bits.putInt(data, 12, ch.voxelSize);
-		conn.sendImportant(this, data);
+		data[16] = codecID;
+		conn.sendImportant(this, data, isStillNeeded);
 	}
 
 	private static class ChunkLoadTask extends ThreadPool.Task {
@@ -100,6 +131,11 @@ public class ChunkTransmissionProtocol extends Protocol {
 			return Cubyz.chunkTree.findNode(ch) != null;
 		}
 
+		@Override
+		public WorkerPool getPool() {
+			return ThreadPool.CLIENT_LOAD;
+		}
+
 		@Override
 		public void run() {
 			ch.load();
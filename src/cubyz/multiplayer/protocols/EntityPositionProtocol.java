@@ -1,44 +1,184 @@
 package cubyz.multiplayer.protocols;
 
+import org.joml.Vector3d;
+
 import cubyz.client.Cubyz;
 import cubyz.client.entity.ClientEntityManager;
 import cubyz.client.entity.InterpolatedItemEntityManager;
 import cubyz.multiplayer.Protocol;
 import cubyz.multiplayer.UDPConnection;
+import cubyz.multiplayer.server.AreaOfInterest;
+import cubyz.multiplayer.server.User;
+import cubyz.utils.Logger;
+import cubyz.utils.datastructures.IntSimpleList;
+import cubyz.utils.datastructures.SimpleList;
+import cubyz.utils.math.BitReader;
+import cubyz.utils.math.BitWriter;
 import cubyz.utils.math.Bits;
+import cubyz.world.entity.Entity;
+import cubyz.world.entity.EntitySnapshot;
+import cubyz.world.entity.ItemEntityManager;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 
+/**
+ * Sends the positions and velocities of the entities near each user every tick.<br>
+ * Each snapshot only contains the changes since the last snapshot that the client acknowledged.
+ * If the acknowledged snapshot is too old, because the acks got lost, the full snapshot is sent instead.
+ */
 public class EntityPositionProtocol extends Protocol {
-	private static final byte ENTITY = 0, ITEM = 1;
+	private static final byte SNAPSHOT = 0, ACK = 1;
+	/** The number of snapshots that are kept as possible baselines. Must be a power of 2. */
+	public static final int HISTORY_SIZE = 32;
+	private static final int HISTORY_MASK = HISTORY_SIZE - 1;
+	private static final int MAX_SNAPSHOT_SIZE = 65000; // A bit below the maximum udp packet size.
+
+	// Server side:
+	private int nextSnapshotID = 0;
+	private boolean warnedAboutSize = false;
+	// Client side, guarded by receivedSnapshots:
+	private final EntitySnapshot[] receivedSnapshots = new EntitySnapshot[HISTORY_SIZE];
+
 	public EntityPositionProtocol() {
 		super((byte)6);
 	}
 
 	@Override
 	public void receive(UDPConnection conn, byte[] data, int offset, int length) {
+		if(data[offset] == ACK) {
+			if(conn instanceof User) {
+				acknowledge((User)conn, Bits.getInt(data, offset + 1));
+			}
+			return;
+		}
 		if(Cubyz.world == null) return;
-		short time = Bits.getShort(data, offset+1);
-		if(data[offset] == ENTITY) {
-			offset += 3;
-			length -= 3;
-			ClientEntityManager.serverUpdate(time, data, offset, length);
-		} else if(data[offset] == ITEM) {
-			offset += 3;
-			length -= 3;
-			((InterpolatedItemEntityManager)Cubyz.world.itemEntityManager).readPosition(data, offset, length, time);
+		if(data[offset] == SNAPSHOT) {
+			short time = Bits.getShort(data, offset + 1);
+			int id = Bits.getInt(data, offset + 3);
+			boolean hasBaseline = data[offset + 7] != 0;
+			int baselineID = Bits.getInt(data, offset + 8);
+			EntitySnapshot snapshot;
+			synchronized(receivedSnapshots) {
+				EntitySnapshot baseline = null;
+				if(hasBaseline) {
+					baseline = receivedSnapshots[baselineID & HISTORY_MASK];
+					// The baseline was already replaced. Without acks the server sends a full snapshot soon.
+					if(baseline == null || baseline.id != baselineID) return;
+				}
+				snapshot = EntitySnapshot.read(id, new BitReader(data, offset + 12, length - 12), baseline);
+				receivedSnapshots[id & HISTORY_MASK] = snapshot;
+			}
+			byte[] ack = new byte[5];
+			ack[0] = ACK;
+			Bits.putInt(ack, 1, id);
+			conn.sendUnimportant(this, ack);
+
+			ClientEntityManager.serverUpdate(time, snapshot.entities);
+			((InterpolatedItemEntityManager)Cubyz.world.itemEntityManager).readPosition(snapshot.items, time);
+		}
+	}
+
+	private void acknowledge(User user, int id) {
+		synchronized(user.sentEntitySnapshots) {
+			EntitySnapshot snapshot = user.sentEntitySnapshots[id & HISTORY_MASK];
+			if(snapshot == null || snapshot.id != id) return;
+			// Acks may arrive out of order:
+			if(user.acknowledgedSnapshot == null || id - user.acknowledgedSnapshot.id > 0) {
+				user.acknowledgedSnapshot = snapshot;
+			}
+		}
+	}
+
+	/**
+	 * Sends every user the entities and item entities within its render distance.
+	 * Needs the lock of the item entity manager.
+	 * @param users
+	 * @param entities
+	 * @param itemEntities
+	 */
+	public void sendToClients(User[] users, Entity[] entities, ItemEntityManager itemEntities) {
+		HashMap<User, SimpleList<Entity>> visibleEntities = new HashMap<>();
+		HashMap<User, IntSimpleList> visibleItems = new HashMap<>();
+		for(User user : users) {
+			if(!user.isConnected()) continue;
+			visibleEntities.put(user, new SimpleList<>(new Entity[16]));
+			visibleItems.put(user, new IntSimpleList(16));
+		}
+		for(Entity ent : entities) {
+			for(User user : AreaOfInterest.getUsers(ent.getPosition().x, ent.getPosition().y, ent.getPosition().z)) {
+				SimpleList<Entity> list = visibleEntities.get(user);
+				if(list != null) {
+					list.add(ent);
+				}
+			}
+		}
+		for(int ii = 0; ii < itemEntities.size; ii++) {
+			int i = itemEntities.indices[ii] & 0xffff;
+			for(User user : AreaOfInterest.getUsers(itemEntities.posxyz[3*i], itemEntities.posxyz[3*i + 1], itemEntities.posxyz[3*i + 2])) {
+				IntSimpleList list = visibleItems.get(user);
+				if(list != null) {
+					list.add(i);
+				}
+			}
+		}
+		int id = nextSnapshotID++;
+		for(User user : users) {
+			SimpleList<Entity> userEntities = visibleEntities.get(user);
+			IntSimpleList userItems = visibleItems.get(user);
+			if(userEntities == null) continue;
+			while(true) {
+				EntitySnapshot snapshot = EntitySnapshot.create(id, userEntities, userItems, itemEntities);
+				byte[] data = encode(user, snapshot);
+				if(data.length > MAX_SNAPSHOT_SIZE && userEntities.size + userItems.size > 1) {
+					if(!warnedAboutSize) {
+						Logger.warning("Entity snapshot is too big to be sent (" + data.length + " bytes), only the nearest entities are sent. Are there too many moving item entities?");
+						warnedAboutSize = true;
+					}
+					keepNearestHalf(user, userEntities, userItems, itemEntities);
+					continue;
+				}
+				// Only what was actually sent may become a baseline:
+				synchronized(user.sentEntitySnapshots) {
+					user.sentEntitySnapshots[id & HISTORY_MASK] = snapshot;
+				}
+				user.sendUnimportant(this, data);
+				break;
+			}
 		}
 	}
 
-	public void send(UDPConnection conn, byte[] entityData, byte[] itemData) {
-		byte[] fullData = new byte[entityData.length + 3];
-		fullData[0] = ENTITY;
-		Bits.putShort(fullData, 1, (short)System.currentTimeMillis());
-		System.arraycopy(entityData, 0, fullData, 3, entityData.length);
-		conn.sendUnimportant(this, fullData);
-
-		fullData = new byte[itemData.length + 3];
-		fullData[0] = ITEM;
-		Bits.putShort(fullData, 1, (short)System.currentTimeMillis());
-		System.arraycopy(itemData, 0, fullData, 3, itemData.length);
-		conn.sendUnimportant(this, fullData);
+	/**
+	 * Drops the entities and item entities that are furthest away from the user, so the snapshot gets smaller.
+	 */
+	private static void keepNearestHalf(User user, SimpleList<Entity> entities, IntSimpleList items, ItemEntityManager itemEntities) {
+		Vector3d position = user.player.getPosition();
+		entities.sort((a, b) -> Double.compare(a.getPosition().distanceSquared(position), b.getPosition().distanceSquared(position)));
+		entities.size /= 2;
+		Integer[] sortedItems = new Integer[items.size];
+		for(int i = 0; i < items.size; i++) {
+			sortedItems[i] = items.array[i];
+		}
+		Arrays.sort(sortedItems, Comparator.comparingDouble(i -> position.distanceSquared(itemEntities.posxyz[3*i], itemEntities.posxyz[3*i + 1], itemEntities.posxyz[3*i + 2])));
+		items.size /= 2;
+		for(int i = 0; i < items.size; i++) {
+			items.array[i] = sortedItems[i];
+		}
+	}
+
+	private byte[] encode(User user, EntitySnapshot snapshot) {
+		EntitySnapshot baseline = user.acknowledgedSnapshot;
+		if(baseline != null && snapshot.id - baseline.id >= HISTORY_SIZE) {
+			baseline = null; // The client might not have it anymore.
+		}
+		BitWriter writer = new BitWriter(64);
+		writer.write(SNAPSHOT, 8);
+		writer.write((short)System.currentTimeMillis(), 16);
+		writer.write(snapshot.id, 32);
+		writer.write(baseline != null ? 1 : 0, 8);
+		writer.write(baseline != null ? baseline.id : 0, 32);
+		snapshot.write(writer, baseline);
+		return writer.toByteArray();
 	}
 }
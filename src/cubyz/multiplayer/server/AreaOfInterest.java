@@ -0,0 +1,172 @@
+package cubyz.multiplayer.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Consumer;
+
+import org.joml.Vector3d;
+
+import cubyz.utils.datastructures.HashMapKey3D;
+import cubyz.world.Chunk;
+import cubyz.world.ChunkData;
+
+/**
+ * A spatial hash of the users by the cells that are within their render distance.<br>
+ * Each user is registered in every cell that its render distance overlaps, so finding the users that can see an event only takes a single lookup.
+ * The registrations are moved in {@link User#update()}.
+ */
+public final class AreaOfInterest {
+	private AreaOfInterest() {} // No instances allowed.
+
+	/** A cell is 4×4×4 chunks. */
+	private static final int CELL_SHIFT = Chunk.chunkShift + 2;
+	/** Registering with a bit more than the render distance allows looking up chunks by their center. */
+	private static final double MARGIN = Chunk.chunkSize;
+	private static final User[] NO_USERS = new User[0];
+
+	// Guarded by cells:
+	private static final HashMap<HashMapKey3D, User[]> cells = new HashMap<>();
+	private static final HashMap<User, int[]> registeredRanges = new HashMap<>();
+
+	/**
+	 * @param user
+	 * @param voxelSize the resolution of the chunks. Lower resolutions are seen from further away.
+	 * @return the distance in blocks up to which the user needs updates.
+	 */
+	public static double getRenderDistance(User user, int voxelSize) {
+		//                                                               ↓ Margin for error. (diagonal of 1 chunk)
+		double renderDistance = user.renderDistance*Chunk.chunkSize + Chunk.chunkSize*Math.sqrt(3);
+		if(voxelSize != 1) {
+			renderDistance *= voxelSize*user.LODFactor;
+		}
+		return renderDistance;
+	}
+
+	public static boolean isInRenderDistance(User user, double x, double y, double z) {
+		double renderDistance = getRenderDistance(user, 1);
+		return user.player.getPosition().distanceSquared(x, y, z) <= renderDistance*renderDistance;
+	}
+
+	public static boolean isInRenderDistance(User user, ChunkData ch) {
+		Vector3d position = user.player.getPosition();
+		double renderDistance = getRenderDistance(user, ch.voxelSize);
+		return ch.getMinDistanceSquared(position.x, position.y, position.z) <= renderDistance*renderDistance;
+	}
+
+	private static User[] getCandidates(double x, double y, double z) {
+		HashMapKey3D key = new HashMapKey3D((int)Math.floor(x) >> CELL_SHIFT, (int)Math.floor(y) >> CELL_SHIFT, (int)Math.floor(z) >> CELL_SHIFT);
+		synchronized(cells) {
+			return cells.getOrDefault(key, NO_USERS); // The arrays are replaced on changes, so they can be used outside of the lock.
+		}
+	}
+
+	/**
+	 * @return the users that have the given block position in their render distance.
+	 */
+	public static User[] getUsers(double x, double y, double z) {
+		ArrayList<User> result = new ArrayList<>();
+		for(User user : getCandidates(x, y, z)) {
+			if(isInRenderDistance(user, x, y, z)) {
+				result.add(user);
+			}
+		}
+		return result.toArray(new User[0]);
+	}
+
+	/**
+	 * @return the users that have the given chunk in their render distance.
+	 */
+	public static User[] getUsers(ChunkData ch) {
+		User[] candidates;
+		if(ch.voxelSize == 1) {
+			int halfWidth = Chunk.chunkSize/2;
+			candidates = getCandidates(ch.wx + halfWidth, ch.wy + halfWidth, ch.wz + halfWidth);
+		} else {
+			// The cells only cover the normal render distance, lower resolutions are seen from much further away.
+			candidates = Server.users;
+		}
+		ArrayList<User> result = new ArrayList<>();
+		for(User user : candidates) {
+			if(isInRenderDistance(user, ch)) {
+				result.add(user);
+			}
+		}
+		return result.toArray(new User[0]);
+	}
+
+	/**
+	 * Moves the user to the cells around its current position, if needed.
+	 * @param user
+	 */
+	static void update(User user) {
+		Vector3d position = user.player.getPosition();
+		double radius = getRenderDistance(user, 1) + MARGIN;
+		int[] range = new int[] {
+			(int)Math.floor(position.x - radius) >> CELL_SHIFT,
+			(int)Math.floor(position.y - radius) >> CELL_SHIFT,
+			(int)Math.floor(position.z - radius) >> CELL_SHIFT,
+			(int)Math.floor(position.x + radius) >> CELL_SHIFT,
+			(int)Math.floor(position.y + radius) >> CELL_SHIFT,
+			(int)Math.floor(position.z + radius) >> CELL_SHIFT,
+		};
+		synchronized(cells) {
+			int[] oldRange = registeredRanges.get(user);
+			if(Arrays.equals(range, oldRange)) return;
+			if(oldRange != null) {
+				unregister(user, oldRange);
+			}
+			forEachCell(range, key -> {
+				User[] users = cells.getOrDefault(key, NO_USERS);
+				users = Arrays.copyOf(users, users.length + 1);
+				users[users.length - 1] = user;
+				cells.put(key, users);
+			});
+			registeredRanges.put(user, range);
+		}
+	}
+
+	/**
+	 * Removes the user from all cells.
+	 * @param user
+	 */
+	static void remove(User user) {
+		synchronized(cells) {
+			int[] oldRange = registeredRanges.remove(user);
+			if(oldRange != null) {
+				unregister(user, oldRange);
+			}
+		}
+	}
+
+	/**
+	 * Needs the lock of cells.
+	 */
+	private static void unregister(User user, int[] range) {
+		forEachCell(range, key -> {
+			User[] users = cells.get(key);
+			if(users.length == 1) {
+				cells.remove(key);
+				return;
+			}
+			User[] newUsers = new User[users.length - 1];
+			int i = 0;
+			for(User other : users) {
+				if(other != user) {
+					newUsers[i++] = other;
+				}
+			}
+			cells.put(key, newUsers);
+		});
+	}
+
+	private static void forEachCell(int[] range, Consumer<HashMapKey3D> action) {
+		for(int x = range[0]; x <= range[3]; x++) {
+			for(int y = range[1]; y <= range[4]; y++) {
+				for(int z = range[2]; z <= range[5]; z++) {
+					action.accept(new HashMapKey3D(x, y, z));
+				}
+			}
+		}
+	}
+}
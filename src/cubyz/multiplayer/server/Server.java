@@ -34,6 +34,7 @@ public final class Server extends Pacer {
 				stop();
 				world.cleanup();
 			}
+			ServerSettings.load();
 
 			Server.world = new ServerWorld(args[0], null);
 
@@ -76,6 +77,7 @@ public final class Server extends Pacer {
 				Protocols.CHAT.sendToClients(user.name + " #ffff00left");
 			}
 			usersList.remove(user);
+			AreaOfInterest.remove(user);
 			world.removeEntity(user.player);
 			users = usersList.toArray();
 		}
@@ -104,6 +106,7 @@ public final class Server extends Pacer {
 		for(User user : users) {
 			user.update();
 		}
+		world.chunkManager.prefetcher.update(users);
 		Entity[] entities = world.getEntities();
 		Protocols.ENTITY.sendToClients(entities, lastSentEntities, world.itemEntityManager);
 		lastSentEntities = entities;
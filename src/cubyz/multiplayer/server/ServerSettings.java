@@ -0,0 +1,49 @@
+package cubyz.multiplayer.server;
+
+import java.io.File;
+
+import cubyz.utils.MemoryGovernor;
+import cubyz.utils.ThreadPool;
+import cubyz.utils.WorkerPool;
+import pixelguys.json.JsonObject;
+import pixelguys.json.JsonParser;
+
+/**
+ * Stores the settings of the server, that aren't bound to a specific world.<br>
+ * Also handles loading them. Missing values are filled with the defaults, so they can be found and changed in the file.
+ */
+
+public final class ServerSettings {
+	private ServerSettings() {} // No instances allowed.
+
+	private static final String FILE = "serverSettings.json";
+
+	public static void load() {
+		JsonObject settings = new File(FILE).exists() ? JsonParser.parseObjectFromFile(FILE) : new JsonObject();
+
+		// Worker pools: {"threadPools": {"generation": {"threads": 6, "queueLimit": 0}, …}}. A queue limit of 0 means unlimited.
+		JsonObject threadPools = settings.getObjectOrNew("threadPools");
+		for(WorkerPool pool : ThreadPool.POOLS) {
+			JsonObject poolSettings = threadPools.getObjectOrNew(pool.name);
+			int threads = poolSettings.getInt("threads", pool.getThreadCount());
+			int queueLimit = poolSettings.getInt("queueLimit", pool.getQueueLimit() == Integer.MAX_VALUE ? 0 : pool.getQueueLimit());
+			pool.configure(threads, queueLimit);
+			poolSettings.put("threads", threads);
+			poolSettings.put("queueLimit", queueLimit);
+			threadPools.put(pool.name, poolSettings);
+		}
+		settings.put("threadPools", threadPools);
+
+		// The fraction of the maximum heap size that the caches may use together.
+		float cacheHeapFraction = settings.getFloat("cacheHeapFraction", MemoryGovernor.getHeapFraction());
+		MemoryGovernor.setHeapFraction(cacheHeapFraction);
+		settings.put("cacheHeapFraction", MemoryGovernor.getHeapFraction());
+
+		// The maximum upload rate to each user in KiB/s, 0 means unlimited.
+		int userBandwidthLimit = settings.getInt("userBandwidthLimit", User.getDefaultBandwidthLimit() >> 10);
+		User.setDefaultBandwidthLimit((int)Math.min(Integer.MAX_VALUE, (long)userBandwidthLimit << 10));
+		settings.put("userBandwidthLimit", User.getDefaultBandwidthLimit() >> 10);
+
+		JsonParser.storeToFile(settings, FILE);
+	}
+}
@@ -5,9 +5,11 @@ import cubyz.command.CommandSource;
 import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.UDPConnection;
 import cubyz.multiplayer.UDPConnectionManager;
+import cubyz.multiplayer.protocols.EntityPositionProtocol;
 import cubyz.utils.interpolation.GenericInterpolation;
 import cubyz.utils.interpolation.TimeDifference;
 import cubyz.utils.math.Bits;
+import cubyz.world.entity.EntitySnapshot;
 import cubyz.world.entity.Player;
 import org.joml.Vector3f;
 
@@ -23,13 +25,29 @@ public class User extends UDPConnection implements CommandSource {
 	public int renderDistance;
 	public float LODFactor;
 	public boolean receivedFirstEntityData = false;
+	/** The newest entity snapshot that the client confirmed. The next snapshots only contain the changes since then. */
+	public volatile EntitySnapshot acknowledgedSnapshot;
+	/** The last entity snapshots that were sent to this user, indexed by their id. */
+	public final EntitySnapshot[] sentEntitySnapshots = new EntitySnapshot[EntityPositionProtocol.HISTORY_SIZE];
 	public final String ipPort;
 
 	public Thread waitingThread;
 
+	/** In bytes per second, 0 means unlimited. */
+	private static volatile int defaultBandwidthLimit = 0;
+
+	public static void setDefaultBandwidthLimit(int bytesPerSecond) {
+		defaultBandwidthLimit = Math.max(0, bytesPerSecond);
+	}
+
+	public static int getDefaultBandwidthLimit() {
+		return defaultBandwidthLimit;
+	}
+
 	public User(UDPConnectionManager manager, String ipPort) throws InterruptedException {
 		super(manager, ipPort);
 		this.ipPort = ipPort;
+		setBandwidthLimit(defaultBandwidthLimit);
 		Protocols.HANDSHAKE.serverSide(this);
 		synchronized(this) {
 			waitingThread = Thread.currentThread();
@@ -67,6 +85,9 @@ public class User extends UDPConnection implements CommandSource {
 		player.vy = interpolation.outVelocity[1];
 		player.vz = interpolation.outVelocity[2];
 		lastTime = time;
+		if(!disconnected) {
+			AreaOfInterest.update(this);
+		}
 	}
 
 	public void receiveData(byte[] data, int offset) {
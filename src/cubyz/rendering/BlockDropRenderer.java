@@ -200,6 +200,13 @@ public final class BlockDropRenderer {
 			itemModelSSBO.bufferData(modelData.array);
 		}
 		
+		/**
+		 * @return the size of the model data in bytes.
+		 */
+		int getMemoryUsage() {
+			return 4*(3 + sizeX*sizeY*sizeZ);
+		}
+		
 		@Override
 		public int hashCode() {
 			return item.hashCode();
@@ -211,21 +218,18 @@ public final class BlockDropRenderer {
 		}
 	}
 	
-	private static Cache<ItemVoxelModel> voxelModels = new Cache<ItemVoxelModel>(new ItemVoxelModel[32][32]);
+	// Limits the model data on the GPU to 1 MiB, which is enough for about 1000 items with 16×16 textures.
+	private static final Cache<ItemVoxelModel> voxelModels = new Cache<>("itemVoxelModels", 1 << 20, ItemVoxelModel::getMemoryUsage, replace -> {
+		if(replace.index != -1)
+			freeIndices.add(replace);
+	});
 	
 	private static int getModelIndex(Item item) {
 		ItemVoxelModel compareObject = new ItemVoxelModel(item);
-		int hash = compareObject.hashCode() & voxelModels.cache.length-1;
-		synchronized(voxelModels.cache[hash]) {
-			// Check if it's already inside:
-			ItemVoxelModel result = voxelModels.find(compareObject, hash);
-			if(result != null) return result.index;
+		return voxelModels.findOrCreate(compareObject, () -> {
 			compareObject.init();
-			ItemVoxelModel replace = voxelModels.addToCache(compareObject, hash);
-			if(replace != null && replace.index != -1)
-				freeIndices.add(replace);
-			return compareObject.index;
-		}
+			return compareObject;
+		}).index;
 	}
 	
 	private static void renderItemDrops(FrustumIntersection frustumInt, Vector3f ambientLight, DirectionalLight directionalLight, Vector3d playerPosition) {
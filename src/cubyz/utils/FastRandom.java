@@ -19,11 +19,39 @@ public class FastRandom {
 		initialScramble();
 	}
 
+	/**
+	 * Creates a copy that continues with the same sequence.
+	 * @param other
+	 */
+	public FastRandom(FastRandom other) {
+		this.seed = other.seed;
+	}
+
 	public void setSeed(long seed) {
 		this.seed = seed;
 		initialScramble();
 	}
 
+	/**
+	 * Jumps forward in the sequence, as if next() was called the given number of times. Takes O(log(steps)).
+	 * @param steps
+	 */
+	public void skip(long steps) {
+		long stepMultiplier = multiplier;
+		long stepAddend = addend;
+		long totalMultiplier = 1;
+		long totalAddend = 0;
+		for(; steps != 0; steps >>>= 1) {
+			if((steps & 1) != 0) {
+				totalMultiplier = totalMultiplier*stepMultiplier & mask;
+				totalAddend = (totalAddend*stepMultiplier + stepAddend) & mask;
+			}
+			stepAddend = (stepMultiplier + 1)*stepAddend & mask;
+			stepMultiplier = stepMultiplier*stepMultiplier & mask;
+		}
+		seed = (seed*totalMultiplier + totalAddend) & mask;
+	}
+
 	private static long initialScramble(long seed) {
 		return (seed ^ multiplier) & mask;
 	}
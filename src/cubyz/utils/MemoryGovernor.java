@@ -0,0 +1,227 @@
+package cubyz.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.management.NotificationEmitter;
+
+import cubyz.utils.datastructures.Cache;
+
+/**
+ * Splits a fraction of the maximum heap size (-Xmx) between the registered caches.<br>
+ * Every cache starts with a share proportional to its default size. The shares are rebalanced periodically:
+ * Caches that are full and miss a lot get more memory, caches that don't use their budget give some away.<br>
+ * When the heap is still nearly full after a garbage collection all caches get shrunk, until the pressure is gone.
+ */
+public final class MemoryGovernor {
+	private MemoryGovernor() {} // No instances allowed.
+
+	private static final int UPDATE_INTERVAL = 2000; // milliseconds
+	private static final float GC_THRESHOLD = 0.85f; // The fraction of a heap pool that is considered as pressure, when it is still used after a garbage collection.
+	private static final float MIN_PRESSURE_FACTOR = 0.125f;
+	private static final float MIN_SHARE = 0.25f; // A cache never gets less than this fraction of its default share.
+	private static final float MAX_SHARE = 4; // … or more than this.
+
+	private static final class Share {
+		private final long defaultSize;
+		private final long limit;
+		private float weight = 1;
+		private long lastHits, lastMisses;
+		private float recentHitRate;
+		private Share(long defaultSize, long limit) {
+			this.defaultSize = defaultSize;
+			this.limit = limit;
+		}
+	}
+
+	private static final Map<Cache<?>, Share> caches = new WeakHashMap<>();
+	private static float heapFraction = 0.5f;
+	private static float pressureFactor = 1;
+	private static volatile boolean gcPressure = false;
+	private static long lastThresholdCount = 0;
+	private static Thread thread;
+
+	/**
+	 * Puts the cache under control of the governor. Its current size is used as the default share.
+	 * @param cache
+	 */
+	public static void register(Cache<?> cache) {
+		register(cache, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Puts the cache under control of the governor. Its current size is used as the default share.
+	 * @param cache
+	 * @param limit the cache never gets more memory than this, for example because each entry holds an open file.
+	 */
+	public static void register(Cache<?> cache, long limit) {
+		HashMap<Cache<?>, Long> budgets;
+		synchronized(caches) {
+			caches.put(cache, new Share(cache.getMaxBytes(), limit));
+			start();
+			budgets = computeBudgets();
+		}
+		applyBudgets(budgets);
+	}
+
+	/**
+	 * @param fraction of the maximum heap size that may be used by all caches together.
+	 */
+	public static void setHeapFraction(float fraction) {
+		HashMap<Cache<?>, Long> budgets;
+		synchronized(caches) {
+			heapFraction = Math.max(0.05f, Math.min(0.9f, fraction));
+			budgets = computeBudgets();
+		}
+		applyBudgets(budgets);
+	}
+
+	public static float getHeapFraction() {
+		return heapFraction;
+	}
+
+	/**
+	 * @return the memory that all caches together may use in bytes. Already reduced when there is GC pressure.
+	 */
+	public static long getBudget() {
+		return (long)(Runtime.getRuntime().maxMemory()*heapFraction*pressureFactor);
+	}
+
+	/**
+	 * @return 1 normally, less if the caches got shrunk because of GC pressure.
+	 */
+	public static float getPressureFactor() {
+		return pressureFactor;
+	}
+
+	private static void start() {
+		if(thread != null) return;
+		// Get notified when a heap pool is still nearly full after a garbage collection:
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0) {
+				pool.setCollectionUsageThreshold((long)(pool.getUsage().getMax()*GC_THRESHOLD));
+			}
+		}
+		((NotificationEmitter)ManagementFactory.getMemoryMXBean()).addNotificationListener((notification, handback) -> {
+			if(notification.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+				gcPressure = true;
+				synchronized(caches) {
+					caches.notify(); // The caches are shrunk on the governor thread, because evicting entries may take a while.
+				}
+			}
+		}, null, null);
+		thread = new Thread(MemoryGovernor::run, "Memory-Governor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void run() {
+		while(true) {
+			try {
+				HashMap<Cache<?>, Long> budgets;
+				synchronized(caches) {
+					if(!gcPressure) {
+						caches.wait(UPDATE_INTERVAL);
+					}
+					update();
+					budgets = computeBudgets();
+				}
+				applyBudgets(budgets);
+			} catch(InterruptedException e) {
+				return;
+			} catch(Throwable e) {
+				Logger.error(e);
+			}
+		}
+	}
+
+	/** Needs to be called with the lock held. */
+	private static void update() {
+		// The notification is only sent when the threshold gets crossed, so the count is needed to detect continued pressure:
+		long thresholdCount = getThresholdCount();
+		if(gcPressure || thresholdCount != lastThresholdCount) {
+			pressureFactor = Math.max(MIN_PRESSURE_FACTOR, pressureFactor*0.75f);
+			Logger.warning("Heap is nearly full after garbage collection. Shrinking the caches to " + (getBudget() >> 20) + " MiB.");
+		} else if(pressureFactor < 1) {
+			pressureFactor = Math.min(1, pressureFactor*1.05f);
+		}
+		gcPressure = false;
+		lastThresholdCount = thresholdCount;
+		// Rebalance by the hit rates since the last update:
+		for(Map.Entry<Cache<?>, Share> entry : caches.entrySet()) {
+			Cache<?> cache = entry.getKey();
+			Share share = entry.getValue();
+			long hits = cache.getHits() - share.lastHits;
+			long misses = cache.getMisses() - share.lastMisses;
+			share.lastHits += hits;
+			share.lastMisses += misses;
+			if(hits + misses == 0) continue;
+			share.recentHitRate = (float)hits/(hits + misses);
+			boolean full = cache.getMemoryUsage() > cache.getMaxBytes()*0.9f;
+			// A cache that doesn't use its budget won't profit from more memory.
+			float target = full ? 0.5f + 2*(1 - share.recentHitRate) : 0.5f;
+			share.weight = Math.max(MIN_SHARE, Math.min(MAX_SHARE, share.weight*0.75f + target*0.25f));
+		}
+	}
+
+	private static long getThresholdCount() {
+		long count = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()) {
+				count += pool.getCollectionUsageThresholdCount();
+			}
+		}
+		return count;
+	}
+
+	/** Needs to be called with the lock held. */
+	private static HashMap<Cache<?>, Long> computeBudgets() {
+		HashMap<Cache<?>, Long> budgets = new HashMap<>();
+		double total = 0;
+		for(Share share : caches.values()) {
+			total += share.defaultSize*(double)share.weight;
+		}
+		if(total == 0) return budgets;
+		long budget = getBudget();
+		for(Map.Entry<Cache<?>, Share> entry : caches.entrySet()) {
+			Share share = entry.getValue();
+			long size = (long)(budget*(share.defaultSize*(double)share.weight/total));
+			budgets.put(entry.getKey(), Math.min(share.limit, size));
+		}
+		return budgets;
+	}
+
+	/**
+	 * Shrinking a cache evicts entries, which may have to be stored first. So this happens outside of the lock.
+	 */
+	private static void applyBudgets(HashMap<Cache<?>, Long> budgets) {
+		for(Map.Entry<Cache<?>, Long> entry : budgets.entrySet()) {
+			entry.getKey().setMaxBytes(entry.getValue());
+		}
+	}
+
+	/**
+	 * @return a human readable summary, one line for the governor and one for each cache.
+	 */
+	public static ArrayList<String> getStatus() {
+		ArrayList<String> lines = new ArrayList<>();
+		synchronized(caches) {
+			long used = 0;
+			for(Cache<?> cache : caches.keySet()) {
+				used += cache.getMemoryUsage();
+			}
+			lines.add("Caches: " + (used >> 20) + "/" + (getBudget() >> 20) + " MiB (" + Math.round(heapFraction*100) + "% of heap" + (pressureFactor < 1 ? ", shrunk to " + Math.round(pressureFactor*100) + "% by GC pressure" : "") + ")");
+			for(Map.Entry<Cache<?>, Share> entry : caches.entrySet()) {
+				Cache<?> cache = entry.getKey();
+				lines.add("Cache " + cache.name + ": " + (cache.getMemoryUsage() >> 20) + "/" + (cache.getMaxBytes() >> 20) + " MiB, " + cache.size() + " entries, " + Math.round(entry.getValue().recentHitRate*100) + "% hits, " + cache.getEvictions() + " evictions");
+			}
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,174 @@
+package cubyz.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * A result that is computed by a single owner thread, which can split the work into parallel loops.<br>
+ * The iterations of a loop are handed out one by one: to the owner, to helper tasks on the generation pool
+ * and to every thread that waits for the result in {@link #join()}. So the waiting threads do some of the work instead of sleeping.
+ *
+ * @param <T> type of the result
+ */
+public class ParallelJob<T> {
+	private static final float HELPER_PRIORITY = 0; // Highest bucket, other threads are already waiting for the result.
+
+	private Loop currentLoop;
+	private boolean done = false;
+	private T result;
+	private Throwable error;
+
+	/**
+	 * Calls the body for every index in [0, count) and returns when all of them are done.
+	 * Only the owner may call this.
+	 * @param count
+	 * @param body must be thread safe.
+	 */
+	public void parallelFor(int count, IntConsumer body) {
+		Loop loop = new Loop(count, body);
+		synchronized(this) {
+			currentLoop = loop;
+			notifyAll();
+		}
+		int helpers = Math.min(count, ThreadPool.GENERATION.getThreadCount()) - 1;
+		for(int i = 0; i < helpers; i++) {
+			ThreadPool.addTask(new Helper(loop));
+		}
+		loop.help();
+		loop.await();
+		synchronized(this) {
+			currentLoop = null;
+		}
+		if(loop.error != null) {
+			rethrow(loop.error);
+		}
+	}
+
+	/**
+	 * Called by the owner when the result is ready. Wakes up all threads that wait in {@link #join()}.
+	 * @param result
+	 */
+	public synchronized void complete(T result) {
+		this.result = result;
+		done = true;
+		notifyAll();
+	}
+
+	/**
+	 * Called by the owner when the computation failed. The error is rethrown in all threads that wait in {@link #join()}.
+	 * @param error
+	 */
+	public synchronized void fail(Throwable error) {
+		this.error = error;
+		done = true;
+		notifyAll();
+	}
+
+	/**
+	 * Helps with the running loops of the owner until the result is ready.
+	 * @return the result
+	 */
+	public T join() {
+		Loop last = null;
+		boolean interrupted = false;
+		while(true) {
+			Loop loop;
+			synchronized(this) {
+				while(!done && (currentLoop == null || currentLoop == last)) {
+					try {
+						wait();
+					} catch(InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if(done) break;
+				loop = currentLoop;
+			}
+			loop.help();
+			last = loop;
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if(error != null) {
+			rethrow(error);
+		}
+		return result;
+	}
+
+	private static void rethrow(Throwable error) {
+		if(error instanceof RuntimeException) throw (RuntimeException)error;
+		if(error instanceof Error) throw (Error)error;
+		throw new RuntimeException(error);
+	}
+
+	private static final class Loop {
+		private final int count;
+		private final IntConsumer body;
+		private final AtomicInteger next = new AtomicInteger();
+		private int finished = 0;
+		private Throwable error;
+
+		private Loop(int count, IntConsumer body) {
+			this.count = count;
+			this.body = body;
+		}
+
+		/**
+		 * Runs iterations until there are none left. Some of them may still be running in other threads afterwards.
+		 */
+		private void help() {
+			int i;
+			while((i = next.getAndIncrement()) < count) {
+				Throwable error = null;
+				try {
+					body.accept(i);
+				} catch(Throwable e) {
+					error = e;
+				}
+				synchronized(this) {
+					if(this.error == null) this.error = error;
+					finished++;
+					if(finished == count) notifyAll();
+				}
+			}
+		}
+
+		private synchronized void await() {
+			boolean interrupted = false;
+			while(finished < count) {
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static final class Helper extends ThreadPool.Task {
+		private final Loop loop;
+
+		private Helper(Loop loop) {
+			this.loop = loop;
+		}
+
+		@Override
+		public float getPriority() {
+			return HELPER_PRIORITY;
+		}
+
+		@Override
+		public boolean isStillNeeded() {
+			return loop.next.get() < loop.count;
+		}
+
+		@Override
+		public void run() {
+			loop.help();
+		}
+	}
+}
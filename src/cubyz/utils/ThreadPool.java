@@ -1,83 +1,51 @@
 package cubyz.utils;
 
-import cubyz.utils.datastructures.BlockingMaxHeap;
-
+/**
+ * Distributes tasks to the {@link WorkerPool}s of the different workload classes.<br>
+ * Each pool has its own threads, so for example a burst of disk reads can't starve the terrain generation.
+ */
 public final class ThreadPool {
+	private ThreadPool() {} // No instances allowed.
 
-	private static final int REFRESH_TIME = 100; // The time after which all priorities get refreshed in milliseconds.
+	private static final int CPU_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
 
-	private static final Thread[] threads;
-	private static final BlockingMaxHeap<Task> loadList;
+	/** CPU-bound generation of chunks and everything they depend on. */
+	public static final WorkerPool GENERATION = new WorkerPool("generation", CPU_THREADS, Thread.MIN_PRIORITY);
+	/** Tasks that mostly wait for the disk, like loading chunks from region files. */
+	public static final WorkerPool IO = new WorkerPool("io", 2, Thread.MIN_PRIORITY);
+	/** Client side preparation of received chunks. */
+	public static final WorkerPool CLIENT_LOAD = new WorkerPool("clientLoad", Math.max(1, CPU_THREADS/2), Thread.MIN_PRIORITY);
 
-	static {
-		threads = new Thread[Math.max(1, Runtime.getRuntime().availableProcessors() - 2)];
-		for (int i = 0; i < threads.length; i++) {
-			Thread thread = new Thread(ThreadPool::run);
-			thread.setName("Worker-Thread-" + (i+1));
-			thread.setPriority(Thread.MIN_PRIORITY);
-			thread.setDaemon(true);
-			thread.start();
-			threads[i] = thread;
-		}
-		loadList = new BlockingMaxHeap<>(new Task[1024], threads.length);
-	}
+	public static final WorkerPool[] POOLS = {GENERATION, IO, CLIENT_LOAD};
 
-	private static void run() {
-		long lastUpdate = System.currentTimeMillis();
-		while (true) {
-			Task popped;
-			try {
-				popped = loadList.extractMax();
-			} catch (InterruptedException e) {
-				break;
-			}
-			try {
-				popped.run();
-			} catch (Throwable e) {
-				Logger.error("Could not run task " + popped + " !");
-				Logger.error(e);
-			}
-			if(Thread.currentThread() == threads[0] && System.currentTimeMillis() - lastUpdate > REFRESH_TIME) { // Only update priorities on the first worker thread and after a specific amount of time.
-				lastUpdate = System.currentTimeMillis();
-				// Update the priority of all elements:
-				Task[] array = loadList.toArray();
-				for(Task element : array) {
-					if (element != null) {
-						if(!element.isStillNeeded()) {
-							loadList.remove(element);
-							continue;
-						}
-						element.cachedPriority = element.getPriority();
-					}
-				}
-				loadList.updatePriority();
-			}
+	public static WorkerPool getPool(String name) {
+		for(WorkerPool pool : POOLS) {
+			if(pool.name.equals(name)) return pool;
 		}
+		return null;
 	}
 
 	public static void clear() {
-		loadList.clear();
-		// Wait until all in-progress tasks are done:
-		while(loadList.waitingThreadCount() < threads.length) {
-			try {
-				Thread.sleep(1);
-			} catch(Exception e) {}
+		for(WorkerPool pool : POOLS) {
+			pool.clear();
 		}
 	}
 
 	public static void addTask(Task task) {
-		if(task.isStillNeeded()) {
-			task.cachedPriority = task.getPriority();
-			loadList.add(task);
-		}
+		task.getPool().addTask(task);
 	}
 
 	public static int getQueueSize() {
-		return loadList.size();
+		int size = 0;
+		for(WorkerPool pool : POOLS) {
+			size += pool.getQueueSize();
+		}
+		return size;
 	}
 
 	public abstract static class Task implements Comparable<Task>, Runnable {
-		private float cachedPriority;
+		float cachedPriority;
+		long addTime;
 		@Override
 		public int compareTo(Task other) {
 			return (int)Math.signum(cachedPriority - other.cachedPriority);
@@ -85,5 +53,12 @@ public final class ThreadPool {
 
 		public abstract float getPriority();
 		public abstract boolean isStillNeeded();
+
+		/**
+		 * @return the pool of the workload class this task belongs to.
+		 */
+		public WorkerPool getPool() {
+			return GENERATION;
+		}
 	}
 }
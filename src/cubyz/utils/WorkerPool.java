@@ -0,0 +1,329 @@
+package cubyz.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import cubyz.utils.ThreadPool.Task;
+import cubyz.utils.datastructures.BucketQueue;
+
+/**
+ * A named set of worker threads for one class of workload.<br>
+ * Every worker owns a queue of priority buckets and idle workers steal from the others, so the workers don't fight over a single lock.
+ * Tasks are only sorted approximately, into bands of {@value #BUCKET_WIDTH} priority units.<br>
+ * The threads are started when the first task is added, so the pool can be configured until then.
+ */
+public final class WorkerPool {
+	private static final int REFRESH_TIME = 100; // The time after which a worker refreshes some of its queued tasks in milliseconds.
+	private static final int REFRESH_COUNT = 64; // The maximum number of tasks that get refreshed at once. Keeps the workers responsive.
+	private static final int BUCKET_COUNT = BucketQueue.MAX_BUCKETS;
+	private static final float BUCKET_WIDTH = 32; // Priorities are usually negative distances in blocks, so this is one chunk.
+	private static final int METRICS_WINDOW = 5000; // The time in milliseconds over which the metrics are collected.
+	private static final int HISTOGRAM_SIZE = 40; // Bucket i counts wait times below 2^i µs.
+
+	public final String name;
+	private final int threadPriority;
+	private int threadCount;
+	private int queueLimit = Integer.MAX_VALUE;
+
+	private volatile boolean started = false;
+	private WorkerThread[] threads;
+	private BucketQueue<Task>[] queues;
+	private final AtomicInteger nextQueue = new AtomicInteger();
+	private final AtomicInteger queuedTasks = new AtomicInteger();
+	/** Includes workers that are currently looking for a task. */
+	private final AtomicInteger runningTasks = new AtomicInteger();
+	private final Object idleLock = new Object();
+	private volatile int idleThreads = 0;
+
+	// Metrics:
+	private final AtomicLong rejectedTasks = new AtomicLong();
+	private volatile AtomicLongArray currentWaitTimes = new AtomicLongArray(HISTOGRAM_SIZE);
+	private long[] lastWaitTimes = new long[HISTOGRAM_SIZE];
+	private volatile long windowStart = System.currentTimeMillis();
+
+	/**
+	 * @param name used for the thread names and the settings.
+	 * @param threadCount default number of threads
+	 * @param threadPriority
+	 */
+	public WorkerPool(String name, int threadCount, int threadPriority) {
+		this.name = name;
+		this.threadCount = Math.max(1, threadCount);
+		this.threadPriority = threadPriority;
+	}
+
+	/**
+	 * Changes the size of the pool. Only has an effect before the first task was added.
+	 * @param threadCount
+	 * @param queueLimit the maximum number of queued tasks. Further tasks are rejected.
+	 */
+	public void configure(int threadCount, int queueLimit) {
+		synchronized(this) {
+			if(started) {
+				Logger.warning("Worker pool " + name + " is already running. The new settings will be used after a restart.");
+				return;
+			}
+			this.threadCount = Math.max(1, threadCount);
+			this.queueLimit = queueLimit <= 0 ? Integer.MAX_VALUE : queueLimit;
+		}
+	}
+
+	public int getThreadCount() {
+		return threadCount;
+	}
+
+	public int getQueueLimit() {
+		return queueLimit;
+	}
+
+	private void start() {
+		synchronized(this) {
+			if(started) return;
+			@SuppressWarnings({ "rawtypes", "unchecked" }) // Java can't create generic arrays. Only queues of tasks are put into it.
+			BucketQueue<Task>[] queueArray = new BucketQueue[threadCount];
+			queues = queueArray;
+			threads = new WorkerThread[threadCount];
+			for (int i = 0; i < threadCount; i++) {
+				queues[i] = new BucketQueue<>(BUCKET_COUNT);
+			}
+			for (int i = 0; i < threadCount; i++) {
+				WorkerThread thread = new WorkerThread(i);
+				thread.setName("Worker-Thread-" + name + "-" + (i+1));
+				thread.setPriority(threadPriority);
+				thread.setDaemon(true);
+				thread.start();
+				threads[i] = thread;
+			}
+			started = true;
+		}
+	}
+
+	private static int getBucket(float priority) {
+		float bucket = -priority/BUCKET_WIDTH;
+		if(!(bucket > 0)) return 0; // Also catches NaN.
+		return (int)Math.min(BUCKET_COUNT - 1, bucket);
+	}
+
+	/**
+	 * Takes a task from the own queue, unless another queue has more important tasks.
+	 */
+	private Task findTask(int index) {
+		BucketQueue<Task> own = queues[index];
+		int bestBucket = own.bestBucket();
+		int victim = -1;
+		for(int i = 1; i < queues.length; i++) {
+			int other = (index + i) % queues.length;
+			int bucket = queues[other].bestBucket();
+			if(bucket < bestBucket) {
+				bestBucket = bucket;
+				victim = other;
+			}
+		}
+		Task task = null;
+		if(victim != -1) {
+			task = queues[victim].steal();
+		}
+		if(task == null) {
+			task = own.poll();
+		}
+		for(int i = 1; i < queues.length && task == null; i++) {
+			task = queues[(index + i) % queues.length].steal();
+		}
+		return task;
+	}
+
+	/**
+	 * Refreshes the priority of a few tasks from the own queue and removes those that are no longer needed.
+	 * Only a small part is refreshed at once, so tasks keep flowing.
+	 * @return the bucket to continue with next time.
+	 */
+	private int refreshSome(int index, int bucket) {
+		BucketQueue<Task> own = queues[index];
+		for(int i = 0; i < REFRESH_COUNT; i++) {
+			Task task = own.pollBucket(bucket);
+			if(task == null) {
+				return (bucket + 1) % BUCKET_COUNT;
+			}
+			if(!task.isStillNeeded()) {
+				queuedTasks.decrementAndGet();
+				continue;
+			}
+			task.cachedPriority = task.getPriority();
+			own.add(getBucket(task.cachedPriority), task);
+		}
+		return bucket;
+	}
+
+	private void run(int index) {
+		long lastUpdate = System.currentTimeMillis();
+		int refreshBucket = 0;
+		while (true) {
+			if(System.currentTimeMillis() - lastUpdate > REFRESH_TIME) {
+				lastUpdate = System.currentTimeMillis();
+				refreshBucket = refreshSome(index, refreshBucket);
+			}
+			runningTasks.incrementAndGet();
+			Task task = findTask(index);
+			if(task == null) {
+				runningTasks.decrementAndGet();
+				synchronized(idleLock) {
+					idleThreads++;
+					try {
+						if(queuedTasks.get() == 0) {
+							idleLock.wait(REFRESH_TIME);
+						}
+					} catch(InterruptedException e) {
+						break;
+					} finally {
+						idleThreads--;
+					}
+				}
+				continue;
+			}
+			queuedTasks.decrementAndGet();
+			try {
+				if(!task.isStillNeeded()) continue;
+				float priority = task.getPriority();
+				if(getBucket(priority) > getBucket(task.cachedPriority)) {
+					// The task got less important while waiting. Put it back so more important tasks go first.
+					task.cachedPriority = priority;
+					queuedTasks.incrementAndGet();
+					queues[index].add(getBucket(priority), task);
+					continue;
+				}
+				recordWaitTime(System.nanoTime() - task.addTime);
+				task.run();
+			} catch (Throwable e) {
+				Logger.error("Could not run task " + task + " !");
+				Logger.error(e);
+			} finally {
+				runningTasks.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes all queued tasks and waits until the running ones are done.
+	 */
+	public void clear() {
+		if(!started) return;
+		for(BucketQueue<Task> queue : queues) {
+			while(queue.poll() != null) {
+				queuedTasks.decrementAndGet();
+			}
+		}
+		// Wait until all in-progress tasks are done:
+		while(runningTasks.get() != 0) {
+			try {
+				Thread.sleep(1);
+			} catch(Exception e) {}
+		}
+	}
+
+	public void addTask(Task task) {
+		if(!started) start();
+		if(task.isStillNeeded()) {
+			if(queuedTasks.incrementAndGet() > queueLimit) {
+				queuedTasks.decrementAndGet();
+				rejectedTasks.incrementAndGet();
+				return;
+			}
+			task.cachedPriority = task.getPriority();
+			task.addTime = System.nanoTime();
+			int index;
+			Thread thread = Thread.currentThread();
+			if(thread instanceof WorkerThread && ((WorkerThread)thread).getPool() == this) {
+				index = ((WorkerThread)thread).index; // Keep follow-up tasks local, other workers can still steal them.
+			} else {
+				index = Math.floorMod(nextQueue.getAndIncrement(), queues.length);
+			}
+			queues[index].add(getBucket(task.cachedPriority), task);
+			if(idleThreads != 0) {
+				synchronized(idleLock) {
+					idleLock.notify();
+				}
+			}
+		}
+	}
+
+	public int getQueueSize() {
+		return queuedTasks.get();
+	}
+
+	public long getRejectedTasks() {
+		return rejectedTasks.get();
+	}
+
+	private void recordWaitTime(long nanos) {
+		long micros = Math.max(0, nanos/1000);
+		int index = Math.min(HISTOGRAM_SIZE - 1, 64 - Long.numberOfLeadingZeros(micros));
+		rotateWindow();
+		currentWaitTimes.incrementAndGet(index);
+	}
+
+	private void rotateWindow() {
+		long now = System.currentTimeMillis();
+		if(now - windowStart < METRICS_WINDOW) return;
+		synchronized(this) {
+			if(now - windowStart < METRICS_WINDOW) return;
+			AtomicLongArray finished = currentWaitTimes;
+			currentWaitTimes = new AtomicLongArray(HISTOGRAM_SIZE);
+			long[] last = new long[HISTOGRAM_SIZE];
+			if(now - windowStart < 2*METRICS_WINDOW) { // Otherwise the window is outdated.
+				for(int i = 0; i < HISTOGRAM_SIZE; i++) {
+					last[i] = finished.get(i);
+				}
+			}
+			lastWaitTimes = last;
+			windowStart = now;
+		}
+	}
+
+	/**
+	 * @return the number of tasks that were started per second during the last metrics window.
+	 */
+	public float getThroughput() {
+		rotateWindow();
+		long total = 0;
+		for(long count : lastWaitTimes) {
+			total += count;
+		}
+		return total*1000.0f/METRICS_WINDOW;
+	}
+
+	/**
+	 * @return the 99th percentile of the time tasks waited in the queue in milliseconds, during the last metrics window. Rounded up to the next power of 2 in µs.
+	 */
+	public float getWaitTimeP99() {
+		rotateWindow();
+		long[] histogram = lastWaitTimes;
+		long total = 0;
+		for(long count : histogram) {
+			total += count;
+		}
+		if(total == 0) return 0;
+		long remaining = total - (total*99 + 99)/100;
+		for(int i = HISTOGRAM_SIZE - 1; i >= 0; i--) {
+			remaining -= histogram[i];
+			if(remaining < 0) {
+				return (1L << i)/1000.0f;
+			}
+		}
+		return 0;
+	}
+
+	private final class WorkerThread extends Thread {
+		private final int index;
+		private WorkerThread(int index) {
+			this.index = index;
+		}
+		private WorkerPool getPool() {
+			return WorkerPool.this;
+		}
+		@Override
+		public void run() {
+			WorkerPool.this.run(index);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package cubyz.utils.datastructures;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import cubyz.utils.ThreadPool;
+
+/**
+ * A {@link Cache} that generates missing entries itself.<br>
+ * Each key that is currently generated has exactly one load with a future. Threads that need the same key wait for that future,
+ * so no lock is held during the generation and unrelated keys never wait for each other.<br>
+ * A load that was scheduled on the generation pool, but didn't start yet, is run by the first thread that needs it.
+ *
+ * @param <T>
+ */
+
+public class AsyncLoadingCache<T> extends Cache<T> {
+	private static final float LOAD_PRIORITY = 0; // Highest bucket, somebody is going to wait for the result.
+
+	private final ConcurrentHashMap<Object, Load> loads = new ConcurrentHashMap<>();
+
+	/**
+	 * @param name used in the metrics
+	 * @param maxBytes the memory budget
+	 * @param sizeOf returns the size of an entry in bytes
+	 */
+	public AsyncLoadingCache(String name, long maxBytes, ToLongFunction<T> sizeOf) {
+		super(name, maxBytes, sizeOf);
+	}
+
+	/**
+	 * @param name used in the metrics
+	 * @param maxBytes the memory budget
+	 * @param sizeOf returns the size of an entry in bytes
+	 * @param onEviction gets called, outside of any lock, for every entry that gets evicted or replaced. Not called by {@link #clear()}. May be null.
+	 */
+	public AsyncLoadingCache(String name, long maxBytes, ToLongFunction<T> sizeOf, Consumer<T> onEviction) {
+		super(name, maxBytes, sizeOf, onEviction);
+	}
+
+	/**
+	 * Returns the entry of the given key or generates it in the calling thread.<br>
+	 * If another thread is already generating it, this waits for the result.
+	 * @param key needs consistent hashCode and equals
+	 * @param generator may return null, in which case nothing gets added. Other threads that wait for the same key then try again with their own generator.
+	 * @return
+	 */
+	public T get(Object key, Supplier<T> generator) {
+		T result = find(key);
+		if(result != null) return result;
+		return await(key, generator, getLoad(key, generator));
+	}
+
+	/**
+	 * Removes all entries and forgets the loads that didn't finish yet. Loads that are still running may add their entry afterwards.
+	 */
+	@Override
+	public void clear() {
+		loads.clear();
+		super.clear();
+	}
+
+	@Override
+	public T findOrCreate(Object key, Supplier<T> generator) {
+		return get(key, generator);
+	}
+
+	/**
+	 * Returns the entry of the given key or schedules its generation on the generation pool.
+	 * @param key needs consistent hashCode and equals
+	 * @param generator may return null, in which case nothing gets added.
+	 * @return a future that completes when the entry is ready.
+	 */
+	public CompletableFuture<T> getAsync(Object key, Supplier<T> generator) {
+		return getAsync(key, generator, LOAD_PRIORITY);
+	}
+
+	/**
+	 * Same as above, but with a priority for the generation. Useful for prefetching entries that aren't needed right away.<br>
+	 * If the key is already loading, its priority gets raised to the given priority.
+	 * @param key needs consistent hashCode and equals
+	 * @param generator may return null, in which case nothing gets added.
+	 * @param priority
+	 * @return a future that completes when the entry is ready.
+	 */
+	public CompletableFuture<T> getAsync(Object key, Supplier<T> generator, float priority) {
+		T result = peek(key);
+		if(result != null) return CompletableFuture.completedFuture(result);
+		Load load = getLoad(key, generator);
+		load.raisePriority(priority);
+		load.schedule();
+		return load.future;
+	}
+
+	/**
+	 * Returns the entries of all keys. The missing ones are generated in parallel on the generation pool,
+	 * while the calling thread generates the ones that no worker took yet.
+	 * @param keys need consistent hashCode and equals
+	 * @param results gets filled with the entries in the order of the keys.
+	 * @param generator generates the entry of one key. May return null, in which case nothing gets added.
+	 */
+	public <K> void getAll(K[] keys, T[] results, Function<K, T> generator) {
+		ArrayList<Supplier<T>> generators = new ArrayList<>(keys.length);
+		ArrayList<Load> pending = new ArrayList<>(keys.length);
+		for(int i = 0; i < keys.length; i++) {
+			results[i] = find(keys[i]);
+			if(results[i] != null) {
+				generators.add(null);
+				pending.add(null);
+				continue;
+			}
+			K key = keys[i];
+			Supplier<T> keyGenerator = () -> generator.apply(key);
+			Load load = getLoad(key, keyGenerator);
+			load.raisePriority(LOAD_PRIORITY);
+			load.schedule();
+			generators.add(keyGenerator);
+			pending.add(load);
+		}
+		for(int i = 0; i < keys.length; i++) {
+			if(pending.get(i) == null) continue;
+			results[i] = await(keys[i], generators.get(i), pending.get(i));
+		}
+	}
+
+	/**
+	 * @return the load of the key, which may already be running in another thread.
+	 */
+	private Load getLoad(Object key, Supplier<T> generator) {
+		Load load = new Load(key, generator);
+		Load existing = loads.putIfAbsent(key, load);
+		if(existing != null) return existing;
+		// It may have been finished between the lookup and now:
+		T result = peek(key);
+		if(result != null && load.started.compareAndSet(false, true)) {
+			load.future.complete(result);
+			loads.remove(key, load);
+		}
+		return load;
+	}
+
+	private T await(Object key, Supplier<T> generator, Load load) {
+		while(true) {
+			load.run(); // Does nothing if it was already started.
+			T result;
+			try {
+				result = load.future.join();
+			} catch(CompletionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+				if(cause instanceof Error) throw (Error)cause;
+				throw e;
+			}
+			if(result != null || load.generator == generator) return result;
+			// The generator of the other thread didn't produce anything, so try again with the own one:
+			result = peek(key);
+			if(result != null) return result;
+			load = getLoad(key, generator);
+		}
+	}
+
+	private final class Load extends ThreadPool.Task {
+		private final Object key;
+		private final Supplier<T> generator;
+		private final CompletableFuture<T> future = new CompletableFuture<>();
+		private final AtomicBoolean started = new AtomicBoolean();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private volatile float priority = -Float.MAX_VALUE;
+
+		private Load(Object key, Supplier<T> generator) {
+			this.key = key;
+			this.generator = generator;
+		}
+
+		private void schedule() {
+			if(!started.get() && scheduled.compareAndSet(false, true)) {
+				ThreadPool.addTask(this);
+			}
+		}
+
+		private synchronized void raisePriority(float priority) {
+			this.priority = Math.max(this.priority, priority);
+		}
+
+		@Override
+		public float getPriority() {
+			return priority;
+		}
+
+		@Override
+		public boolean isStillNeeded() {
+			return !started.get();
+		}
+
+		@Override
+		public void run() {
+			if(!started.compareAndSet(false, true)) return;
+			try {
+				T result = generator.get();
+				if(result != null) {
+					put(key, result);
+				}
+				future.complete(result);
+			} catch(Throwable e) {
+				future.completeExceptionally(e);
+			} finally {
+				loads.remove(key, this);
+			}
+		}
+	}
+}
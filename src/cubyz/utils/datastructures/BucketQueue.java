@@ -0,0 +1,134 @@
+package cubyz.utils.datastructures;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An approximate priority queue made of up to 64 FIFO buckets, where bucket 0 is the most important one.
+ * Thread safe and lock-free.<br>
+ * Elements are taken from the front of the most important bucket by the owner and from the back by other threads, so both rarely touch the same element.
+ *
+ * @param <T>
+ */
+
+public class BucketQueue<T> {
+	public static final int MAX_BUCKETS = 64;
+	private final ConcurrentLinkedDeque<T>[] buckets;
+	/** Bit i is set if bucket i might contain elements. */
+	private final AtomicLong nonEmptyMask = new AtomicLong();
+	private final AtomicInteger size = new AtomicInteger();
+
+	public BucketQueue(int bucketCount) {
+		assert bucketCount > 0 && bucketCount <= MAX_BUCKETS : "Bucket count must be between 1 and " + MAX_BUCKETS + ".";
+		@SuppressWarnings({ "rawtypes", "unchecked" }) // Java can't create generic arrays. Only deques of T are put into it.
+		ConcurrentLinkedDeque<T>[] bucketArray = new ConcurrentLinkedDeque[bucketCount];
+		buckets = bucketArray;
+		for(int i = 0; i < bucketCount; i++) {
+			buckets[i] = new ConcurrentLinkedDeque<>();
+		}
+	}
+
+	public int bucketCount() {
+		return buckets.length;
+	}
+
+	/**
+	 * Adds an element to the back of the given bucket.
+	 * @param bucket will be clamped to the valid range.
+	 * @param element
+	 */
+	public void add(int bucket, T element) {
+		bucket = Math.max(0, Math.min(buckets.length - 1, bucket));
+		buckets[bucket].offerLast(element);
+		size.incrementAndGet();
+		long bit = 1L << bucket;
+		long mask = nonEmptyMask.get();
+		while((mask & bit) == 0 && !nonEmptyMask.compareAndSet(mask, mask | bit)) {
+			mask = nonEmptyMask.get();
+		}
+	}
+
+	/**
+	 * @return the index of the most important bucket that might contain elements, or {@value #MAX_BUCKETS} if it's empty.
+	 */
+	public int bestBucket() {
+		return Long.numberOfTrailingZeros(nonEmptyMask.get());
+	}
+
+	/**
+	 * Removes the first element of the most important bucket.
+	 * @return null if empty
+	 */
+	public T poll() {
+		return take(true);
+	}
+
+	/**
+	 * Removes the last element of the most important bucket. Meant for threads that don't own this queue.
+	 * @return null if empty
+	 */
+	public T steal() {
+		return take(false);
+	}
+
+	/**
+	 * Removes the first element of the given bucket, without looking at other buckets.
+	 * @param bucket
+	 * @return null if the bucket is empty
+	 */
+	public T pollBucket(int bucket) {
+		T element = buckets[bucket].pollFirst();
+		if(element == null) {
+			markEmpty(bucket);
+		} else {
+			size.decrementAndGet();
+		}
+		return element;
+	}
+
+	private T take(boolean first) {
+		while(true) {
+			long mask = nonEmptyMask.get();
+			if(mask == 0) return null;
+			int bucket = Long.numberOfTrailingZeros(mask);
+			T element = first ? buckets[bucket].pollFirst() : buckets[bucket].pollLast();
+			if(element != null) {
+				size.decrementAndGet();
+				return element;
+			}
+			markEmpty(bucket);
+		}
+	}
+
+	private void markEmpty(int bucket) {
+		long bit = 1L << bucket;
+		long mask = nonEmptyMask.get();
+		while((mask & bit) != 0 && !nonEmptyMask.compareAndSet(mask, mask & ~bit)) {
+			mask = nonEmptyMask.get();
+		}
+		// Another thread might have added something in the meantime. Its bit might have been cleared above, so it needs to be set again:
+		if(!buckets[bucket].isEmpty()) {
+			mask = nonEmptyMask.get();
+			while((mask & bit) == 0 && !nonEmptyMask.compareAndSet(mask, mask | bit)) {
+				mask = nonEmptyMask.get();
+			}
+		}
+	}
+
+	/**
+	 * @return the approximate number of elements.
+	 */
+	public int size() {
+		return Math.max(0, size.get());
+	}
+
+	/**
+	 * Removes all elements.
+	 */
+	public void clear() {
+		for(int i = 0; i < buckets.length; i++) {
+			while(pollBucket(i) != null);
+		}
+	}
+}
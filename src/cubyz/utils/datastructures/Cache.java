@@ -1,72 +1,330 @@
 package cubyz.utils.datastructures;
 
-import java.util.Arrays;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
-/** 
-* Implements a simple set associative cache with LRU replacement strategy.
-*/
+/**
+ * A thread safe cache that is limited by the memory its entries use.<br>
+ * Lookups are lock-free. The entries are split into shards, each with its own lock and CLOCK eviction:
+ * Every hit marks the entry as referenced and the clock hand evicts the first entry that wasn't referenced since its last pass.<br>
+ * The size of an entry is only measured once, when it is added.
+ *
+ * @param <T>
+ */
 
 public class Cache<T> {
-	public final T[][] cache;
+	private static final int SHARD_SHIFT = 4;
+	private static final int SHARD_COUNT = 1 << SHARD_SHIFT;
+	private static final int GENERATION_LOCKS = 64; // Must be a power of 2!
+
+	private static final ArrayList<WeakReference<Cache<?>>> caches = new ArrayList<>();
+
+	public final String name;
+	private final ToLongFunction<T> sizeOf;
+	private final Consumer<T> onEviction;
+	private final ConcurrentHashMap<Object, Node<T>> index = new ConcurrentHashMap<>();
+	private final Shard<T>[] shards;
+	private final Object[] generationLocks = new Object[GENERATION_LOCKS];
+	private volatile long maxBytes;
+
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param name used in the metrics
+	 * @param maxBytes the memory budget
+	 * @param sizeOf returns the size of an entry in bytes
+	 */
+	public Cache(String name, long maxBytes, ToLongFunction<T> sizeOf) {
+		this(name, maxBytes, sizeOf, null);
+	}
+
+	/**
+	 * @param name used in the metrics
+	 * @param maxBytes the memory budget
+	 * @param sizeOf returns the size of an entry in bytes
+	 * @param onEviction gets called, outside of any lock, for every entry that gets evicted or replaced. Not called by {@link #clear()}. May be null.
+	 */
+	public Cache(String name, long maxBytes, ToLongFunction<T> sizeOf, Consumer<T> onEviction) {
+		this.name = name;
+		this.maxBytes = maxBytes;
+		this.sizeOf = sizeOf;
+		this.onEviction = onEviction;
+		@SuppressWarnings({ "rawtypes", "unchecked" }) // Java can't create generic arrays. Only shards of T are put into it.
+		Shard<T>[] shardArray = new Shard[SHARD_COUNT];
+		shards = shardArray;
+		for(int i = 0; i < SHARD_COUNT; i++) {
+			shards[i] = new Shard<>();
+		}
+		for(int i = 0; i < GENERATION_LOCKS; i++) {
+			generationLocks[i] = new Object();
+		}
+		synchronized(caches) {
+			caches.add(new WeakReference<>(this));
+		}
+	}
+
+	/**
+	 * @return all caches that are still in use.
+	 */
+	public static List<Cache<?>> getCaches() {
+		ArrayList<Cache<?>> result = new ArrayList<>();
+		synchronized(caches) {
+			caches.removeIf(ref -> {
+				Cache<?> cache = ref.get();
+				if(cache == null) return true;
+				result.add(cache);
+				return false;
+			});
+		}
+		return result;
+	}
+
+	private static int spread(Object key) {
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return hash*0x45d9f3b;
+	}
+
+	private Shard<T> getShard(int hash) {
+		return shards[hash >>> (32 - SHARD_SHIFT)];
+	}
+
+	/**
+	 * Tries to find the entry of the given key.
+	 * @param key needs consistent hashCode and equals
+	 * @return null if it isn't in the cache.
+	 */
+	public T find(Object key) {
+		Node<T> node = index.get(key);
+		if(node == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		node.referenced = true;
+		hits.incrementAndGet();
+		return node.value;
+	}
+
 	/**
-	 * The cache will be initialized using the given layout.
-	 * @param layout first dimension gives the hash size, second dimension gives the associativity.
+	 * Same as {@link #find(Object)}, but doesn't count as a hit or miss. Used for lookups that aren't caused by an actual need, like prefetching.
+	 * @param key
+	 * @return null if it isn't in the cache.
 	 */
-	public Cache(T[][] layout) {
-		cache = layout;
+	public T peek(Object key) {
+		Node<T> node = index.get(key);
+		return node == null ? null : node.value;
 	}
-	
-	public int cacheRequests = 0;
-	public int cacheMisses = 0;
-	
+
 	/**
-	 * Tries to find the entry that fits to the supplied hashable.
-	 * @param compare
-	 * @param index the hash that is fit within cache.length
+	 * Returns the entry of the given key or creates it.<br>
+	 * Concurrent calls for the same key only create it once.
+	 * @param key needs consistent hashCode and equals
+	 * @param generator may return null, in which case nothing gets added.
 	 * @return
 	 */
-	public T find(Object compare, int index) {
-		cacheRequests++;
-		synchronized(cache[index]) {
-			for(int i = 0; i < cache[index].length; i++) {
-				T ret = cache[index][i];
-				if (compare.equals(ret)) {
-					if (i != 0) { // No need to put it up front when it already is on the front.
-						System.arraycopy(cache[index], 0, cache[index], 1, i);
-						cache[index][0] = ret;
-					}
-					return ret;
-				}
+	public T findOrCreate(Object key, Supplier<T> generator) {
+		T result = find(key);
+		if(result != null) return result;
+		synchronized(generationLocks[spread(key) & GENERATION_LOCKS - 1]) {
+			// Try again in case it was already created in another thread:
+			Node<T> node = index.get(key);
+			if(node != null) {
+				node.referenced = true;
+				return node.value;
+			}
+			result = generator.get();
+			if(result != null) {
+				put(key, result);
 			}
+			return result;
 		}
-		cacheMisses++;
-		return null;
 	}
-	
-	public void clear() {
-		for(T[] line : cache) {
-			Arrays.fill(line, null);
+
+	/**
+	 * Adds a new entry into the cache and evicts old entries if the memory budget is exceeded.
+	 * @param key needs consistent hashCode and equals
+	 * @param value
+	 */
+	public void put(Object key, T value) {
+		int hash = spread(key);
+		Shard<T> shard = getShard(hash);
+		Node<T> node = new Node<>(key, value, sizeOf.applyAsLong(value));
+		ArrayList<T> evicted = new ArrayList<>();
+		synchronized(shard) {
+			Node<T> old = index.put(key, node);
+			if(old != null) {
+				shard.remove(old);
+				usedBytes.addAndGet(-old.size);
+				evicted.add(old.value);
+			}
+			shard.add(node);
+			usedBytes.addAndGet(node.size);
+			trim(shard, evicted);
+		}
+		notifyEvicted(evicted);
+	}
+
+	/** Needs to be called with the shard lock held. */
+	private void trim(Shard<T> shard, ArrayList<T> evicted) {
+		long shardBudget = maxBytes/SHARD_COUNT;
+		while(shard.bytes > shardBudget && shard.ring.size() > 1) { // Keep at least one entry, even if it is bigger than the budget.
+			Node<T> victim = shard.advanceClock();
+			index.remove(victim.key, victim);
+			shard.remove(victim);
+			usedBytes.addAndGet(-victim.size);
+			evictions.incrementAndGet();
+			evicted.add(victim.value);
+		}
+	}
+
+	private void notifyEvicted(ArrayList<T> evicted) {
+		if(onEviction == null) return;
+		for(T value : evicted) {
+			onEviction.accept(value);
+		}
+	}
+
+	/**
+	 * Changes the memory budget. Evicts entries right away if the cache got smaller.
+	 * @param maxBytes
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		for(Shard<T> shard : shards) {
+			ArrayList<T> evicted = new ArrayList<>();
+			synchronized(shard) {
+				trim(shard, evicted);
+			}
+			notifyEvicted(evicted);
 		}
 	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
 	/**
-	 * Adds a new object into the cache.
-	 * @param t
-	 * @param index the hash that is fit within cache.length
-	 * @return the object that got kicked out of the cache if any.
+	 * Removes all entries, without calling the eviction callback.
 	 */
-	public T addToCache(T t, int index) {
-		T previous = cache[index][cache[index].length - 1];
-		System.arraycopy(cache[index], 0, cache[index], 1, cache[index].length - 1);
-		cache[index][0] = t;
-		return previous;
+	public void clear() {
+		for(Shard<T> shard : shards) {
+			synchronized(shard) {
+				for(Node<T> node : shard.ring) {
+					index.remove(node.key, node);
+					usedBytes.addAndGet(-node.size);
+				}
+				shard.ring.clear();
+				shard.bytes = 0;
+				shard.hand = 0;
+			}
+		}
 	}
 
+	/**
+	 * Calls the consumer for every entry. Entries that get added or removed in the meantime may or may not be visited.
+	 * @param consumer
+	 */
 	public void foreach(Consumer<T> consumer) {
-		for(T[] array : cache) {
-			for(T obj : array) {
-				if (obj != null)
-					consumer.accept(obj);
+		for(Node<T> node : index.values()) {
+			consumer.accept(node.value);
+		}
+	}
+
+	/**
+	 * @return the number of entries.
+	 */
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return the sum of the entry sizes in bytes.
+	 */
+	public long getMemoryUsage() {
+		return usedBytes.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return hits/(hits + misses) or 0 if the cache was never used.
+	 */
+	public float getHitRate() {
+		long hits = this.hits.get();
+		long total = hits + misses.get();
+		return total == 0 ? 0 : (float)hits/total;
+	}
+
+	private static final class Node<T> {
+		private final Object key;
+		private final T value;
+		private final long size;
+		private volatile boolean referenced = true; // New entries get one pass of the clock hand before they can be evicted.
+		private int slot;
+
+		private Node(Object key, T value, long size) {
+			this.key = key;
+			this.value = value;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * The entries of one shard, in the order the clock hand visits them. Not thread safe.
+	 */
+	private static final class Shard<T> {
+		private final ArrayList<Node<T>> ring = new ArrayList<>();
+		private int hand = 0;
+		private long bytes = 0;
+
+		private void add(Node<T> node) {
+			node.slot = ring.size();
+			ring.add(node);
+			bytes += node.size;
+		}
+
+		private void remove(Node<T> node) {
+			// Move the last entry into the gap:
+			Node<T> last = ring.remove(ring.size() - 1);
+			if(last != node) {
+				last.slot = node.slot;
+				ring.set(node.slot, last);
+			}
+			bytes -= node.size;
+		}
+
+		/**
+		 * @return the next entry that wasn't referenced since the last pass.
+		 */
+		private Node<T> advanceClock() {
+			while(true) {
+				if(hand >= ring.size()) hand = 0;
+				Node<T> node = ring.get(hand);
+				if(node.referenced) {
+					node.referenced = false;
+					hand++;
+				} else {
+					return node;
+				}
 			}
 		}
 	}
@@ -0,0 +1,39 @@
+package cubyz.utils.math;
+
+/**
+ * Reads the values that were packed by a {@link BitWriter}.
+ */
+
+public final class BitReader {
+	private final byte[] data;
+	private int position;
+	private final int end;
+	private long buffer = 0;
+	private int bufferedBits = 0;
+
+	public BitReader(byte[] data, int offset, int length) {
+		this.data = data;
+		position = offset;
+		end = offset + length;
+	}
+
+	/**
+	 * @param bits between 0 and 32
+	 * @return the value, without sign extension.
+	 * @throws IndexOutOfBoundsException if there are not enough bits left.
+	 */
+	public int read(int bits) {
+		assert bits >= 0 && bits <= 32 : "Can't read " + bits + " bits at once.";
+		while(bufferedBits < bits) {
+			if(position == end) throw new IndexOutOfBoundsException("Reached the end of the data.");
+			buffer = buffer << 8 | (data[position++] & 0xff);
+			bufferedBits += 8;
+		}
+		bufferedBits -= bits;
+		return (int)(buffer >>> bufferedBits & ((1L << bits) - 1));
+	}
+
+	public boolean readBoolean() {
+		return read(1) != 0;
+	}
+}
@@ -0,0 +1,50 @@
+package cubyz.utils.math;
+
+import java.util.Arrays;
+
+/**
+ * Packs values with an arbitrary number of bits into a byte array. Big-endian, like {@link Bits}.
+ */
+
+public final class BitWriter {
+	private byte[] data;
+	private int size = 0;
+	private long buffer = 0;
+	private int bufferedBits = 0;
+
+	public BitWriter(int initialCapacity) {
+		data = new byte[Math.max(1, initialCapacity)];
+	}
+
+	/**
+	 * @param value only the lowest bits are used.
+	 * @param bits between 0 and 32
+	 */
+	public void write(int value, int bits) {
+		assert bits >= 0 && bits <= 32 : "Can't write " + bits + " bits at once.";
+		buffer = buffer << bits | (value & 0xffffffffL & ((1L << bits) - 1));
+		bufferedBits += bits;
+		while(bufferedBits >= 8) {
+			bufferedBits -= 8;
+			if(size == data.length) {
+				data = Arrays.copyOf(data, data.length*2);
+			}
+			data[size++] = (byte)(buffer >>> bufferedBits);
+		}
+	}
+
+	public void writeBoolean(boolean value) {
+		write(value ? 1 : 0, 1);
+	}
+
+	/**
+	 * @return the written bits. The last byte is filled with zeros.
+	 */
+	public byte[] toByteArray() {
+		byte[] result = Arrays.copyOf(data, size + (bufferedBits != 0 ? 1 : 0));
+		if(bufferedBits != 0) {
+			result[size] = (byte)(buffer << (8 - bufferedBits));
+		}
+		return result;
+	}
+}
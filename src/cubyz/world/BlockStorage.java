@@ -0,0 +1,319 @@
+package cubyz.world;
+
+import java.util.Arrays;
+
+import cubyz.utils.math.Bits;
+
+/**
+ * Stores the blocks of a chunk in a compact way.<br>
+ * Chunks usually only contain a handful of different blocks, so instead of the full int only an index into a local palette is stored.
+ * The indices are bit-packed into longs and automatically get wider(0, 1, 2, 4, 8 or 16 bits) when more different blocks are added.<br>
+ * With 0 bits the chunk consists of a single block, like air above the terrain or stone deep below, and needs almost no memory.
+ */
+public final class BlockStorage {
+	public static final int SIZE = Chunk.chunkSize*Chunk.chunkSize*Chunk.chunkSize;
+	private static final int MAX_BIT_SHIFT = 4; // 16 bits are always enough, because a chunk can contain at most 32768 different blocks.
+
+	/**
+	 * Everything a reader needs. Gets replaced as a whole when the layout changes, so concurrent readers never see a half changed layout.
+	 */
+	private static final class Data {
+		/** log2 of the bits per index or -1 if all blocks are the same. */
+		private final int bitShift;
+		private final long[] words;
+		private final int[] palette;
+
+		private Data(int bitShift, long[] words, int[] palette) {
+			this.bitShift = bitShift;
+			this.words = words;
+			this.palette = palette;
+		}
+
+		private int getPaletteIndex(int index) {
+			if(bitShift == -1) return 0;
+			int indicesPerWordShift = 6 - bitShift;
+			long word = words[index >>> indicesPerWordShift];
+			int shift = (index & ((1 << indicesPerWordShift) - 1)) << bitShift;
+			return (int)(word >>> shift) & ((1 << (1 << bitShift)) - 1);
+		}
+
+		private void setPaletteIndex(int index, int paletteIndex) {
+			int indicesPerWordShift = 6 - bitShift;
+			int wordIndex = index >>> indicesPerWordShift;
+			int shift = (index & ((1 << indicesPerWordShift) - 1)) << bitShift;
+			long mask = ((1L << (1 << bitShift)) - 1) << shift;
+			words[wordIndex] = words[wordIndex] & ~mask | (long)paletteIndex << shift;
+		}
+
+		private int getCapacity() {
+			return bitShift == -1 ? 1 : Math.min(1 << (1 << bitShift), SIZE);
+		}
+	}
+
+	private volatile Data data = new Data(-1, null, new int[] {0});
+	private int paletteSize = 1;
+	// Maps block to palette index. Only used by writers.
+	private int[] lookupKeys = new int[4];
+	private int[] lookupValues = new int[4];
+
+	public BlockStorage() {
+		Arrays.fill(lookupValues, -1);
+		addToLookup(0, 0);
+	}
+
+	public int get(int index) {
+		while(true) {
+			Data data = this.data;
+			int paletteIndex = data.getPaletteIndex(index);
+			int[] palette = data.palette;
+			if(paletteIndex < palette.length) return palette[paletteIndex];
+			// The palette was replaced concurrently.
+		}
+	}
+
+	public void set(int index, int block) {
+		synchronized(this) {
+			unsynchronizedSet(index, block);
+		}
+	}
+
+	/**
+	 * Sets multiple blocks to the same value with a single palette lookup.
+	 * @param start the first index
+	 * @param stride the distance between two indices, for example {@code Chunk.getIndex(0, 1, 0)} for a vertical column.
+	 * @param count
+	 * @param block
+	 */
+	public void setStrided(int start, int stride, int count, int block) {
+		if(count <= 0) return;
+		synchronized(this) {
+			unsynchronizedSet(start, block);
+			Data data = this.data;
+			if(data.bitShift == -1) return; // The whole chunk is already filled with that block.
+			int paletteIndex = findInLookup(block);
+			for(int i = 1; i < count; i++) {
+				data.setPaletteIndex(start + i*stride, paletteIndex);
+			}
+		}
+	}
+
+	/**
+	 * Replaces all blocks with the given block. This is the cheapest way to fill a chunk with a single block.
+	 * @param block
+	 */
+	public void fill(int block) {
+		synchronized(this) {
+			clearLookup(4);
+			addToLookup(block, 0);
+			paletteSize = 1;
+			data = new Data(-1, null, new int[] {block});
+		}
+	}
+
+	/**
+	 * Goes back to the uniform layout if only a single block is left.
+	 * The indices never get narrower on their own, so this should be called after larger changes, like the terrain generation.
+	 */
+	public void compact() {
+		synchronized(this) {
+			Data data = this.data;
+			if(data.bitShift == -1) return;
+			int paletteIndex = data.getPaletteIndex(0);
+			long pattern = 0;
+			for(int shift = 0; shift < 64; shift += 1 << data.bitShift) {
+				pattern |= (long)paletteIndex << shift;
+			}
+			for(long word : data.words) {
+				if(word != pattern) return;
+			}
+			fill(data.palette[paletteIndex]);
+		}
+	}
+
+	/**
+	 * @return true if all blocks are the same.
+	 */
+	public boolean isUniform() {
+		return data.bitShift == -1;
+	}
+
+	/**
+	 * @return the block if {@link #isUniform()}, otherwise -1.
+	 */
+	public int getUniformBlock() {
+		Data data = this.data;
+		return data.bitShift == -1 ? data.palette[0] : -1;
+	}
+
+	/**
+	 * @return the number of bits used per block.
+	 */
+	public int getBitsPerBlock() {
+		int bitShift = data.bitShift;
+		return bitShift == -1 ? 0 : 1 << bitShift;
+	}
+
+	/**
+	 * @return a rough estimate of the heap memory used by the block data.
+	 */
+	public int getMemoryUsage() {
+		Data data = this.data;
+		return 64 + (data.words == null ? 0 : 8*data.words.length) + 4*data.palette.length + 8*lookupKeys.length;
+	}
+
+	/**
+	 * Stores all blocks as big-endian ints.
+	 * If all blocks are the same only a single int is stored.
+	 * @return an array of size 4 or 4*{@value #SIZE}
+	 */
+	public byte[] toByteArray() {
+		Data data = this.data;
+		if(data.bitShift == -1) {
+			byte[] out = new byte[4];
+			Bits.putInt(out, 0, data.palette[0]);
+			return out;
+		}
+		byte[] out = new byte[4*SIZE];
+		for(int i = 0; i < SIZE; i++) {
+			Bits.putInt(out, 4*i, data.palette[data.getPaletteIndex(i)]);
+		}
+		return out;
+	}
+
+	/**
+	 * Loads all blocks from big-endian ints, as created by {@link #toByteArray()}.
+	 * @param in
+	 * @param length 4 or 4*{@value #SIZE}
+	 */
+	public void fromByteArray(byte[] in, int length) {
+		assert length == 4 || length == 4*SIZE : "Invalid data length " + length;
+		synchronized(this) {
+			fill(Bits.getInt(in, 0));
+			if(length == 4) return;
+			for(int i = 1; i < SIZE; i++) {
+				unsynchronizedSet(i, Bits.getInt(in, 4*i));
+			}
+		}
+	}
+
+	private void unsynchronizedSet(int index, int block) {
+		int paletteIndex = findInLookup(block);
+		if(paletteIndex == -1) {
+			paletteIndex = addToPalette(index, block);
+		}
+		Data data = this.data;
+		if(data.bitShift == -1) return; // paletteIndex must be 0 here.
+		data.setPaletteIndex(index, paletteIndex);
+	}
+
+	private int addToPalette(int index, int block) {
+		Data data = this.data;
+		if(paletteSize == data.getCapacity()) {
+			data = compactOrWiden(index);
+		}
+		int[] palette = data.palette;
+		if(paletteSize == palette.length) {
+			// Only happens for 16 bit indices, where the palette grows in smaller steps.
+			palette = Arrays.copyOf(palette, Math.min(palette.length*2, data.getCapacity()));
+			data = new Data(data.bitShift, data.words, palette);
+		}
+		palette[paletteSize] = block;
+		this.data = data;
+		addToLookup(block, paletteSize);
+		return paletteSize++;
+	}
+
+	/**
+	 * Removes unused palette entries. If that isn't enough to fit another block, the indices get wider.
+	 * @param replacedIndex the block at this index is about to be replaced, so it doesn't count as used.
+	 */
+	private Data compactOrWiden(int replacedIndex) {
+		Data data = this.data;
+		boolean[] used = new boolean[paletteSize];
+		if(data.bitShift == -1) {
+			used[0] = true;
+		} else {
+			for(int i = 0; i < SIZE; i++) {
+				if(i != replacedIndex) {
+					used[data.getPaletteIndex(i)] = true;
+				}
+			}
+		}
+		int usedCount = 0;
+		int[] remap = new int[paletteSize];
+		for(int i = 0; i < paletteSize; i++) {
+			remap[i] = used[i] ? usedCount++ : -1;
+		}
+		int bitShift = data.bitShift;
+		if(usedCount == paletteSize) {
+			bitShift++;
+		}
+		assert bitShift <= MAX_BIT_SHIFT : "A chunk can't contain more than " + SIZE + " different blocks.";
+		int bits = 1 << bitShift;
+		int capacity = Math.min(1 << bits, SIZE);
+		int[] palette = new int[bitShift == MAX_BIT_SHIFT ? Math.max(512, usedCount*2) : capacity];
+		for(int i = 0; i < paletteSize; i++) {
+			if(remap[i] != -1) {
+				palette[remap[i]] = data.palette[i];
+			}
+		}
+		long[] words = new long[SIZE >> (6 - bitShift)];
+		Data newData = new Data(bitShift, words, palette);
+		for(int i = 0; i < SIZE; i++) {
+			int paletteIndex = remap[data.getPaletteIndex(i)];
+			if(paletteIndex > 0) { // -1 only happens at the replaced index, which gets overwritten anyways.
+				newData.setPaletteIndex(i, paletteIndex);
+			}
+		}
+		paletteSize = usedCount;
+		clearLookup(Math.max(4, Integer.highestOneBit(usedCount)*4));
+		for(int i = 0; i < usedCount; i++) {
+			addToLookup(palette[i], i);
+		}
+		return newData;
+	}
+
+	private void clearLookup(int size) {
+		if(lookupKeys.length != size) {
+			lookupKeys = new int[size];
+			lookupValues = new int[size];
+		}
+		Arrays.fill(lookupValues, -1);
+	}
+
+	private int findInLookup(int block) {
+		int mask = lookupKeys.length - 1;
+		int slot = block*-1640531535 & mask;
+		while(true) {
+			if(lookupValues[slot] == -1) return -1;
+			if(lookupKeys[slot] == block) return lookupValues[slot];
+			slot = slot + 1 & mask;
+		}
+	}
+
+	private void addToLookup(int block, int paletteIndex) {
+		if(paletteSize*2 >= lookupKeys.length) { // Keep the load factor low, so lookups stay fast.
+			int[] oldKeys = lookupKeys;
+			int[] oldValues = lookupValues;
+			lookupKeys = new int[oldKeys.length*2];
+			lookupValues = new int[oldKeys.length*2];
+			Arrays.fill(lookupValues, -1);
+			for(int i = 0; i < oldKeys.length; i++) {
+				if(oldValues[i] != -1) {
+					insertIntoLookup(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+		insertIntoLookup(block, paletteIndex);
+	}
+
+	private void insertIntoLookup(int block, int paletteIndex) {
+		int mask = lookupKeys.length - 1;
+		int slot = block*-1640531535 & mask;
+		while(lookupValues[slot] != -1 && lookupKeys[slot] != block) {
+			slot = slot + 1 & mask;
+		}
+		lookupKeys[slot] = block;
+		lookupValues[slot] = paletteIndex;
+	}
+}
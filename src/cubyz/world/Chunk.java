@@ -1,14 +1,15 @@
 package cubyz.world;
 
+import java.lang.ref.Cleaner;
+
 import cubyz.Constants;
 import cubyz.world.terrain.CaveBiomeMap;
 import org.joml.Vector3d;
 
-import cubyz.client.GameLauncher;
 import cubyz.utils.Logger;
-import cubyz.utils.math.Bits;
 import cubyz.world.save.ChunkIO;
 import cubyz.world.terrain.CaveMap;
+import cubyz.world.terrain.GenerationStage;
 import cubyz.world.terrain.TerrainGenerationProfile;
 import cubyz.world.terrain.generators.Generator;
 
@@ -23,19 +24,47 @@ public abstract class Chunk extends SavableChunk {
 	public static final int chunkMask = chunkSize - 1;
 	
 	public final World world;
-	protected final int[] blocks = new int[chunkSize*chunkSize*chunkSize];
+	protected final BlockStorage blocks = new BlockStorage();
 	
 	private boolean wasChanged = false;
-	/** When a chunk is cleaned, it won't be saved by the ChunkManager anymore, so following changes need to be saved directly. */
-	private boolean wasCleaned = false;
+	private final Lifecycle lifecycle = new Lifecycle();
 	protected boolean generated = false;
 	
 	public final int width;
 
+	/**
+	 * The part of the chunk that the leak detection needs. It must not reference the chunk itself, otherwise the chunk would never become unreachable.
+	 */
+	private static final class Lifecycle implements Runnable {
+		/** The number of owners(MetaChunks and caches) that still hold this chunk. Changes of unowned chunks are saved directly. */
+		private int owners = 0;
+		private String name;
+
+		@Override
+		public void run() {
+			if(owners != 0) {
+				Logger.warning("Chunk " + name + " was garbage collected while it still had " + owners + " owner(s). Some owner forgot to release it.");
+			}
+		}
+	}
+
+	private static final boolean DETECT_LEAKS;
+	static {
+		boolean assertions = false;
+		assert assertions = true;
+		DETECT_LEAKS = assertions;
+	}
+	/** Only used when assertions are enabled. */
+	private static final Cleaner LEAK_DETECTOR = DETECT_LEAKS ? Cleaner.create() : null;
+
 	public Chunk(World world, int wx, int wy, int wz, int voxelSize) {
 		super(wx, wy, wz, voxelSize);
 		this.world = world;
 		width = voxelSize*chunkSize;
+		if(DETECT_LEAKS) {
+			lifecycle.name = wx + " " + wy + " " + wz + " " + voxelSize;
+			LEAK_DETECTOR.register(this, lifecycle);
+		}
 	}
 	/**
 	 * This is useful to convert for loops to work for reduced resolution:<br>
@@ -77,6 +106,21 @@ public abstract class Chunk extends SavableChunk {
 	 * @param newBlock
 	 */
 	public abstract void updateBlockInGeneration(int x, int y, int z, int newBlock);
+
+	/**
+	 * Fills a vertical range of blocks, see {@link #updateBlockInGeneration(int, int, int, int)}.
+	 * Subclasses should override this with a bulk operation on their storage.
+	 * @param x relative x without considering resolution.
+	 * @param z relative z without considering resolution.
+	 * @param yBottom relative y of the lowest block without considering resolution.
+	 * @param yTop relative y of the highest block, inclusive.
+	 * @param newBlock
+	 */
+	public void updateBlockColumnInGeneration(int x, int z, int yBottom, int yTop, int newBlock) {
+		for(int y = yBottom; y <= yTop; y += voxelSize) {
+			updateBlockInGeneration(x, y, z, newBlock);
+		}
+	}
 	
 	/**
 	 * Updates a block if it is inside this chunk.<br>
@@ -96,13 +140,23 @@ public abstract class Chunk extends SavableChunk {
 	 */
 	public void generate(long seed, TerrainGenerationProfile terrainGenerationProfile) {
 		assert !generated : "Seriously, why would you generate this chunk twice???";
-		if(!ChunkIO.loadChunkFromFile(world, this)) {
+		long startTime = GenerationStage.CHUNK_FILE.start();
+		boolean loaded = ChunkIO.loadChunkFromFile(world, this);
+		GenerationStage.CHUNK_FILE.end(startTime);
+		if(!loaded) {
+			startTime = GenerationStage.CHUNK_INPUTS.start();
 			CaveMap caveMap = new CaveMap(this);
 			CaveBiomeMap biomeMap = new CaveBiomeMap(this);
+			GenerationStage.CHUNK_INPUTS.end(startTime);
 			
 			for (Generator g : terrainGenerationProfile.generators) {
+				GenerationStage stage = GenerationStage.get(g);
+				startTime = stage.start();
 				g.generate(seed ^ g.getGeneratorSeed(), wx, wy, wz, this, caveMap, biomeMap);
+				stage.end(startTime);
 			}
+			// Fully solid chunks are written block by block, so they need to be compacted afterwards to become uniform.
+			blocks.compact();
 		}
 		generated = true;
 	}
@@ -122,30 +176,64 @@ public abstract class Chunk extends SavableChunk {
 				&& z < width;
 	}
 	
+	/**
+	 * Uniform chunks, like air above the terrain or stone deep below, are stored as a single int and can skip most of the work in meshing and transmission.
+	 * @return true if all blocks in this chunk are the same.
+	 */
+	public boolean isUniform() {
+		return blocks.isUniform();
+	}
+
+	/**
+	 * @return the block that fills this chunk or -1 if the chunk isn't {@link #isUniform() uniform}.
+	 */
+	public int getUniformBlock() {
+		return blocks.getUniformBlock();
+	}
+
+	/**
+	 * @return a rough estimate of the heap memory used by this chunk in bytes.
+	 */
+	public int getMemoryUsage() {
+		return 128 + blocks.getMemoryUsage();
+	}
+	
 	@Override
 	public int getWidth() {
 		return width;
 	}
 	
 	public void setChanged() {
-		wasChanged = true;
 		synchronized(this) {
-			if(wasCleaned) {
+			wasChanged = true;
+			if(!(world instanceof ServerWorld)) return; // Chunks on the client are never saved.
+			((ServerWorld)world).chunkManager.dirtyChunks.add(this);
+			if(lifecycle.owners == 0) {
 				save();
 			}
 		}
 	}
 	
-	public void clean() {
+	/**
+	 * Needs to be called by every MetaChunk or cache that keeps this chunk. Changes are kept in memory, until the last owner {@link #release() releases} it.
+	 */
+	public void retain() {
 		synchronized(this) {
-			wasCleaned = true;
-			save();
+			lifecycle.owners++;
 		}
 	}
 
-	public void unclean() {
+	/**
+	 * Saves the chunk if this was the last owner. Following changes will be saved directly.
+	 */
+	public void release() {
 		synchronized(this) {
-			wasCleaned = false;
+			assert lifecycle.owners > 0 : "Chunk was released more often than retained: " + this;
+			lifecycle.owners--;
+			if(lifecycle.owners <= 0) {
+				lifecycle.owners = 0;
+				save();
+			}
 		}
 	}
 	
@@ -158,43 +246,40 @@ public abstract class Chunk extends SavableChunk {
 	}
 	
 	/**
-	 * Saves this chunk.
+	 * Saves this chunk. The lower resolution chunks are updated later, see {@link LodPropagator}.
 	 */
 	public void save() {
-		if(wasChanged) {
-			ChunkIO.storeChunkToFile(world, this);
+		synchronized(this) {
+			if(!wasChanged) return;
 			wasChanged = false;
-			// Update the next lod chunk:
-			if(voxelSize != 1 << Constants.HIGHEST_LOD) {
-				if(world instanceof ServerWorld) {
-					ReducedChunk chunk = ((ServerWorld)world).chunkManager.getOrGenerateReducedChunk(wx, wy, wz, voxelSize*2);
-					chunk.updateFromLowerResolution(this);
-				} else {
-					Logger.error("Not implemented: ");
-					Logger.error(new Exception());
-				}
+			if(world instanceof ServerWorld) {
+				((ServerWorld)world).chunkManager.dirtyChunks.remove(this);
+			}
+		}
+		ChunkIO.storeChunkToFile(world, this);
+		// Update the next lod chunk:
+		if(voxelSize != 1 << Constants.HIGHEST_LOD) {
+			if(world instanceof ServerWorld) {
+				((ServerWorld)world).chunkManager.lodPropagator.markDirty(this);
+			} else {
+				Logger.error("Not implemented: ");
+				Logger.error(new Exception());
 			}
 		}
 	}
 	
 	@Override
 	public byte[] saveToByteArray() {
-		byte[] data = new byte[4*blocks.length];
-		for(int i = 0; i < blocks.length; i++) {
-			Bits.putInt(data, i*4, blocks[i]);
-		}
-		return data;
+		return blocks.toByteArray();
 	}
 	
 	@Override
 	public boolean loadFromByteArray(byte[] data, int outputLength) {
-		if(outputLength != 4*blocks.length) {
+		if(outputLength != 4*BlockStorage.SIZE && outputLength != 4) {
 			Logger.error("Chunk is corrupted(invalid data length "+outputLength+") : " + this);
 			return false;
 		}
-		for(int i = 0; i < blocks.length; i++) {
-			blocks[i] = Bits.getInt(data, i*4);
-		}
+		blocks.fromByteArray(data, outputLength);
 		generated = true;
 		return true;
 	}
@@ -216,13 +301,4 @@ public abstract class Chunk extends SavableChunk {
 		assert (x & chunkMask) == x && (y & chunkMask) == y && (z & chunkMask) == z : "Your coordinates are outside this chunk. You should be happy this assertion caught it.";
 		return (x << chunkShift) | (y << chunkShift2) | z;
 	}
-	
-	@Override
-	public void finalize() {
-		if(wasChanged) {
-			Logger.crash("Unsaved chunk: "+wx+" "+wy+" "+wz+" "+voxelSize+" "+wasCleaned);
-			clean();
-			GameLauncher.instance.exit();
-		}
-	}
 }
@@ -1,11 +1,18 @@
 package cubyz.world;
 
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.BooleanSupplier;
 
 import cubyz.multiplayer.Protocols;
+import cubyz.multiplayer.server.AreaOfInterest;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
+import cubyz.utils.Logger;
+import cubyz.utils.MemoryGovernor;
+import cubyz.utils.ParallelJob;
 import cubyz.utils.ThreadPool;
+import cubyz.utils.WorkerPool;
+import cubyz.utils.datastructures.AsyncLoadingCache;
 import cubyz.utils.datastructures.Cache;
 import cubyz.utils.math.CubyzMath;
 import cubyz.world.save.ChunkIO;
@@ -22,38 +29,90 @@ public class ChunkManager {
 
 	public final TerrainGenerationProfile terrainGenerationProfile;
 
-	// There will be at most 1 GiB of reduced and 500 MB of normal chunks in here.
-	private static final int REDUCED_CHUNK_CACHE_MASK = 2047;
-	private static final int NORMAL_CHUNK_CACHE_MASK = 1023;
-	private final Cache<ReducedChunk> reducedChunkCache = new Cache<>(new ReducedChunk[REDUCED_CHUNK_CACHE_MASK+1][4]);
-	private final Cache<NormalChunk> normalChunkCache = new Cache<>(new NormalChunk[NORMAL_CHUNK_CACHE_MASK+1][4]);
-	// There will be at most 1 GiB of map data in here.
-	private static final int[] MAP_CACHE_MASK = {
-		7, // 256 MiB // 4(1 in best-case) maps are needed at most for each player. So 32 will be enough for 8(32 in best case) player groups.
-		31, // 256 MiB
-		63, // 128 MiB
-		255, // 128 MiB
-		511, // 64 MiB
-		2047, // 64 MiB
-	};
-	@SuppressWarnings("unchecked")
-	private final Cache<MapFragment>[] mapCache = new Cache[] {
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[0] + 1][4]),
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[1] + 1][4]),
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[2] + 1][4]),
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[3] + 1][4]),
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[4] + 1][4]),
-	    new Cache<>(new MapFragment[MAP_CACHE_MASK[5] + 1][4]),
+	final LodPropagator lodPropagator = new LodPropagator(this);
+	final DirtyChunkRegistry dirtyChunks = new DirtyChunkRegistry();
+	public final ChunkPrefetcher prefetcher = new ChunkPrefetcher(this);
+
+	// The default sizes of the caches. The MemoryGovernor scales them to fit into the heap and rebalances them at runtime.
+	private static final long REDUCED_CHUNK_CACHE_SIZE = 1L << 30;
+	private static final long NORMAL_CHUNK_CACHE_SIZE = 1L << 29;
+	private final AsyncLoadingCache<ReducedChunk> reducedChunkCache = new AsyncLoadingCache<>("reducedChunks", REDUCED_CHUNK_CACHE_SIZE, ReducedChunk::getMemoryUsage, ReducedChunk::release);
+	private final AsyncLoadingCache<NormalChunk> normalChunkCache = new AsyncLoadingCache<>("normalChunks", NORMAL_CHUNK_CACHE_SIZE, NormalChunk::getMemoryUsage, NormalChunk::release);
+	private static final long VISIBILITY_CACHE_SIZE = 1L << 27;
+	/** The last visibility data that was sent for each lod chunk. It gets updated incrementally when the reduced chunks change. */
+	private final Cache<ReducedChunkVisibilityData> visibilityCache = new Cache<>("visibilityData", VISIBILITY_CACHE_SIZE, ReducedChunkVisibilityData::getMemoryUsage);
+	private static final long[] MAP_CACHE_SIZE = {
+		256L << 20, // 4(1 in best-case) maps are needed at most for each player. So 32 will be enough for 8(32 in best case) player groups.
+		256L << 20,
+		128L << 20,
+		128L << 20,
+		64L << 20,
+		64L << 20,
 	};
+	@SuppressWarnings({ "rawtypes", "unchecked" }) // Java can't create generic arrays. Only caches of map fragments are put into it.
+	private final Cache<MapFragment>[] mapCache = new Cache[MAP_CACHE_SIZE.length];
+	{
+		for(int i = 0; i < mapCache.length; i++) {
+			mapCache[i] = new Cache<>("mapFragments" + (1 << i), MAP_CACHE_SIZE[i], MapFragment::getMemoryUsage);
+			MemoryGovernor.register(mapCache[i]);
+		}
+		MemoryGovernor.register(reducedChunkCache);
+		MemoryGovernor.register(normalChunkCache);
+		MemoryGovernor.register(visibilityCache);
+	}
+	/** The map fragments that are currently generated. Threads that need one of them help with its generation. */
+	private final HashMap<MapFragmentCompare, ParallelJob<MapFragment>> mapGenerations = new HashMap<>();
+	/** Guarded by {@link #mapGenerations}. */
+	private final HashMap<MapFragmentCompare, MapFragmentPrefetchTask> mapPrefetches = new HashMap<>();
+
+	private class MapFragmentPrefetchTask extends ThreadPool.Task {
+		private final MapFragmentCompare data;
+		// Guarded by mapGenerations:
+		private float priority = -Float.MAX_VALUE;
+		private boolean queued = false;
+
+		private MapFragmentPrefetchTask(MapFragmentCompare data) {
+			this.data = data;
+		}
+
+		@Override
+		public float getPriority() {
+			synchronized(mapGenerations) {
+				return priority;
+			}
+		}
+
+		@Override
+		public boolean isStillNeeded() {
+			boolean needed = mapCache[CubyzMath.binaryLog(data.voxelSize)].peek(data) == null;
+			if(!needed) {
+				synchronized(mapGenerations) {
+					mapPrefetches.remove(data, this);
+				}
+			}
+			return needed;
+		}
+
+		@Override
+		public void run() {
+			synchronized(mapGenerations) {
+				mapPrefetches.remove(data, this);
+			}
+			getOrGenerateMapFragment(data.wx, data.wz, data.voxelSize);
+		}
+	}
 
 	private class ChunkLoadTask extends ThreadPool.Task {
 		private final ChunkData ch;
 		private final long creationTime;
 		private final User source;
+		/** Normal chunks are first looked up on disk in the io pool and only get generated if they aren't stored yet. */
+		private boolean loadFromFile;
 		public ChunkLoadTask(ChunkData ch, User source) {
 			this.ch = ch;
 			this.source = source;
 			creationTime = System.currentTimeMillis();
+			loadFromFile = ch.voxelSize == 1;
 		}
 		@Override
 		public float getPriority() {
@@ -80,13 +139,7 @@ public class ChunkManager {
 			}
 			if(System.currentTimeMillis() - creationTime > 10000) { // Only remove stuff after 10 seconds to account for trouble when for example teleporting.
 				for(User user : Server.users) {
-					double minDistSquare = ch.getMinDistanceSquared(user.player.getPosition().x, user.player.getPosition().y, user.player.getPosition().z);
-					//                                                                   ↓ Margin for error. (diagonal of 1 chunk)
-					double targetRenderDistance = (user.renderDistance*Chunk.chunkSize + Chunk.chunkSize*Math.sqrt(3));//*Math.pow(user.LODFactor, Math.log(ch.voxelSize)/Math.log(2));
-					if(ch.voxelSize != 1) {
-						targetRenderDistance *= ch.voxelSize*user.LODFactor;
-					}
-					if(minDistSquare <= targetRenderDistance*targetRenderDistance) {
+					if(AreaOfInterest.isInRenderDistance(user, ch)) {
 						return true;
 					}
 				}
@@ -95,9 +148,26 @@ public class ChunkManager {
 			return true;
 		}
 
+		@Override
+		public WorkerPool getPool() {
+			return loadFromFile ? ThreadPool.IO : ThreadPool.GENERATION;
+		}
+
 		@Override
 		public void run() {
-			synchronousGenerate(ch, source);
+			if(loadFromFile) {
+				loadFromFile = false;
+				NormalChunk chunk = getOrLoadNormalChunk(ch);
+				if(chunk == null) {
+					// Not stored yet, so it needs to be generated. Its inputs can be generated by other workers until this task gets its turn:
+					prefetchInputs(ch, getPriority());
+					ThreadPool.addTask(this);
+					return;
+				}
+				sendChunk(chunk, source, this::isStillNeeded);
+				return;
+			}
+			synchronousGenerate(ch, source, this::isStillNeeded);
 		}
 	}
 
@@ -112,6 +182,9 @@ public class ChunkManager {
 	}
 
 	public void queueChunk(ChunkData ch, User source) {
+		if(ch.voxelSize == 1) {
+			prefetcher.onRequest(ch);
+		}
 		if(ch.voxelSize == 1 && !(ch instanceof NormalChunk)) {
 			// Special case: Normal chunk is queued
 			// If the chunk doesn't exist yet, it is generated.
@@ -119,20 +192,38 @@ public class ChunkManager {
 			// If the chunk is already fully generated, it is returned.
 			NormalChunk chunk = getNormalChunkFromCache(ch);
 			if(chunk != null && chunk.isGenerated()) {
-				if(source != null) {
-					Protocols.CHUNK_TRANSMISSION.sendChunk(source, chunk);
-				} else {
-					for(User user : Server.users) {
-						Protocols.CHUNK_TRANSMISSION.sendChunk(user, chunk);
-					}
-				}
+				sendChunk(chunk, source);
 				return;
 			}
 		}
 		ThreadPool.addTask(new ChunkLoadTask(ch, source));
 	}
 	
+	private void sendChunk(ChunkData chunk, User source) {
+		sendChunk(chunk, source, null);
+	}
+
+	/**
+	 * @param isStillNeeded checked again before the chunk is put on the wire. May be null.
+	 */
+	private void sendChunk(ChunkData chunk, User source, BooleanSupplier isStillNeeded) {
+		if(source != null) {
+			Protocols.CHUNK_TRANSMISSION.sendChunk(source, chunk, isStillNeeded);
+		} else {
+			for(User user : AreaOfInterest.getUsers(chunk)) {
+				Protocols.CHUNK_TRANSMISSION.sendChunk(user, chunk, isStillNeeded);
+			}
+		}
+	}
+
 	public void synchronousGenerate(ChunkData ch, User source) {
+		synchronousGenerate(ch, source, null);
+	}
+
+	/**
+	 * @param isStillNeeded checked again before the chunk is put on the wire. May be null.
+	 */
+	public void synchronousGenerate(ChunkData ch, User source, BooleanSupplier isStillNeeded) {
 		if (ch.voxelSize == 1) {
 			NormalChunk chunk;
 			if(ch instanceof NormalChunk) {
@@ -143,22 +234,9 @@ public class ChunkManager {
 			} else {
 				chunk = getOrGenerateNormalChunk(ch);
 			}
-			if(source != null) {
-				Protocols.CHUNK_TRANSMISSION.sendChunk(source, chunk);
-			} else {
-				for(User user : Server.users) {
-					Protocols.CHUNK_TRANSMISSION.sendChunk(user, chunk);
-				}
-			}
+			sendChunk(chunk, source, isStillNeeded);
 		} else {
-			ReducedChunkVisibilityData visibilityData = new ReducedChunkVisibilityData(world, ch.wx, ch.wy, ch.wz, ch.voxelSize);
-			if(source != null) {
-				Protocols.CHUNK_TRANSMISSION.sendChunk(source, visibilityData);
-			} else {
-				for(User user : Server.users) {
-					Protocols.CHUNK_TRANSMISSION.sendChunk(user, visibilityData);
-				}
-			}
+			sendChunk(getVisibilityData(ch), source, isStillNeeded);
 		}
 	}
 
@@ -168,21 +246,97 @@ public class ChunkManager {
 
 		MapFragmentCompare data = new MapFragmentCompare(wx, wz, voxelSize);
 		int index = CubyzMath.binaryLog(voxelSize);
-		int hash = data.hashCode() & MAP_CACHE_MASK[index];
 
-		MapFragment res = mapCache[index].find(data, hash);
-		if (res != null) return res;
+		MapFragment res = mapCache[index].find(data);
+		if(res != null) return res;
+		ParallelJob<MapFragment> job;
+		boolean isOwner = false;
+		synchronized(mapGenerations) {
+			job = mapGenerations.get(data);
+			if(job == null) {
+				// Try again in case it was finished in the meantime:
+				res = mapCache[index].peek(data);
+				if(res != null) return res;
+				job = new ParallelJob<>();
+				mapGenerations.put(data, job);
+				isOwner = true;
+			}
+		}
+		if(!isOwner) {
+			// Already generated by another thread:
+			return job.join();
+		}
+		try {
+			// Generate a new map fragment:
+			long startTime = GenerationStage.MAP_FRAGMENT.start();
+			res = new MapFragment(data.wx, data.wz, voxelSize);
+			terrainGenerationProfile.mapFragmentGenerator.generateMapFragment(res, world.getSeed(), job);
+			GenerationStage.MAP_FRAGMENT.end(startTime);
+			mapCache[index].put(data, res);
+			job.complete(res);
+			return res;
+		} catch(Throwable e) {
+			job.fail(e);
+			throw e;
+		} finally {
+			synchronized(mapGenerations) {
+				mapGenerations.remove(data);
+			}
+		}
+	}
 
-		synchronized(mapCache[index].cache[hash]) {
-			res = mapCache[index].find(data, hash);
-			if (res != null) return res;
+	/**
+	 * Starts generating the map fragment in the background, unless it is already cached or queued.
+	 * @param wx
+	 * @param wz
+	 * @param voxelSize
+	 * @param priority
+	 */
+	public void prefetchMapFragment(int wx, int wz, int voxelSize, float priority) {
+		wx &= ~MapFragment.MAP_MASK;
+		wz &= ~MapFragment.MAP_MASK;
+		MapFragmentCompare data = new MapFragmentCompare(wx, wz, voxelSize);
+		if(mapCache[CubyzMath.binaryLog(voxelSize)].peek(data) != null) return;
+		MapFragmentPrefetchTask task;
+		synchronized(mapGenerations) {
+			if(mapGenerations.containsKey(data)) return;
+			task = mapPrefetches.get(data);
+			if(task == null) {
+				task = new MapFragmentPrefetchTask(data);
+				mapPrefetches.put(data, task);
+			}
+			task.priority = Math.max(task.priority, priority);
+			if(task.queued) return;
+			task.queued = true;
+		}
+		ThreadPool.addTask(task);
+	}
 
-			// Generate a new map fragment:
-			res = new MapFragment(wx, wz, voxelSize);
-			terrainGenerationProfile.mapFragmentGenerator.generateMapFragment(res, world.getSeed());
-			mapCache[index].addToCache(res, hash);
+	/**
+	 * Starts generating everything the chunk needs as input in the background, so it's ready when the chunk gets generated.
+	 * @param ch
+	 * @param chunkPriority
+	 */
+	public void prefetchInputs(ChunkData ch, float chunkPriority) {
+		int width = ch.voxelSize*Chunk.chunkSize;
+		InterpolatableCaveBiomeMap.prefetch(ch, width, chunkPriority);
+		CaveMap.prefetch(ch, chunkPriority);
+	}
+
+	/**
+	 * Gets the visibility data from the cache. It only gets generated again where the underlying reduced chunks changed since it was cached.
+	 * @param ch
+	 * @return
+	 */
+	public ReducedChunkVisibilityData getVisibilityData(ChunkData ch) {
+		ChunkData key = new ChunkData(ch.wx, ch.wy, ch.wz, ch.voxelSize);
+		ReducedChunkVisibilityData cached = visibilityCache.find(key);
+		ReducedChunkVisibilityData result = cached == null ? new ReducedChunkVisibilityData(world, ch.wx, ch.wy, ch.wz, ch.voxelSize) : cached.update(world);
+		if(result != cached) {
+			result.getCompressedData(); // The cache measures the size only once, so the compressed data needs to be there already.
+			visibilityCache.put(key, result);
 		}
-		return res;
+		return result;
 	}
 
 	/**
@@ -199,20 +353,13 @@ public class ChunkManager {
 		wy &= chunkMask;
 		wz &= chunkMask;
 		ChunkData data = new ChunkData(wx, wy, wz, voxelSize);
-		int hash = data.hashCode() & REDUCED_CHUNK_CACHE_MASK;
-		ReducedChunk res = reducedChunkCache.find(data, hash);
-		if (res != null) return res;
-		synchronized(reducedChunkCache.cache[hash]) {
-			res = reducedChunkCache.find(data, hash);
-			if (res != null) return res;
+		return reducedChunkCache.get(data, () -> {
 			// Generate a new chunk:
-			res = new ReducedChunk(world, wx, wy, wz, CubyzMath.binaryLog(voxelSize));
+			ReducedChunk res = new ReducedChunk(world, data.wx, data.wy, data.wz, CubyzMath.binaryLog(voxelSize));
 			res.generate(world.getSeed(), terrainGenerationProfile);
-			ReducedChunk old = reducedChunkCache.addToCache(res, hash);
-			if(old != null)
-				old.clean();
-		}
-		return res;
+			res.retain(); // Released when it gets evicted.
+			return res;
+		});
 	}
 
 	/**
@@ -221,14 +368,9 @@ public class ChunkManager {
 	 * @return
 	 */
 	public NormalChunk getOrGenerateNormalChunk(ChunkData data) {
-		int hash = data.hashCode() & NORMAL_CHUNK_CACHE_MASK;
-		NormalChunk res = normalChunkCache.find(data, hash);
-		if (res != null) return res;
-		synchronized(normalChunkCache.cache[hash]) {
-			res = normalChunkCache.find(data, hash);
-			if (res != null) return res;
+		return normalChunkCache.get(new ChunkData(data.wx, data.wy, data.wz, data.voxelSize), () -> {
 			// Check if the world has it:
-			res = world.getChunk(data.wx, data.wy, data.wz);
+			NormalChunk res = world.getChunk(data.wx, data.wy, data.wz);
 			if(res == null) {
 				// Generate a new chunk:
 				res = new NormalChunk(world, data.wx, data.wy, data.wz);
@@ -236,43 +378,79 @@ public class ChunkManager {
 			if(!res.isGenerated()) {
 				res.generate(world.getSeed(), terrainGenerationProfile);
 			}
-			normalChunkCache.addToCache(res, hash);
+			res.retain(); // Released when it gets evicted.
+			return res;
+		});
+	}
+
+	/**
+	 * Gets a normal chunk from the cache or loads it from file, without generating it.
+	 * @param data
+	 * @return null if the chunk needs to be generated.
+	 */
+	NormalChunk getOrLoadNormalChunk(ChunkData data) {
+		if(data instanceof NormalChunk) {
+			NormalChunk chunk = (NormalChunk)data;
+			if(!chunk.isGenerated() && !ChunkIO.loadChunkFromFile(world, chunk)) return null;
+			return chunk;
 		}
-		return res;
+		return normalChunkCache.get(new ChunkData(data.wx, data.wy, data.wz, data.voxelSize), () -> {
+			// Check if the world has it:
+			NormalChunk res = world.getChunk(data.wx, data.wy, data.wz);
+			if(res == null) {
+				res = new NormalChunk(world, data.wx, data.wy, data.wz);
+			}
+			if(!res.isGenerated() && !ChunkIO.loadChunkFromFile(world, res)) return null;
+			res.retain(); // Released when it gets evicted.
+			return res;
+		});
 	}
+
 	public NormalChunk getNormalChunkFromCache(ChunkData data) {
-		int hash = data.hashCode() & NORMAL_CHUNK_CACHE_MASK;
-		return normalChunkCache.find(data, hash);
+		return normalChunkCache.find(data);
+	}
+
+	/**
+	 * Doesn't count as a cache access.
+	 * @param data
+	 * @return true if the normal chunk is in the cache.
+	 */
+	boolean isNormalChunkCached(ChunkData data) {
+		return normalChunkCache.peek(new ChunkData(data.wx, data.wy, data.wz, data.voxelSize)) != null;
 	}
 
 	public void cleanup() {
-		for(Cache<MapFragment> cache : mapCache) {
-			cache.clear();
+		ThreadPool.clear();
+		prefetcher.clear();
+		normalChunkCache.foreach(NormalChunk::release);
+		normalChunkCache.clear();
+		reducedChunkCache.foreach(ReducedChunk::release);
+		reducedChunkCache.clear();
+		visibilityCache.clear();
+		lodPropagator.flush();
+		// The lod updates may have loaded new reduced chunks. Those were already saved by the updates.
+		reducedChunkCache.foreach(ReducedChunk::release);
+		reducedChunkCache.clear();
+		// Everything should be saved by now:
+		int unsaved = dirtyChunks.verifyAllSaved();
+		if(unsaved != 0) {
+			Logger.error(unsaved + " chunks weren't saved by their owners.");
 		}
-		for(int i = 0; i < 5; i++) { // Saving one chunk may create and update a new lower resolution chunk.
-		
-			for(ReducedChunk[] array : reducedChunkCache.cache) {
-				array = Arrays.copyOf(array, array.length); // Make a copy to prevent issues if the cache gets resorted during cleanup.
-				for(ReducedChunk chunk : array) {
-					if (chunk != null)
-						chunk.clean();
-				}
-			}
+		synchronized(mapGenerations) {
+			mapPrefetches.clear(); // Their tasks were removed from the queue.
 		}
 		for(Cache<MapFragment> cache : mapCache) {
 			cache.clear();
 		}
-		ThreadPool.clear();
 		CaveBiomeMap.cleanup();
 		CaveMap.cleanup();
 		ClimateMap.cleanup();
-		reducedChunkCache.clear();
 		ChunkIO.clean();
 	}
 
 	public void forceSave() {
-		for(int i = 0; i < 5; i++) { // Saving one chunk may create and update a new lower resolution chunk.
-			reducedChunkCache.foreach(Chunk::save);
-		}
+		reducedChunkCache.foreach(Chunk::save);
+		// Saving the chunks above queued the updates of their lower resolution chunks:
+		lodPropagator.flush();
 	}
 }
@@ -0,0 +1,266 @@
+package cubyz.world;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.joml.Vector3d;
+import org.joml.Vector3f;
+
+import cubyz.multiplayer.server.User;
+import cubyz.utils.ThreadPool;
+import cubyz.utils.WorkerPool;
+
+/**
+ * Generates the normal chunks that fast moving players are going to need, before they request them.<br>
+ * The path of each player is extrapolated from its velocity a few seconds ahead. The chunks that will enter the render distance along that path
+ * are queued with a low priority, preferring the ones in the view direction.
+ * Queued chunks that are neither on the predicted path nor in the render distance of any player get cancelled.
+ */
+public class ChunkPrefetcher {
+	private static final int UPDATE_INTERVAL = 500; // ms
+	private static final float LOOKAHEAD = 3; // s
+	private static final float TIME_STEP = 0.5f; // s
+	private static final float MIN_SPEED = 8; // Blocks per second. Slower players don't outrun the generation.
+	private static final float PRIORITY_PENALTY = 256; // Keeps the prefetching below the chunks that are requested by nearby players.
+	private static final int MAX_CHUNKS_PER_USER = 512;
+	private static final long EXPIRY_TIME = 30000; // A prefetched chunk that wasn't requested after this time in ms was wasted.
+
+	private final ChunkManager chunkManager;
+	private long lastUpdate = 0;
+
+	// Guarded by this:
+	private final HashMap<ChunkData, PrefetchTask> queued = new HashMap<>();
+	/** The time at which the chunks were prefetched. */
+	private final HashMap<ChunkData, Long> prefetched = new HashMap<>();
+	private long queuedCount, cancelledCount, hitCount, wastedCount;
+
+	ChunkPrefetcher(ChunkManager chunkManager) {
+		this.chunkManager = chunkManager;
+	}
+
+	/**
+	 * Updates the predictions of all users. Only does something every {@value #UPDATE_INTERVAL} ms.
+	 * @param users
+	 */
+	public void update(User[] users) {
+		long time = System.currentTimeMillis();
+		if(time - lastUpdate < UPDATE_INTERVAL) return;
+		lastUpdate = time;
+		HashMap<ChunkData, Float> wanted = new HashMap<>();
+		for(User user : users) {
+			if(user.player == null) continue;
+			predict(user, wanted);
+		}
+		ArrayList<PrefetchTask> newTasks = new ArrayList<>();
+		synchronized(this) {
+			Iterator<Map.Entry<ChunkData, PrefetchTask>> iterator = queued.entrySet().iterator();
+			while(iterator.hasNext()) {
+				PrefetchTask task = iterator.next().getValue();
+				Float priority = wanted.remove(task.ch);
+				if(priority == null) {
+					// The chunk already entered the render distance, so the prediction was right:
+					if(isInRenderDistance(task.ch, users)) continue;
+					// The prediction was wrong:
+					task.cancelled = true;
+					iterator.remove();
+					cancelledCount++;
+				} else {
+					task.priority = priority;
+				}
+			}
+			for(Map.Entry<ChunkData, Float> entry : wanted.entrySet()) {
+				if(prefetched.containsKey(entry.getKey()) || chunkManager.isNormalChunkCached(entry.getKey())) continue;
+				PrefetchTask task = new PrefetchTask(entry.getKey(), entry.getValue());
+				queued.put(task.ch, task);
+				newTasks.add(task);
+				queuedCount++;
+			}
+			Iterator<Long> times = prefetched.values().iterator();
+			while(times.hasNext()) {
+				if(time - times.next() > EXPIRY_TIME) {
+					times.remove();
+					wastedCount++;
+				}
+			}
+		}
+		for(PrefetchTask task : newTasks) {
+			ThreadPool.addTask(task);
+		}
+	}
+
+	private static boolean isInRenderDistance(ChunkData ch, User[] users) {
+		double center = Chunk.chunkSize/2;
+		for(User user : users) {
+			if(user.player == null) continue;
+			double radius = user.renderDistance*Chunk.chunkSize;
+			if(user.player.getPosition().distanceSquared(ch.wx + center, ch.wy + center, ch.wz + center) <= radius*radius) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the chunks that will enter the render distance of the user in the next few seconds.
+	 */
+	private void predict(User user, HashMap<ChunkData, Float> wanted) {
+		Vector3d position = user.player.getPosition();
+		double vx = user.player.vx, vy = user.player.vy, vz = user.player.vz;
+		double speed = Math.sqrt(vx*vx + vy*vy + vz*vz);
+		if(speed < MIN_SPEED) return;
+		Vector3f rotation = user.player.getRotation();
+		Vector3f direction = new Vector3f(0, 0, -1).rotateX(rotation.x).rotateY(rotation.y);
+		double radius = user.renderDistance*Chunk.chunkSize;
+		HashMap<ChunkData, Float> chunks = new HashMap<>();
+		double lastX = position.x, lastY = position.y, lastZ = position.z;
+		outer:
+		for(float t = TIME_STEP; t <= LOOKAHEAD; t += TIME_STEP) { // The closer predictions are more reliable.
+			double px = position.x + vx*t;
+			double py = position.y + vy*t;
+			double pz = position.z + vz*t;
+			// Only the chunks that weren't in the render distance at the last step are new.
+			// The distance to a chunk is convex along the path, so these also can't be in the current render distance.
+			int minX = (int)Math.floor((px - radius)/Chunk.chunkSize) - 1;
+			int maxX = (int)Math.floor((px + radius)/Chunk.chunkSize) + 1;
+			int minY = (int)Math.floor((py - radius)/Chunk.chunkSize) - 1;
+			int maxY = (int)Math.floor((py + radius)/Chunk.chunkSize) + 1;
+			for(int x = minX; x <= maxX; x++) {
+				for(int y = minY; y <= maxY; y++) {
+					double centerX = (x << Chunk.chunkShift) + Chunk.chunkSize/2;
+					double centerY = (y << Chunk.chunkShift) + Chunk.chunkSize/2;
+					double heightSquare = radius*radius - (centerX - px)*(centerX - px) - (centerY - py)*(centerY - py);
+					if(heightSquare < 0) continue;
+					double height = Math.sqrt(heightSquare);
+					int startZ = (int)Math.ceil((pz - height - Chunk.chunkSize/2)/Chunk.chunkSize);
+					int endZ = (int)Math.floor((pz + height - Chunk.chunkSize/2)/Chunk.chunkSize);
+					// The part of the column that was already in the render distance at the last step:
+					int oldStartZ = Integer.MAX_VALUE, oldEndZ = Integer.MIN_VALUE;
+					double oldHeightSquare = radius*radius - (centerX - lastX)*(centerX - lastX) - (centerY - lastY)*(centerY - lastY);
+					if(oldHeightSquare >= 0) {
+						double oldHeight = Math.sqrt(oldHeightSquare);
+						oldStartZ = (int)Math.ceil((lastZ - oldHeight - Chunk.chunkSize/2)/Chunk.chunkSize);
+						oldEndZ = (int)Math.floor((lastZ + oldHeight - Chunk.chunkSize/2)/Chunk.chunkSize);
+					}
+					for(int z = startZ; z <= endZ; z++) {
+						if(z >= oldStartZ && z <= oldEndZ) {
+							z = oldEndZ;
+							continue;
+						}
+						double dx = centerX - position.x;
+						double dy = centerY - position.y;
+						double dz = (z << Chunk.chunkShift) + Chunk.chunkSize/2 - position.z;
+						double distance = Math.sqrt(dx*dx + dy*dy + dz*dz);
+						// Chunks in front of the player are more likely to be needed:
+						double alignment = (dx*direction.x + dy*direction.y + dz*direction.z)/distance;
+						float priority = (float)(-distance - PRIORITY_PENALTY + alignment*Chunk.chunkSize);
+						chunks.put(new ChunkData(x << Chunk.chunkShift, y << Chunk.chunkShift, z << Chunk.chunkShift, 1), priority);
+						if(chunks.size() >= MAX_CHUNKS_PER_USER) break outer;
+					}
+				}
+			}
+			lastX = px;
+			lastY = py;
+			lastZ = pz;
+		}
+		for(Map.Entry<ChunkData, Float> entry : chunks.entrySet()) {
+			wanted.merge(entry.getKey(), entry.getValue(), Math::max);
+		}
+	}
+
+	/**
+	 * Needs to be called for every normal chunk that gets requested by a player, to track the prefetch hits.
+	 * @param ch
+	 */
+	void onRequest(ChunkData ch) {
+		ChunkData key = new ChunkData(ch.wx, ch.wy, ch.wz, ch.voxelSize);
+		synchronized(this) {
+			if(prefetched.remove(key) != null) {
+				hitCount++;
+				return;
+			}
+			PrefetchTask task = queued.remove(key);
+			if(task != null) {
+				// The actual request takes over. If the prefetch already started, the request waits for it in the cache.
+				task.cancelled = true;
+			}
+		}
+	}
+
+	/**
+	 * Forgets all predictions. The queued tasks need to be removed from the thread pool by the caller.
+	 */
+	synchronized void clear() {
+		for(PrefetchTask task : queued.values()) {
+			task.cancelled = true;
+		}
+		queued.clear();
+		prefetched.clear();
+	}
+
+	private synchronized void onPrefetched(PrefetchTask task) {
+		if(queued.remove(task.ch, task)) {
+			prefetched.put(task.ch, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return the number of prefetched chunks that were requested afterwards divided by all prefetched chunks that were requested or expired.
+	 */
+	public synchronized float getHitRate() {
+		long total = hitCount + wastedCount;
+		return total == 0 ? 0 : (float)hitCount/total;
+	}
+
+	/**
+	 * @return a human readable summary of the prefetching.
+	 */
+	public synchronized ArrayList<String> getStatus() {
+		ArrayList<String> lines = new ArrayList<>();
+		lines.add("Prefetch: " + queuedCount + " queued, " + queued.size() + " pending, " + cancelledCount + " cancelled");
+		lines.add("Prefetch: " + hitCount + " hits, " + wastedCount + " wasted, " + prefetched.size() + " waiting for a request, " + Math.round(getHitRate()*100) + "% hit rate");
+		return lines;
+	}
+
+	private class PrefetchTask extends ThreadPool.Task {
+		private final ChunkData ch;
+		private volatile float priority;
+		private volatile boolean cancelled = false;
+		/** Like the ChunkLoadTask, chunks are first looked up on disk in the io pool. */
+		private boolean loadFromFile = true;
+
+		private PrefetchTask(ChunkData ch, float priority) {
+			this.ch = ch;
+			this.priority = priority;
+		}
+
+		@Override
+		public float getPriority() {
+			return priority;
+		}
+
+		@Override
+		public boolean isStillNeeded() {
+			return !cancelled;
+		}
+
+		@Override
+		public WorkerPool getPool() {
+			return loadFromFile ? ThreadPool.IO : ThreadPool.GENERATION;
+		}
+
+		@Override
+		public void run() {
+			if(cancelled) return;
+			if(loadFromFile) {
+				loadFromFile = false;
+				if(chunkManager.getOrLoadNormalChunk(ch) == null) {
+					ThreadPool.addTask(this); // Not stored yet, so it needs to be generated.
+					return;
+				}
+			} else {
+				chunkManager.getOrGenerateNormalChunk(ch);
+			}
+			onPrefetched(this);
+		}
+	}
+}
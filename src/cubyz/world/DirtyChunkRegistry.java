@@ -0,0 +1,48 @@
+package cubyz.world;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import cubyz.utils.Logger;
+
+/**
+ * Keeps track of all chunks with changes that weren't saved yet.<br>
+ * At shutdown every chunk must have been saved by now. If one wasn't, some owner forgot to release it.
+ */
+public class DirtyChunkRegistry {
+	private final IdentityHashMap<Chunk, Boolean> chunks = new IdentityHashMap<>();
+
+	void add(Chunk chunk) {
+		synchronized(chunks) {
+			chunks.put(chunk, Boolean.TRUE);
+		}
+	}
+
+	void remove(Chunk chunk) {
+		synchronized(chunks) {
+			chunks.remove(chunk);
+		}
+	}
+
+	public int size() {
+		synchronized(chunks) {
+			return chunks.size();
+		}
+	}
+
+	/**
+	 * Reports and saves all chunks that are still unsaved.
+	 * @return the number of chunks that weren't saved.
+	 */
+	public int verifyAllSaved() {
+		ArrayList<Chunk> unsaved;
+		synchronized(chunks) {
+			unsaved = new ArrayList<>(chunks.keySet());
+		}
+		for(Chunk chunk : unsaved) {
+			Logger.error("Unsaved chunk: " + chunk.wx + " " + chunk.wy + " " + chunk.wz + " " + chunk.voxelSize);
+			chunk.save();
+		}
+		return unsaved.size();
+	}
+}
@@ -0,0 +1,137 @@
+package cubyz.world;
+
+import java.util.HashMap;
+
+import cubyz.Constants;
+import cubyz.multiplayer.server.Server;
+import cubyz.multiplayer.server.User;
+import cubyz.utils.Logger;
+import cubyz.utils.ThreadPool;
+
+/**
+ * Propagates the changes of saved chunks to the lower resolution chunks above them.<br>
+ * Changed chunks are collected per parent chunk, so each parent is downsampled and stored only once per batch, no matter how many of its 8 children changed in the meantime.
+ * The batches run on the generation pool. Storing a parent queues its own parent, so the changes move up one level per batch.
+ */
+public class LodPropagator {
+	/** The priority a batch gains per millisecond of waiting. Even the batches far away from all players run within a few seconds, so the pending batches can't pile up during generation. */
+	private static final float AGING_RATE = 1;
+	/** Batches that are even farther away from all players start here, so they age at the same rate. About the lowest bucket of the worker pool. */
+	private static final float MIN_PRIORITY = -2048;
+
+	private final ChunkManager chunkManager;
+	private final HashMap<ChunkData, Batch> pending = new HashMap<>();
+	private int runningBatches = 0;
+
+	LodPropagator(ChunkManager chunkManager) {
+		this.chunkManager = chunkManager;
+	}
+
+	/**
+	 * @param chunk
+	 * @return the index of the chunk inside its parent chunk: x*4 + y*2 + z
+	 */
+	public static int getOctant(Chunk chunk) {
+		int parentMask = chunk.voxelSize*Chunk.chunkSize;
+		return ((chunk.wx & parentMask) != 0 ? 4 : 0) + ((chunk.wy & parentMask) != 0 ? 2 : 0) + ((chunk.wz & parentMask) != 0 ? 1 : 0);
+	}
+
+	/**
+	 * Schedules the update of the parent chunk of the given chunk. Repeated calls before the update happens are merged.
+	 * @param chunk a chunk that was just saved
+	 */
+	public void markDirty(Chunk chunk) {
+		if(chunk.voxelSize >= 1 << Constants.HIGHEST_LOD) return;
+		int parentMask = ~(chunk.voxelSize*2*Chunk.chunkSize - 1);
+		ChunkData parent = new ChunkData(chunk.wx & parentMask, chunk.wy & parentMask, chunk.wz & parentMask, chunk.voxelSize*2);
+		synchronized(this) {
+			Batch batch = pending.get(parent);
+			if(batch == null) {
+				batch = new Batch(parent);
+				pending.put(parent, batch);
+				ThreadPool.addTask(batch);
+			}
+			batch.children[getOctant(chunk)] = chunk;
+		}
+	}
+
+	/**
+	 * Updates all pending parents, level by level, until all changes reached the highest level.
+	 * Also waits for the batches that are currently running on the worker threads.
+	 */
+	public void flush() {
+		while(true) {
+			Batch batch = null;
+			synchronized(this) {
+				for(Batch other : pending.values()) {
+					if(batch == null || other.parent.voxelSize < batch.parent.voxelSize) {
+						batch = other;
+					}
+				}
+				if(batch == null) {
+					if(runningBatches == 0) return;
+					try {
+						wait();
+					} catch(InterruptedException e) {
+						return;
+					}
+					continue;
+				}
+			}
+			batch.run();
+		}
+	}
+
+	private final class Batch extends ThreadPool.Task {
+		private final ChunkData parent;
+		private final Chunk[] children = new Chunk[8];
+		private final long creationTime;
+
+		private Batch(ChunkData parent) {
+			this.parent = parent;
+			creationTime = System.currentTimeMillis();
+		}
+
+		@Override
+		public float getPriority() {
+			float priority = MIN_PRIORITY;
+			for(User user : Server.users) {
+				priority = Math.max(parent.getPriority(user.player), priority);
+			}
+			return priority + (System.currentTimeMillis() - creationTime)*AGING_RATE;
+		}
+
+		@Override
+		public boolean isStillNeeded() {
+			synchronized(LodPropagator.this) {
+				return pending.get(parent) == this;
+			}
+		}
+
+		@Override
+		public void run() {
+			Chunk[] children;
+			synchronized(LodPropagator.this) {
+				if(pending.get(parent) != this) return; // Already done by flush.
+				pending.remove(parent);
+				runningBatches++;
+				// New changes go into the next batch from now on:
+				children = this.children.clone();
+			}
+			try {
+				ReducedChunk chunk = chunkManager.getOrGenerateReducedChunk(parent.wx, parent.wy, parent.wz, parent.voxelSize);
+				synchronized(chunk) {
+					chunk.updateFromLowerResolution(children);
+					chunk.save();
+				}
+			} catch(Throwable e) {
+				Logger.error(e);
+			} finally {
+				synchronized(LodPropagator.this) {
+					runningBatches--;
+					LodPropagator.this.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -3,6 +3,7 @@ package cubyz.world;
 import java.util.ArrayList;
 
 import cubyz.multiplayer.Protocols;
+import cubyz.multiplayer.server.AreaOfInterest;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
 import cubyz.utils.Logger;
@@ -36,10 +37,15 @@ public class MetaChunk {
 		}
 	}
 	
+	/**
+	 * Releases all chunks. The chunks get saved if nothing else holds them.
+	 */
 	public void clean() {
-		for(NormalChunk chunk : chunks) {
-			if (chunk != null)
-				chunk.clean();
+		for(int i = 0; i < chunks.length; i++) {
+			if (chunks[i] != null) {
+				chunks[i].release();
+				chunks[i] = null;
+			}
 		}
 	}
 	
@@ -90,7 +96,7 @@ public class MetaChunk {
 							int dz = Neighbors.REL_Z[i];
 							if (dy == -1 || (neighbors[Neighbors.DIR_DOWN] != 0 && Blocks.blockClass(neighbors[Neighbors.DIR_DOWN]) != Blocks.BlockClass.FLUID)) {
 								ch.addBlockPossiblyOutside(block, wx+bx+dx, wy+by+dy, wz+bz+dz, true);
-								for(User user : Server.users) { // Send the liquid update to all players:
+								for(User user : AreaOfInterest.getUsers(wx+bx+dx + 0.5, wy+by+dy + 0.5, wz+bz+dz + 0.5)) { // Send the liquid update to all players that can see it:
 									Protocols.BLOCK_UPDATE.send(user, wx+bx+dx, wy+by+dy, wz+bz+dz, block);
 								}
 							}
@@ -125,7 +131,7 @@ public class MetaChunk {
 					NormalChunk chunk = chunks[index];
 					if (!isNeeded) {
 						if (chunk != null) {
-							chunk.clean();
+							chunk.release();
 							chunks[index] = null;
 						}
 					} else if (chunk == null) {
@@ -134,9 +140,8 @@ public class MetaChunk {
 							if(chunk == null) { // Generate new chunk only if it wasn't found in the cache.
 								chunk = new NormalChunk(world, wx, wy, wz);
 								world.queueChunk(chunk, null);
-							} else {
-								chunk.unclean();
 							}
+							chunk.retain();
 							chunks[index] = chunk;
 							chunksList.add(chunk);
 						} catch (Exception e) {
@@ -47,7 +47,22 @@ public class NormalChunk extends Chunk {
 		if (Blocks.blockClass(b) == BlockClass.FLUID) {
 			liquids.add(index);
 		}
-		blocks[index] = b;
+		blocks.set(index, b);
+	}
+
+	@Override
+	public void updateBlockColumnInGeneration(int x, int z, int yBottom, int yTop, int b) {
+		assert !generated : "It's literally called updateBlockInGENERATION";
+		if(yTop < yBottom) return;
+		int start = getIndex(x, yBottom, z);
+		int stride = getIndex(0, 1, 0);
+		int count = yTop - yBottom + 1;
+		if (Blocks.blockClass(b) == BlockClass.FLUID) {
+			for(int i = 0; i < count; i++) {
+				liquids.add(start + i*stride);
+			}
+		}
+		blocks.setStrided(start, stride, count, b);
 	}
 
 	protected void updateVisibleBlock(int index, int b) {}
@@ -56,11 +71,11 @@ public class NormalChunk extends Chunk {
 		int index = getIndex(x, y, z);
 		if(b == 0) {
 			removeBlockAt(x, y, z, true);
-		} else if(blocks[index] == 0) {
+		} else if(blocks.get(index) == 0) {
 			addBlock(b, x, y, z, false);
 		} else {
-			if((b & Blocks.TYPE_MASK) == (blocks[index] & Blocks.TYPE_MASK)) {
-				blocks[index] = b;
+			if((b & Blocks.TYPE_MASK) == (blocks.get(index) & Blocks.TYPE_MASK)) {
+				blocks.set(index, b);
 				updateVisibleBlock(index, b);
 				setChanged();
 			} else {
@@ -110,7 +125,7 @@ public class NormalChunk extends Chunk {
 			}
 			removeBlockAt(x, y, z, false);
 		}
-		blocks[getIndex(x, y, z)] = b;
+		blocks.set(getIndex(x, y, z), b);
 		if (Blocks.blockEntity(b) != null) {
 			Vector3i pos = new Vector3i(wx+x, wy+y, wz+z);
 			blockEntities.add(Blocks.createBlockEntity(b, world, pos));
@@ -217,7 +232,7 @@ public class NormalChunk extends Chunk {
 				}
 			}
 		}
-		blocks[getIndex(x, y, z)] = 0;
+		blocks.set(getIndex(x, y, z), 0);
 		if (startedloading)
 			lightUpdate(x, y, z);
 		int[] neighbors = getNeighbors(x, y, z);
@@ -337,11 +352,11 @@ public class NormalChunk extends Chunk {
 	 */
 	@Override
 	public int getBlock(int x, int y, int z) {
-		return blocks[getIndex(x, y, z)];
+		return blocks.get(getIndex(x, y, z));
 	}
 	
 	public int getBlockAtIndex(int index) {
-		return blocks[index];
+		return blocks.get(index);
 	}
 
 	
@@ -359,7 +374,7 @@ public class NormalChunk extends Chunk {
 			if (chunk != null && chunk.generated) return chunk.getBlockPossiblyOutside(x & chunkMask, y & chunkMask, z & chunkMask);
 			return 0;
 		}
-		return blocks[getIndex(x, y, z)];
+		return blocks.get(getIndex(x, y, z));
 	}
 
 	/**
@@ -409,11 +424,11 @@ public class NormalChunk extends Chunk {
 	@Override
 	public void updateBlockIfDegradable(int x, int y, int z, int newBlock) {
 		int index = getIndex(x, y, z);
-		if (Blocks.degradable(blocks[index])) {
+		if (Blocks.degradable(blocks.get(index))) {
 			if (Blocks.blockClass(newBlock) == BlockClass.FLUID) {
 				liquids.add(index);
 			}
-			blocks[index] = Blocks.mode(newBlock).getNaturalStandard(newBlock);
+			blocks.set(index, Blocks.mode(newBlock).getNaturalStandard(newBlock));
 			setUpdated();
 		}
 	}
@@ -1,5 +1,8 @@
 package cubyz.world;
 
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
 import cubyz.world.blocks.Blocks;
 
 /**
@@ -16,6 +19,15 @@ public class ReducedChunk extends Chunk {
 	public final int voxelSizeMask;
 	/** =log₂(width)*/
 	public final int widthShift;
+
+	private static final int CHANGE_HISTORY = 16;
+	private static final AtomicLong nextInstanceID = new AtomicLong();
+	/** A chunk that was evicted and loaded again starts with a new version history, so its versions can only be compared if the id is the same. */
+	public final long instanceID = nextInstanceID.getAndIncrement();
+	// Guarded by this:
+	private int version = 0;
+	/** The octants that were changed by each of the last versions. */
+	private final byte[] changedOctants = new byte[CHANGE_HISTORY];
 	
 	public ReducedChunk(World world, int wx, int wy, int wz, int resolutionShift) {
 		super(world, wx, wy, wz, 1 << resolutionShift);
@@ -35,8 +47,9 @@ public class ReducedChunk extends Chunk {
 		y >>= voxelSizeShift;
 		z >>= voxelSizeShift;
 		int index = getIndex(x, y, z);
-		if (blocks[index] == 0 || Blocks.degradable(blocks[index])) {
-			blocks[index] = newBlock;
+		if (blocks.get(index) == 0 || Blocks.degradable(blocks.get(index))) {
+			blocks.set(index, newBlock);
+			markChanged(getOctantBit(x, y, z));
 		}
 	}
 	
@@ -46,7 +59,8 @@ public class ReducedChunk extends Chunk {
 		y >>= voxelSizeShift;
 		z >>= voxelSizeShift;
 		int index = getIndex(x, y, z);
-		blocks[index] = newBlock;
+		blocks.set(index, newBlock);
+		markChanged(getOctantBit(x, y, z));
 	}
 	
 	@Override
@@ -55,10 +69,95 @@ public class ReducedChunk extends Chunk {
 		y >>= voxelSizeShift;
 		z >>= voxelSizeShift;
 		int index = getIndex(x, y, z);
-		blocks[index] = newBlock;
+		blocks.set(index, newBlock);
+	}
+
+	@Override
+	public void updateBlockColumnInGeneration(int x, int z, int yBottom, int yTop, int newBlock) {
+		x >>= voxelSizeShift;
+		z >>= voxelSizeShift;
+		yBottom >>= voxelSizeShift;
+		yTop >>= voxelSizeShift;
+		if(yTop < yBottom) return;
+		blocks.setStrided(getIndex(x, yBottom, z), getIndex(0, 1, 0), yTop - yBottom + 1, newBlock);
+	}
+
+	/**
+	 * Downsamples the changed higher resolution chunks into this chunk in one pass, updates the meshes around them and marks this chunk as changed.
+	 * @param chunks the 8 octants of this chunk, as given by {@link LodPropagator#getOctant}. Unchanged octants are null.
+	 */
+	public void updateFromLowerResolution(Chunk[] chunks) {
+		HashSet<ChunkData> meshUpdates = new HashSet<>();
+		int changed = 0;
+		for(Chunk chunk : chunks) {
+			if(chunk == null) continue;
+			downsample(chunk);
+			int xOffset = chunk.wx != wx ? chunkSize/2 : 0;
+			int yOffset = chunk.wy != wy ? chunkSize/2 : 0;
+			int zOffset = chunk.wz != wz ? chunkSize/2 : 0;
+			changed |= getOctantBit(xOffset, yOffset, zOffset);
+			for(int x = 0; x <= 2*xOffset; x += chunkSize) {
+				for(int y = 0; y <= 2*yOffset; y += chunkSize) {
+					for(int z = 0; z <= 2*zOffset; z += chunkSize) {
+						int wx = this.wx + x*voxelSize - Chunk.chunkSize;
+						int wy = this.wy + y*voxelSize - Chunk.chunkSize;
+						int wz = this.wz + z*voxelSize - Chunk.chunkSize;
+						if(voxelSize == 32) {
+							wx -= chunkSize*voxelSize/2;
+							wy -= chunkSize*voxelSize/2;
+							wz -= chunkSize*voxelSize/2;
+						}
+						meshUpdates.add(new ChunkData(wx, wy, wz, voxelSize));
+					}
+				}
+			}
+		}
+		// Must happen before the meshes get queued, so they see the new version:
+		markChanged(changed);
+		// Create updated meshes and send to client:
+		world.queueChunks(meshUpdates.toArray(new ChunkData[0]));
+		
+		setChanged();
 	}
 
-	public void updateFromLowerResolution(Chunk chunk) {
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the bit of the octant that contains the given voxel, in the order x*4 + y*2 + z.
+	 */
+	private static int getOctantBit(int x, int y, int z) {
+		int half = chunkSize/2;
+		return 1 << (((x & half) != 0 ? 4 : 0) + ((y & half) != 0 ? 2 : 0) + ((z & half) != 0 ? 1 : 0));
+	}
+
+	private synchronized void markChanged(int octants) {
+		version++;
+		changedOctants[version % CHANGE_HISTORY] = (byte)octants;
+	}
+
+	/**
+	 * Gets increased every time the blocks of this chunk are changed after its generation.
+	 * @return
+	 */
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param oldVersion a previous {@link #getVersion() version} of this chunk.
+	 * @return a mask of the octants(x*4 + y*2 + z) that were changed since the old version. All octants if the version is too old to know.
+	 */
+	public synchronized int getChangedOctants(int oldVersion) {
+		if(version - oldVersion >= CHANGE_HISTORY || oldVersion > version) return 0xff;
+		int mask = 0;
+		for(int v = oldVersion + 1; v <= version; v++) {
+			mask |= changedOctants[v % CHANGE_HISTORY] & 0xff;
+		}
+		return mask;
+	}
+
+	private void downsample(Chunk chunk) {
 		int xOffset = chunk.wx != wx ? chunkSize/2 : 0; // Offsets of the lower resolution chunk in this chunk.
 		int yOffset = chunk.wy != wy ? chunkSize/2 : 0;
 		int zOffset = chunk.wz != wz ? chunkSize/2 : 0;
@@ -75,7 +174,7 @@ public class ReducedChunk extends Chunk {
 							for(int dz = 0; dz <= 1; dz++) {
 								int index = getIndex(x*2 + dx, y*2 + dy, z*2 + dz);
 								int i = dx*4 + dz*2 + dy;
-								blocks[i] = chunk.blocks[index];
+								blocks[i] = chunk.blocks.get(index);
 								if(blocks[i] == 0) continue; // I don't care about air blocks.
 								
 								int count = 0;
@@ -85,7 +184,7 @@ public class ReducedChunk extends Chunk {
 									int nz = z*2 + dz + Neighbors.REL_Z[n];
 									if((nx & chunkMask) == nx && (ny & chunkMask) == ny && (nz & chunkMask) == nz) { // If it's inside the chunk.
 										int neighborIndex = getIndex(nx, ny, nz);
-										if(Blocks.transparent(chunk.blocks[neighborIndex])) {
+										if(Blocks.transparent(chunk.blocks.get(neighborIndex))) {
 											count += 5;
 										}
 									} else {
@@ -108,29 +207,10 @@ public class ReducedChunk extends Chunk {
 					}
 					// Update the block:
 					int thisIndex = getIndex(x + xOffset, y + yOffset, z + zOffset);
-					this.blocks[thisIndex] = block;
+					this.blocks.set(thisIndex, block);
 				}
 			}
 		}
-		
-		// Create updated meshes and send to client:
-		for(int x = 0; x <= 2*xOffset; x += chunkSize) {
-			for(int y = 0; y <= 2*yOffset; y += chunkSize) {
-				for(int z = 0; z <= 2*zOffset; z += chunkSize) {
-					int wx = this.wx + x*voxelSize - Chunk.chunkSize;
-					int wy = this.wy + y*voxelSize - Chunk.chunkSize;
-					int wz = this.wz + z*voxelSize - Chunk.chunkSize;
-					if(voxelSize == 32) {
-						wx -= chunkSize*voxelSize/2;
-						wy -= chunkSize*voxelSize/2;
-						wz -= chunkSize*voxelSize/2;
-					}
-					world.queueChunks(new ChunkData[] {new ChunkData(wx, wy, wz, voxelSize)});
-				}
-			}
-		}
-		
-		setChanged();
 	}
 
 	@Override
@@ -139,7 +219,7 @@ public class ReducedChunk extends Chunk {
 		y >>= voxelSizeShift;
 		z >>= voxelSizeShift;
 		int index = getIndex(x, y, z);
-		return blocks[index];
+		return blocks.get(index);
 	}
 }
 
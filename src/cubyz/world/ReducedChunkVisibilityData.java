@@ -2,6 +2,10 @@ package cubyz.world;
 
 import java.util.Arrays;
 
+import cubyz.utils.math.Bits;
+import cubyz.world.save.ChunkCodecs;
+import cubyz.world.save.ChunkIO;
+
 public class ReducedChunkVisibilityData extends ChunkData {
 	/*
 		(Equivalent C++ code)
@@ -18,6 +22,11 @@ public class ReducedChunkVisibilityData extends ChunkData {
 	public int size;
 	public int capacity = INITIAL_CAPACITY;
 	private final int voxelSizeShift;
+	// Only used on the server:
+	/** The {@link ReducedChunk#instanceID ids} and versions of the chunks that were used to generate this. The chunks themselves aren't kept, so the cache can still evict them. */
+	private long[] sourceIDs;
+	private int[] versions;
+	private byte[] compressedData;
 
 	private void addBlock(byte x, byte y, byte z, byte neighbors, int block) {
 		if (size == capacity)
@@ -55,7 +64,7 @@ public class ReducedChunkVisibilityData extends ChunkData {
 		x &= Chunk.chunkMask;
 		y &= Chunk.chunkMask;
 		z &= Chunk.chunkMask;
-		return chunk.blocks[Chunk.getIndex(x, y, z)];
+		return chunk.blocks.get(Chunk.getIndex(x, y, z));
 	}
 
 	public ReducedChunkVisibilityData(int wx, int wy, int wz, int voxelSize, byte[] x, byte[] y, byte[] z, byte[] neighbors, int[] visibleBlocks) {
@@ -71,9 +80,61 @@ public class ReducedChunkVisibilityData extends ChunkData {
 	}
 	
 	public ReducedChunkVisibilityData(ServerWorld world, int wx, int wy, int wz, int voxelSize) {
+		this(wx, wy, wz, voxelSize, getChunks(world, wx, wy, wz, voxelSize), null);
+	}
+
+	/**
+	 * Generates the visibility data from the 8 surrounding reduced chunks.
+	 * @param chunks
+	 * @param old the previous visibility data of the same chunks. Only the parts around the octants that changed since then are scanned again. May be null.
+	 */
+	private ReducedChunkVisibilityData(int wx, int wy, int wz, int voxelSize, ReducedChunk[] chunks, ReducedChunkVisibilityData old) {
 		super(wx, wy, wz, voxelSize);
 		voxelSizeShift = 31 - Integer.numberOfLeadingZeros(voxelSize); // log2
+		// Taken before reading the blocks, so changes that happen during the scan are found by the next update:
+		sourceIDs = new long[chunks.length];
+		versions = new int[chunks.length];
+		for(int i = 0; i < chunks.length; i++) {
+			sourceIDs[i] = chunks[i].instanceID;
+			versions[i] = chunks[i].getVersion();
+		}
+
+		// If all surrounding chunks are filled with the same block, no block can be visible:
+		boolean allSame = true;
+		for(ReducedChunk chunk : chunks) {
+			allSame &= chunk.isUniform() && chunk.getUniformBlock() == chunks[0].getUniformBlock();
+		}
+		if(allSame) return;
+		if(old == null) {
+			// Go through all blocks of this chunk:
+			for(byte x = 0; x < Chunk.chunkSize; x++) {
+				for(byte y = 0; y < Chunk.chunkSize; y++) {
+					for(byte z = 0; z < Chunk.chunkSize; z++) {
+						addIfVisible(chunks, x, y, z);
+					}
+				}
+			}
+			return;
+		}
+		boolean[] dirty = getDirtyBlocks(chunks, old);
+		// Keep the old blocks that can't have changed:
+		for(int i = 0; i < old.size; i++) {
+			if(!dirty[Chunk.getIndex(old.x[i], old.y[i], old.z[i])]) {
+				addBlock(old.x[i], old.y[i], old.z[i], old.neighbors[i], old.visibleBlocks[i]);
+			}
+		}
+		for(byte x = 0; x < Chunk.chunkSize; x++) {
+			for(byte y = 0; y < Chunk.chunkSize; y++) {
+				for(byte z = 0; z < Chunk.chunkSize; z++) {
+					if(dirty[Chunk.getIndex(x, y, z)]) {
+						addIfVisible(chunks, x, y, z);
+					}
+				}
+			}
+		}
+	}
 
+	private static ReducedChunk[] getChunks(ServerWorld world, int wx, int wy, int wz, int voxelSize) {
 		int chunkSize = voxelSize*Chunk.chunkSize;
 		int chunkMask = chunkSize - 1;
 
@@ -86,47 +147,127 @@ public class ReducedChunkVisibilityData extends ChunkData {
 				}
 			}
 		}
-		int halfMask = Chunk.chunkMask >> 1;
-		// Go through all blocks of this chunk:
-		for(byte x = 0; x < Chunk.chunkSize; x++) {
-			for(byte y = 0; y < Chunk.chunkSize; y++) {
-				for(byte z = 0; z < Chunk.chunkSize; z++) {
-					int block = getBlock(chunks, x, y, z);
-					if (block == 0) continue;
-					// Check all neighbors:
-					byte neighborVisibility = 0;
-					for(byte i = 0; i < Neighbors.NEIGHBORS; i++) {
-						int x2 = x + Neighbors.REL_X[i];
-						int y2 = y + Neighbors.REL_Y[i];
-						int z2 = z + Neighbors.REL_Z[i];
-						int neighbor = getBlock(chunks, x2, y2, z2);
-						boolean isVisible = neighbor == 0;
-						if (!isVisible) {
-							// If the chunk is at a border, more neighbors need to be checked to prevent cracks at LOD changes:
-							if ((x & halfMask) == ((x2 & halfMask) ^ halfMask) || (y & halfMask) == ((y2 & halfMask) ^ halfMask) || (z & halfMask) == ((z2 & halfMask) ^ halfMask)) {
-								for(byte j = 0; j < Neighbors.NEIGHBORS; j++) {
-									if (i == (j ^ 1)) continue; // Don't check the source block twice.
-									int x3 = x2 + Neighbors.REL_X[j];
-									int y3 = y2 + Neighbors.REL_Y[j];
-									int z3 = z2 + Neighbors.REL_Z[j];
-									neighbor = getBlock(chunks, x3, y3, z3);
-									if (neighbor == 0) {
-										isVisible = true;
-										break;
-									}
-								}
-							}
-						}
+		return chunks;
+	}
 
-						if (isVisible) {
-							neighborVisibility |= Neighbors.BIT_MASK[i];
+	/**
+	 * Returns this if none of the surrounding chunks changed since this was generated.
+	 * Otherwise the parts that depend on the changed octants get generated again.
+	 * @param world
+	 * @return the up to date visibility data of this chunk.
+	 */
+	public ReducedChunkVisibilityData update(ServerWorld world) {
+		assert sourceIDs != null : "Only visibility data that was generated on the server can be updated.";
+		ReducedChunk[] chunks = getChunks(world, wx, wy, wz, voxelSize);
+		boolean sameChunks = true;
+		boolean upToDate = true;
+		for(int i = 0; i < chunks.length; i++) {
+			// A chunk that was evicted and loaded again may have a different version history:
+			sameChunks &= chunks[i].instanceID == sourceIDs[i];
+			upToDate &= chunks[i].getVersion() == versions[i];
+		}
+		if(sameChunks && upToDate) return this;
+		return new ReducedChunkVisibilityData(wx, wy, wz, voxelSize, chunks, sameChunks ? this : null);
+	}
+
+	/**
+	 * A change of a block can change the visibility of all blocks in a distance of 2, due to the additional checks at borders.
+	 * @return all blocks of this chunk whose visibility may have changed since the old data was generated.
+	 */
+	private boolean[] getDirtyBlocks(ReducedChunk[] chunks, ReducedChunkVisibilityData old) {
+		boolean[] dirty = new boolean[Chunk.chunkSize*Chunk.chunkSize*Chunk.chunkSize];
+		int half = Chunk.chunkSize/2;
+		int xOffset = (wx - chunks[0].wx) >> voxelSizeShift;
+		int yOffset = (wy - chunks[0].wy) >> voxelSizeShift;
+		int zOffset = (wz - chunks[0].wz) >> voxelSizeShift;
+		for(int i = 0; i < chunks.length; i++) {
+			int octants = chunks[i].getChangedOctants(old.versions[i]);
+			for(int octant = 0; octant < 8; octant++) {
+				if((octants & 1 << octant) == 0) continue;
+				// The octant in the coordinates of this chunk:
+				int x0 = (i >> 2)*Chunk.chunkSize + (octant >> 2)*half - xOffset;
+				int y0 = (i >> 1 & 1)*Chunk.chunkSize + (octant >> 1 & 1)*half - yOffset;
+				int z0 = (i & 1)*Chunk.chunkSize + (octant & 1)*half - zOffset;
+				for(int x = Math.max(0, x0 - 2); x < Math.min(Chunk.chunkSize, x0 + half + 2); x++) {
+					for(int y = Math.max(0, y0 - 2); y < Math.min(Chunk.chunkSize, y0 + half + 2); y++) {
+						for(int z = Math.max(0, z0 - 2); z < Math.min(Chunk.chunkSize, z0 + half + 2); z++) {
+							dirty[Chunk.getIndex(x, y, z)] = true;
 						}
 					}
-					if (neighborVisibility != 0) {
-						addBlock(x, y, z, neighborVisibility, block);
+				}
+			}
+		}
+		return dirty;
+	}
+
+	private void addIfVisible(ReducedChunk[] chunks, byte x, byte y, byte z) {
+		int halfMask = Chunk.chunkMask >> 1;
+		int block = getBlock(chunks, x, y, z);
+		if (block == 0) return;
+		// Check all neighbors:
+		byte neighborVisibility = 0;
+		for(byte i = 0; i < Neighbors.NEIGHBORS; i++) {
+			int x2 = x + Neighbors.REL_X[i];
+			int y2 = y + Neighbors.REL_Y[i];
+			int z2 = z + Neighbors.REL_Z[i];
+			int neighbor = getBlock(chunks, x2, y2, z2);
+			boolean isVisible = neighbor == 0;
+			if (!isVisible) {
+				// If the chunk is at a border, more neighbors need to be checked to prevent cracks at LOD changes:
+				if ((x & halfMask) == ((x2 & halfMask) ^ halfMask) || (y & halfMask) == ((y2 & halfMask) ^ halfMask) || (z & halfMask) == ((z2 & halfMask) ^ halfMask)) {
+					for(byte j = 0; j < Neighbors.NEIGHBORS; j++) {
+						if (i == (j ^ 1)) continue; // Don't check the source block twice.
+						int x3 = x2 + Neighbors.REL_X[j];
+						int y3 = y2 + Neighbors.REL_Y[j];
+						int z3 = z2 + Neighbors.REL_Z[j];
+						neighbor = getBlock(chunks, x3, y3, z3);
+						if (neighbor == 0) {
+							isVisible = true;
+							break;
+						}
 					}
 				}
 			}
+
+			if (isVisible) {
+				neighborVisibility |= Neighbors.BIT_MASK[i];
+			}
 		}
+		if (neighborVisibility != 0) {
+			addBlock(x, y, z, neighborVisibility, block);
+		}
+	}
+
+	/**
+	 * The network format: all x, all y, all z, all neighbors and then all blocks.
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		byte[] data = new byte[size*8];
+		System.arraycopy(x, 0, data, 0, size);
+		System.arraycopy(y, 0, data, size, size);
+		System.arraycopy(z, 0, data, 2*size, size);
+		System.arraycopy(neighbors, 0, data, 3*size, size);
+		int offset = 4*size;
+		for(int i = 0; i < size; i++) {
+			Bits.putInt(data, offset, visibleBlocks[i]);
+			offset += 4;
+		}
+		return data;
+	}
+
+	/**
+	 * Compressed once and then reused for every request of this chunk.
+	 * @return the {@link #toByteArray() network format} compressed with the network codec.
+	 */
+	public synchronized byte[] getCompressedData() {
+		if(compressedData == null) {
+			compressedData = ChunkIO.compressChunk(toByteArray(), ChunkCodecs.NETWORK);
+		}
+		return compressedData;
+	}
+
+	public synchronized int getMemoryUsage() {
+		return 128 + capacity*8 + (compressedData == null ? 0 : compressedData.length);
 	}
 }
@@ -4,6 +4,7 @@ import cubyz.Settings;
 import cubyz.api.CurrentWorldRegistries;
 import cubyz.modding.ModLoader;
 import cubyz.multiplayer.Protocols;
+import cubyz.multiplayer.server.AreaOfInterest;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
 import cubyz.utils.FastRandom;
@@ -174,8 +175,8 @@ public class ServerWorld extends World {
 			int old = ch.getBlock(x & Chunk.chunkMask, y & Chunk.chunkMask, z & Chunk.chunkMask);
 			if(old == newBlock) return;
 			ch.updateBlock(x & Chunk.chunkMask, y & Chunk.chunkMask, z & Chunk.chunkMask, newBlock);
-			// Send the block update to all players:
-			for(User user : Server.users) {
+			// Send the block update to all players that can see it:
+			for(User user : AreaOfInterest.getUsers(x + 0.5, y + 0.5, z + 0.5)) {
 				Protocols.BLOCK_UPDATE.send(user, x, y, z, newBlock);
 			}
 			if((old & Blocks.TYPE_MASK) == (newBlock & Blocks.TYPE_MASK)) return;
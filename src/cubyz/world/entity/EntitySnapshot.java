@@ -0,0 +1,314 @@
+package cubyz.world.entity;
+
+import java.util.Arrays;
+
+import cubyz.utils.datastructures.IntSimpleList;
+import cubyz.utils.datastructures.SimpleList;
+import cubyz.utils.math.BitReader;
+import cubyz.utils.math.BitWriter;
+import cubyz.world.Chunk;
+
+/**
+ * The quantized state of all entities and item entities at one server tick.<br>
+ * Positions are stored as the chunk and 16 bits per coordinate inside of it, velocities are clamped to ±{@value #MAX_VELOCITY} and stored in 16 bits.
+ * A snapshot is sent as the difference to an older snapshot that the client already has, so entities that didn't move cost nothing.
+ */
+public final class EntitySnapshot {
+	private static final double POSITION_SCALE = 65536.0/Chunk.chunkSize;
+	public static final double MAX_VELOCITY = 64;
+	private static final double VELOCITY_SCALE = Short.MAX_VALUE/MAX_VELOCITY;
+
+	public final int id;
+	public final Group entities;
+	public final Group items;
+
+	private EntitySnapshot(int id, Group entities, Group items) {
+		this.id = id;
+		this.entities = entities;
+		this.items = items;
+	}
+
+	/**
+	 * Needs the lock of the item entity manager.
+	 * @param id
+	 * @param entities
+	 * @param itemIndices the indices of the item entities in the item entity manager.
+	 * @param itemEntities
+	 * @return the quantized state of the given entities.
+	 */
+	public static EntitySnapshot create(int id, SimpleList<Entity> entities, IntSimpleList itemIndices, ItemEntityManager itemEntities) {
+		Entity[] sortedEntities = entities.toArray();
+		Arrays.sort(sortedEntities, (a, b) -> Integer.compare(a.id, b.id));
+		Group entityGroup = new Group(32, true, sortedEntities.length);
+		for(Entity ent : sortedEntities) {
+			entityGroup.add(ent.id, ent.getPosition().x, ent.getPosition().y, ent.getPosition().z, ent.vx, ent.vy, ent.vz);
+			int index = entityGroup.size - 1;
+			entityGroup.rotations[3*index] = Float.floatToIntBits(ent.getRotation().x);
+			entityGroup.rotations[3*index + 1] = Float.floatToIntBits(ent.getRotation().y);
+			entityGroup.rotations[3*index + 2] = Float.floatToIntBits(ent.getRotation().z);
+		}
+
+		int[] sortedIndices = Arrays.copyOf(itemIndices.array, itemIndices.size);
+		Arrays.sort(sortedIndices);
+		Group itemGroup = new Group(16, false, sortedIndices.length);
+		for(int i : sortedIndices) {
+			itemGroup.add(i, itemEntities.posxyz[3*i], itemEntities.posxyz[3*i + 1], itemEntities.posxyz[3*i + 2], itemEntities.velxyz[3*i], itemEntities.velxyz[3*i + 1], itemEntities.velxyz[3*i + 2]);
+		}
+		return new EntitySnapshot(id, entityGroup, itemGroup);
+	}
+
+	/**
+	 * Writes everything that changed since the baseline.
+	 * @param writer
+	 * @param baseline a snapshot that the receiver already has. null sends the full snapshot.
+	 */
+	public void write(BitWriter writer, EntitySnapshot baseline) {
+		entities.writeDelta(writer, baseline == null ? null : baseline.entities);
+		items.writeDelta(writer, baseline == null ? null : baseline.items);
+	}
+
+	/**
+	 * Applies the changes that were written by {@link #write(BitWriter, EntitySnapshot)} to the baseline.
+	 * @param id
+	 * @param reader
+	 * @param baseline the same baseline that was used for writing.
+	 * @return the full snapshot.
+	 */
+	public static EntitySnapshot read(int id, BitReader reader, EntitySnapshot baseline) {
+		Group entities = Group.readDelta(reader, baseline == null ? null : baseline.entities, 32, true);
+		Group items = Group.readDelta(reader, baseline == null ? null : baseline.items, 16, false);
+		return new EntitySnapshot(id, entities, items);
+	}
+
+	/**
+	 * A list of entities, sorted by their id.
+	 */
+	public static final class Group {
+		private final int idBits;
+		public int size = 0;
+		public int[] ids;
+		private int[] chunks;
+		private short[] positions;
+		private short[] velocities;
+		/** The raw float bits. null if the group doesn't have rotations. */
+		private int[] rotations;
+
+		private Group(int idBits, boolean hasRotation, int capacity) {
+			this.idBits = idBits;
+			capacity = Math.max(1, capacity);
+			ids = new int[capacity];
+			chunks = new int[3*capacity];
+			positions = new short[3*capacity];
+			velocities = new short[3*capacity];
+			rotations = hasRotation ? new int[3*capacity] : null;
+		}
+
+		private void ensureCapacity() {
+			if(size < ids.length) return;
+			int capacity = ids.length*2;
+			ids = Arrays.copyOf(ids, capacity);
+			chunks = Arrays.copyOf(chunks, 3*capacity);
+			positions = Arrays.copyOf(positions, 3*capacity);
+			velocities = Arrays.copyOf(velocities, 3*capacity);
+			if(rotations != null) {
+				rotations = Arrays.copyOf(rotations, 3*capacity);
+			}
+		}
+
+		private void add(int id, double x, double y, double z, double vx, double vy, double vz) {
+			ensureCapacity();
+			ids[size] = id;
+			quantizePosition(3*size, x);
+			quantizePosition(3*size + 1, y);
+			quantizePosition(3*size + 2, z);
+			velocities[3*size] = quantizeVelocity(vx);
+			velocities[3*size + 1] = quantizeVelocity(vy);
+			velocities[3*size + 2] = quantizeVelocity(vz);
+			size++;
+		}
+
+		private void quantizePosition(int index, double position) {
+			int chunk = (int)Math.floor(position) >> Chunk.chunkShift;
+			long quantized = Math.round((position - (double)chunk*Chunk.chunkSize)*POSITION_SCALE);
+			if(quantized >= 65536) { // Rounded up to the next chunk.
+				chunk++;
+				quantized = 0;
+			}
+			chunks[index] = chunk;
+			positions[index] = (short)quantized;
+		}
+
+		private static short quantizeVelocity(double velocity) {
+			return (short)Math.round(Math.max(-MAX_VELOCITY, Math.min(MAX_VELOCITY, velocity))*VELOCITY_SCALE);
+		}
+
+		public double getPosition(int i, int coordinate) {
+			return (double)chunks[3*i + coordinate]*Chunk.chunkSize + (positions[3*i + coordinate] & 0xffff)/POSITION_SCALE;
+		}
+
+		public double getVelocity(int i, int coordinate) {
+			return velocities[3*i + coordinate]/VELOCITY_SCALE;
+		}
+
+		public float getRotation(int i, int coordinate) {
+			return rotations == null ? 0 : Float.intBitsToFloat(rotations[3*i + coordinate]);
+		}
+
+		private void copy(Group other, int i) {
+			ensureCapacity();
+			ids[size] = other.ids[i];
+			System.arraycopy(other.chunks, 3*i, chunks, 3*size, 3);
+			System.arraycopy(other.positions, 3*i, positions, 3*size, 3);
+			System.arraycopy(other.velocities, 3*i, velocities, 3*size, 3);
+			if(rotations != null) {
+				System.arraycopy(other.rotations, 3*i, rotations, 3*size, 3);
+			}
+			size++;
+		}
+
+		private static boolean equals(int[] a, int[] b, int i, int j) {
+			return a[3*i] == b[3*j] && a[3*i + 1] == b[3*j + 1] && a[3*i + 2] == b[3*j + 2];
+		}
+
+		private static boolean equals(short[] a, short[] b, int i, int j) {
+			return a[3*i] == b[3*j] && a[3*i + 1] == b[3*j + 1] && a[3*i + 2] == b[3*j + 2];
+		}
+
+		/*
+			The format of every changed entity:
+			1 bit: 1, an entity follows
+			idBits: the id
+			1 bit: removed
+			1 bit: chunk changed, followed by the 3 differences to the old chunk
+			1 bit: position changed, followed by 3×16 bits
+			1 bit: velocity changed, followed by 3×16 bits
+			1 bit: rotation changed, followed by 3×32 bits, only if the group has rotations
+			The list ends with a single 0 bit.
+			Entities that are not in the baseline are compared to zero, so resting entities don't need to send their velocity.
+		*/
+		private void writeDelta(BitWriter writer, Group baseline) {
+			Group zero = new Group(idBits, rotations != null, 1);
+			zero.size = 1;
+			int j = 0;
+			for(int i = 0; i < size; i++) {
+				while(baseline != null && j < baseline.size && baseline.ids[j] < ids[i]) {
+					writeRemoved(writer, baseline.ids[j++]);
+				}
+				Group old = zero;
+				int base = 0;
+				if(baseline != null && j < baseline.size && baseline.ids[j] == ids[i]) {
+					old = baseline;
+					base = j++;
+				}
+				boolean chunkChanged = !equals(chunks, old.chunks, i, base);
+				boolean positionChanged = !equals(positions, old.positions, i, base);
+				boolean velocityChanged = !equals(velocities, old.velocities, i, base);
+				boolean rotationChanged = rotations != null && !equals(rotations, old.rotations, i, base);
+				if(old != zero && !chunkChanged && !positionChanged && !velocityChanged && !rotationChanged) continue;
+				writer.writeBoolean(true);
+				writer.write(ids[i], idBits);
+				writer.writeBoolean(false);
+				writer.writeBoolean(chunkChanged);
+				if(chunkChanged) {
+					for(int k = 0; k < 3; k++) {
+						writeVariableLength(writer, chunks[3*i + k] - old.chunks[3*base + k]);
+					}
+				}
+				writer.writeBoolean(positionChanged);
+				if(positionChanged) {
+					for(int k = 0; k < 3; k++) {
+						writer.write(positions[3*i + k], 16);
+					}
+				}
+				writer.writeBoolean(velocityChanged);
+				if(velocityChanged) {
+					for(int k = 0; k < 3; k++) {
+						writer.write(velocities[3*i + k], 16);
+					}
+				}
+				if(rotations != null) {
+					writer.writeBoolean(rotationChanged);
+					if(rotationChanged) {
+						for(int k = 0; k < 3; k++) {
+							writer.write(rotations[3*i + k], 32);
+						}
+					}
+				}
+			}
+			while(baseline != null && j < baseline.size) {
+				writeRemoved(writer, baseline.ids[j++]);
+			}
+			writer.writeBoolean(false);
+		}
+
+		/**
+		 * Small numbers of both signs take only a few bits: 6 bits for the length followed by the zigzag encoded value.
+		 */
+		private static void writeVariableLength(BitWriter writer, int value) {
+			int zigzag = value << 1 ^ value >> 31;
+			int bits = 32 - Integer.numberOfLeadingZeros(zigzag);
+			writer.write(bits, 6);
+			writer.write(zigzag, bits);
+		}
+
+		private static int readVariableLength(BitReader reader) {
+			int zigzag = reader.read(reader.read(6));
+			return zigzag >>> 1 ^ -(zigzag & 1);
+		}
+
+		private void writeRemoved(BitWriter writer, int id) {
+			writer.writeBoolean(true);
+			writer.write(id, idBits);
+			writer.writeBoolean(true);
+		}
+
+		private static Group readDelta(BitReader reader, Group baseline, int idBits, boolean hasRotation) {
+			Group result = new Group(idBits, hasRotation, baseline == null ? 16 : baseline.size);
+			int j = 0;
+			while(reader.readBoolean()) {
+				int id = reader.read(idBits);
+				while(baseline != null && j < baseline.size && baseline.ids[j] < id) {
+					result.copy(baseline, j++);
+				}
+				int base = -1;
+				if(baseline != null && j < baseline.size && baseline.ids[j] == id) {
+					base = j++;
+				}
+				if(reader.readBoolean()) continue; // Removed
+				int i = result.size;
+				if(base != -1) {
+					result.copy(baseline, base);
+				} else {
+					// Compared to zero. The new entries of the arrays are still zero.
+					result.ensureCapacity();
+					result.ids[i] = id;
+					result.size++;
+				}
+				if(reader.readBoolean()) {
+					for(int k = 0; k < 3; k++) {
+						result.chunks[3*i + k] += readVariableLength(reader);
+					}
+				}
+				if(reader.readBoolean()) {
+					for(int k = 0; k < 3; k++) {
+						result.positions[3*i + k] = (short)reader.read(16);
+					}
+				}
+				if(reader.readBoolean()) {
+					for(int k = 0; k < 3; k++) {
+						result.velocities[3*i + k] = (short)reader.read(16);
+					}
+				}
+				if(hasRotation && reader.readBoolean()) {
+					for(int k = 0; k < 3; k++) {
+						result.rotations[3*i + k] = reader.read(32);
+					}
+				}
+			}
+			while(baseline != null && j < baseline.size) {
+				result.copy(baseline, j++);
+			}
+			return result;
+		}
+	}
+}
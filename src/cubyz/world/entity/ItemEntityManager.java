@@ -3,7 +3,6 @@ package cubyz.world.entity;
 import cubyz.multiplayer.Protocols;
 import cubyz.multiplayer.server.Server;
 import cubyz.multiplayer.server.User;
-import cubyz.utils.math.Bits;
 import cubyz.world.ServerWorld;
 import cubyz.world.items.tools.Tool;
 import org.joml.Vector3d;
@@ -112,29 +111,6 @@ public class ItemEntityManager {
 
 	}
 
-	public byte[] getPositionAndVelocityData() {
-		byte[] data = new byte[size*(6*8 + 2)];
-		int offset = 0;
-		for(int ii = 0; ii < size; ii++) {
-			int i = indices[ii] & 0xffff;
-			Bits.putShort(data, offset, (short)i);
-			offset += 2;
-			Bits.putDouble(data, offset, posxyz[3*i]);
-			offset += 8;
-			Bits.putDouble(data, offset, posxyz[3*i+1]);
-			offset += 8;
-			Bits.putDouble(data, offset, posxyz[3*i+2]);
-			offset += 8;
-			Bits.putDouble(data, offset, velxyz[3*i]);
-			offset += 8;
-			Bits.putDouble(data, offset, velxyz[3*i+1]);
-			offset += 8;
-			Bits.putDouble(data, offset, velxyz[3*i+2]);
-			offset += 8;
-		}
-		return data;
-	}
-
 	private JsonObject storeSingle(int i) {
 		int i3 = i*3;
 		JsonObject obj = new JsonObject();
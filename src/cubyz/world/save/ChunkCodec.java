@@ -0,0 +1,62 @@
+package cubyz.world.save;
+
+import java.util.Arrays;
+
+import cubyz.world.Chunk;
+
+/**
+ * A compression algorithm for chunk data.<br>
+ * Every codec has a unique id, which is stored in region files and network packets to identify it.
+ */
+public abstract class ChunkCodec {
+	/** No valid chunk data is bigger. Normal chunks need 4 bytes per block, the visibility data of reduced chunks up to 8. Longer lengths in the compressed data are rejected, instead of allocating huge buffers. */
+	public static final int MAX_DECOMPRESSED_SIZE = 8 << Chunk.chunkShift*3;
+	private static final ThreadLocal<byte[]> threadLocalOutputBuffer = ThreadLocal.withInitial(() -> new byte[4 << Chunk.chunkShift*3]);
+
+	public final byte id;
+
+	public ChunkCodec(byte id) {
+		assert ChunkCodecs.list[id & 0xff] == null : "Chunk codecs have duplicate id : " + this.getClass() + " " + ChunkCodecs.list[id & 0xff].getClass();
+		this.id = id;
+		ChunkCodecs.list[id & 0xff] = this;
+	}
+
+	/**
+	 * @param input
+	 * @param offset
+	 * @param length
+	 * @return a new array containing only the compressed data.
+	 */
+	public abstract byte[] compress(byte[] input, int offset, int length);
+
+	/**
+	 * Decompresses the data into the thread local output buffer.
+	 * The result is only valid until the next decompression on the same thread.
+	 * @param in
+	 * @param offset
+	 * @param length
+	 * @return the length of the decompressed data inside {@link #getOutputBuffer()} or -1 if the data is corrupted.
+	 */
+	public abstract int decompress(byte[] in, int offset, int length);
+
+	/**
+	 * @return the thread local buffer that contains the result of the last decompression.
+	 */
+	public static byte[] getOutputBuffer() {
+		return threadLocalOutputBuffer.get();
+	}
+
+	/**
+	 * Makes sure that the thread local output buffer can hold at least the given amount of bytes. Keeps the current contents.
+	 * @param capacity
+	 * @return the output buffer
+	 */
+	protected static byte[] ensureOutputCapacity(int capacity) {
+		byte[] output = threadLocalOutputBuffer.get();
+		if(capacity > output.length) {
+			output = Arrays.copyOf(output, Math.max(capacity, output.length*2));
+			threadLocalOutputBuffer.set(output);
+		}
+		return output;
+	}
+}
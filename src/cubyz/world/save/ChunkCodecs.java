@@ -0,0 +1,27 @@
+package cubyz.world.save;
+
+import cubyz.world.save.codecs.*;
+
+public final class ChunkCodecs {
+	private ChunkCodecs() {} // No instances allowed.
+
+	public static final ChunkCodec[] list = new ChunkCodec[256];
+
+	public static final DeflateCodec DEFLATE = new DeflateCodec();
+	public static final FastLZCodec FAST_LZ = new FastLZCodec();
+	public static final PaletteCodec PALETTE = new PaletteCodec();
+
+	/** Used when sending chunks over the network, where encoding speed matters more than size. */
+	public static final ChunkCodec NETWORK = FAST_LZ;
+	/** Used for newly created region files, which are rarely rewritten. */
+	public static final ChunkCodec STORAGE = PALETTE;
+
+	/**
+	 * @param id
+	 * @return the codec with the given id or null if there is none.
+	 */
+	public static ChunkCodec get(int id) {
+		if((id & 0xff) != id) return null;
+		return list[id];
+	}
+}
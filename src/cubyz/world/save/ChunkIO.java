@@ -1,113 +1,106 @@
 package cubyz.world.save;
 
 import cubyz.utils.Logger;
+import cubyz.utils.MemoryGovernor;
 import cubyz.utils.datastructures.Cache;
-import cubyz.world.Chunk;
 import cubyz.world.SavableChunk;
 import cubyz.world.World;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 public final class ChunkIO {
 	private ChunkIO() {} // No instances allowed.
 
 	private static final ThreadLocal<byte[]> threadLocalInputBuffer = ThreadLocal.withInitial(() -> new byte[4096]);
-	private static final ThreadLocal<byte[]> threadLocalOutputBuffer = ThreadLocal.withInitial(() -> new byte[4 << Chunk.chunkShift*3]);
 
-	// Region files generally seem to be less than 1 MB on disk. To be on the safe side the amount of cached region files is limited to 128.
-	private static final int HASH_MASK = 31;
-	private static final Cache<RegionFile> regionCache = new Cache<>(new RegionFile[HASH_MASK+1][4]);
+	// Every cached region file may keep a file open. To be on the safe side the amount of cached region files is limited to about 128.
+	private static final long REGION_CACHE_SIZE = 128L*(8*8*8*8 + 256);
+	private static final Cache<RegionFile> regionCache = new Cache<>("regionFiles", REGION_CACHE_SIZE, RegionFile::getMemoryUsage, RegionFile::clean);
+	static {
+		MemoryGovernor.register(regionCache, REGION_CACHE_SIZE);
+	}
 	
-	private static RegionFile getOrLoadRegionFile(World world, int wx, int wy, int wz, int voxelSize, String fileEnding) {
+	static RegionFile getOrLoadRegionFile(World world, int wx, int wy, int wz, int voxelSize, String fileEnding) {
 		wx = RegionFile.findCoordinate(wx, voxelSize);
 		wy = RegionFile.findCoordinate(wy, voxelSize);
 		wz = RegionFile.findCoordinate(wz, voxelSize);
 		RegionFileCompare data = new RegionFileCompare(wx, wy, wz, voxelSize, fileEnding);
-		int hash = data.hashCode() & HASH_MASK;
-		RegionFile res = regionCache.find(data, hash);
-		if (res != null) return res;
-		synchronized(regionCache.cache[hash]) {
-			res = regionCache.find(data, hash);
-			if (res != null) return res;
-			// Generate a new chunk:
-			res = new RegionFile(world, wx, wy, wz, voxelSize, fileEnding);
-			RegionFile old = regionCache.addToCache(res, hash);
-			if(old != null) {
-				old.clean();
-			}
-		}
-		return res;
+		return regionCache.findOrCreate(data, () -> new RegionFile(world, data.wx, data.wy, data.wz, voxelSize, fileEnding));
 	}
 	public static boolean loadChunkFromFile(World world, SavableChunk ch) {
+		ChunkSaveQueue.writePending(world, ch);
 		RegionFile region = getOrLoadRegionFile(world, ch.wx, ch.wy, ch.wz, ch.voxelSize, ch.fileEnding());
 		return region.loadChunk(ch);
 	}
+	/**
+	 * Queues the chunk for saving. It is compressed and written later on a background thread.
+	 * @param world
+	 * @param ch
+	 */
 	public static void storeChunkToFile(World world, SavableChunk ch) {
-		RegionFile region = getOrLoadRegionFile(world, ch.wx, ch.wy, ch.wz, ch.voxelSize, ch.fileEnding());
-		region.saveChunk(ch);
+		ChunkSaveQueue.add(world, ch);
 	}
 	
+	/**
+	 * Waits until all previously stored chunks are written and makes sure they reach the disk.
+	 */
 	public static void save() {
-		regionCache.foreach(RegionFile::clean);
+		ChunkSaveQueue.flush();
+		regionCache.foreach(RegionFile::store);
 	}
 	
 	public static void clean() {
 		save();
+		// Removed from the cache first, so nothing gets forwarded to the closed files:
+		ArrayList<RegionFile> regions = new ArrayList<>();
+		regionCache.foreach(regions::add);
 		regionCache.clear();
-	}
-
-	public static byte[] compressChunk(byte[] input) {
-		byte[] output = threadLocalOutputBuffer.get();
-
-		Deflater compressor = new Deflater();
-		compressor.setInput(input);
-		compressor.finish();
-		int dataLength = compressor.deflate(output);
-
-		while(!compressor.needsInput()) { // The buffer was too small. Switching to a bigger buffer.
-			output = Arrays.copyOf(output, output.length*2);
-			threadLocalOutputBuffer.set(output);
-			dataLength += compressor.deflate(output, output.length/2, output.length/2);
+		for(RegionFile region : regions) {
+			region.clean();
 		}
-		compressor.end();
-
-		return Arrays.copyOf(output, dataLength);
 	}
 
-	public static byte[] compressChunk(SavableChunk ch) {
-		return compressChunk(ch.saveToByteArray());
-	}
-
-	public static byte[] decompressChunk(byte[] in, int offset, int length) {
+	/**
+	 * Returns a thread local buffer that can hold at least the given amount of compressed data.
+	 * @param length
+	 * @return
+	 */
+	static byte[] getInputBuffer(int length) {
 		byte[] input = threadLocalInputBuffer.get();
 		if(length > input.length) {
-			input = new byte[length];
+			input = new byte[Math.max(length, input.length*2)];
 			threadLocalInputBuffer.set(input);
 		}
-		byte[] output = threadLocalOutputBuffer.get();
-		System.arraycopy(in, offset, input, 0, length);
+		return input;
+	}
 
-		Inflater decompresser = new Inflater();
-		decompresser.setInput(input, 0, length);
-		int outputLength;
-		try {
-			outputLength = decompresser.inflate(output);
-			while(!decompresser.finished()) {
-				output = Arrays.copyOf(output, output.length*2);
-				threadLocalOutputBuffer.set(output);
-				outputLength += decompresser.inflate(output, outputLength, output.length - outputLength);
-			}
-		} catch (DataFormatException e) {
-			Logger.error(e);
-			return null;
-		}
-		decompresser.end();
+	public static byte[] compressChunk(byte[] input, ChunkCodec codec) {
+		return codec.compress(input, 0, input.length);
+	}
+
+	public static byte[] compressChunk(SavableChunk ch, ChunkCodec codec) {
+		return compressChunk(ch.saveToByteArray(), codec);
+	}
+
+	public static byte[] decompressChunk(byte[] in, int offset, int length, ChunkCodec codec) {
+		int outputLength = codec.decompress(in, offset, length);
+		if(outputLength == -1) return null;
+		return Arrays.copyOf(ChunkCodec.getOutputBuffer(), outputLength);
+	}
 
-		byte[] out = new byte[outputLength]; // TODO(post-valhalla): return an offset byte array.
-		System.arraycopy(output, 0, out, 0, outputLength);
-		return out;
+	/**
+	 * Decompresses the data and directly loads it into the chunk, without creating an intermediate array.
+	 * @param in
+	 * @param offset
+	 * @param length
+	 * @param codec
+	 * @param ch
+	 * @return true if the chunk was successfully loaded.
+	 */
+	public static boolean decompressChunk(byte[] in, int offset, int length, ChunkCodec codec, SavableChunk ch) {
+		int outputLength = codec.decompress(in, offset, length);
+		if(outputLength == -1) return false;
+		return ch.loadFromByteArray(ChunkCodec.getOutputBuffer(), outputLength);
 	}
 }
@@ -0,0 +1,203 @@
+package cubyz.world.save;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cubyz.utils.Logger;
+import cubyz.world.SavableChunk;
+import cubyz.world.World;
+
+/**
+ * Collects chunks that need to be saved and writes them on a few background threads.<br>
+ * Saving the same chunk multiple times within {@value #SAVE_DELAY} ms only writes it once,
+ * and all pending chunks of a region are written together.<br>
+ * The chunk data is copied when the chunk is added, because the owner thread may keep changing the chunk.
+ * A region is only ever written by one thread at a time, so an older copy can never overwrite a newer one.
+ */
+final class ChunkSaveQueue {
+	private ChunkSaveQueue() {} // No instances allowed.
+
+	/** The time in milliseconds a chunk waits in the queue, so repeated changes can be combined into one write. */
+	private static final int SAVE_DELAY = 2000;
+	private static final int THREAD_COUNT = 2;
+
+	/** Sorted by the time the region was first added, which also is the order in which they are due. */
+	private static final LinkedHashMap<RegionFileCompare, PendingRegion> queue = new LinkedHashMap<>();
+	/** Regions that are currently written by one of the save threads. Maps to their sequence number. */
+	private static final HashMap<RegionFileCompare, Long> inProgress = new HashMap<>();
+	private static long sequence = 0;
+	/** Number of threads waiting in {@link #flush()}. Save threads ignore the save delay while this is non-zero. */
+	private static int flushingThreads = 0;
+
+	static {
+		for(int i = 0; i < THREAD_COUNT; i++) {
+			Thread thread = new Thread(ChunkSaveQueue::run);
+			thread.setName("Save-Thread-" + (i+1));
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private static RegionFileCompare getRegionKey(SavableChunk ch) {
+		return new RegionFileCompare(
+			RegionFile.findCoordinate(ch.wx, ch.voxelSize),
+			RegionFile.findCoordinate(ch.wy, ch.voxelSize),
+			RegionFile.findCoordinate(ch.wz, ch.voxelSize),
+			ch.voxelSize, ch.fileEnding()
+		);
+	}
+
+	/**
+	 * Adds the chunk to the queue. If it is already waiting to be saved, the old entry is used.
+	 * @param world
+	 * @param ch
+	 */
+	public static void add(World world, SavableChunk ch) {
+		RegionFileCompare key = getRegionKey(ch);
+		byte[] data = ch.saveToByteArray();
+		synchronized(queue) {
+			PendingRegion region = queue.get(key);
+			if(region == null) {
+				region = new PendingRegion(world, sequence++);
+				queue.put(key, region);
+				queue.notifyAll();
+			}
+			region.chunks.put(ch, data);
+		}
+	}
+
+	/**
+	 * Makes sure that the given chunk is not waiting to be written, so the file contains its latest state.
+	 * @param world
+	 * @param ch
+	 */
+	public static void writePending(World world, SavableChunk ch) {
+		RegionFileCompare key = getRegionKey(ch);
+		byte[] pending;
+		synchronized(queue) {
+			while(inProgress.containsKey(key)) {
+				try {
+					queue.wait();
+				} catch(InterruptedException e) {
+					Logger.error(e);
+					return;
+				}
+			}
+			PendingRegion region = queue.get(key);
+			if(region == null) return;
+			pending = region.chunks.remove(ch);
+			if(pending == null) return;
+			if(region.chunks.isEmpty()) {
+				queue.remove(key);
+			}
+			inProgress.put(key, region.sequence);
+		}
+		try {
+			ChunkIO.getOrLoadRegionFile(world, ch.wx, ch.wy, ch.wz, ch.voxelSize, ch.fileEnding()).saveChunks(new SavableChunk[] {ch}, new byte[][] {pending});
+		} finally {
+			synchronized(queue) {
+				inProgress.remove(key);
+				queue.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Blocks until every chunk that was added before this call has been written.
+	 */
+	public static void flush() {
+		synchronized(queue) {
+			long target = sequence;
+			flushingThreads++;
+			queue.notifyAll();
+			try {
+				while(true) {
+					boolean done = queue.isEmpty() || queue.values().iterator().next().sequence >= target;
+					for(long inProgressSequence : inProgress.values()) {
+						done &= inProgressSequence >= target;
+					}
+					if(done) break;
+					queue.wait();
+				}
+			} catch(InterruptedException e) {
+				Logger.error(e);
+			} finally {
+				flushingThreads--;
+			}
+		}
+	}
+
+	private static void run() {
+		while(true) {
+			RegionFileCompare key;
+			PendingRegion region;
+			synchronized(queue) {
+				try {
+					while(true) {
+						// Find the first region that isn't already written by another thread:
+						key = null;
+						region = null;
+						Iterator<Map.Entry<RegionFileCompare, PendingRegion>> iterator = queue.entrySet().iterator();
+						while(iterator.hasNext()) {
+							Map.Entry<RegionFileCompare, PendingRegion> entry = iterator.next();
+							if(!inProgress.containsKey(entry.getKey())) {
+								key = entry.getKey();
+								region = entry.getValue();
+								break;
+							}
+						}
+						if(region == null) {
+							queue.wait();
+							continue;
+						}
+						long remainingTime = region.dueTime - System.currentTimeMillis();
+						if(remainingTime <= 0 || flushingThreads != 0) {
+							iterator.remove();
+							break;
+						}
+						queue.wait(remainingTime);
+					}
+				} catch(InterruptedException e) {
+					break;
+				}
+				inProgress.put(key, region.sequence);
+			}
+			try {
+				SavableChunk[] chunks = new SavableChunk[region.chunks.size()];
+				byte[][] data = new byte[chunks.length][];
+				int i = 0;
+				for(Map.Entry<SavableChunk, byte[]> entry : region.chunks.entrySet()) {
+					chunks[i] = entry.getKey();
+					data[i] = entry.getValue();
+					i++;
+				}
+				SavableChunk first = chunks[0];
+				ChunkIO.getOrLoadRegionFile(region.world, first.wx, first.wy, first.wz, first.voxelSize, first.fileEnding()).saveChunks(chunks, data);
+			} catch(Throwable e) {
+				Logger.error("Could not save region " + key + " !");
+				Logger.error(e);
+			} finally {
+				synchronized(queue) {
+					inProgress.remove(key);
+					queue.notifyAll();
+				}
+			}
+		}
+	}
+
+	private static final class PendingRegion {
+		private final World world;
+		private final long sequence;
+		private final long dueTime;
+		/** The data of every chunk at the time it was added. */
+		private final HashMap<SavableChunk, byte[]> chunks = new HashMap<>();
+
+		private PendingRegion(World world, long sequence) {
+			this.world = world;
+			this.sequence = sequence;
+			dueTime = System.currentTimeMillis() + SAVE_DELAY;
+		}
+	}
+}
@@ -1,15 +1,17 @@
 package cubyz.world.save;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
 
-import cubyz.client.GameLauncher;
-import cubyz.multiplayer.server.Server;
 import cubyz.utils.Logger;
 import cubyz.utils.math.Bits;
 import cubyz.world.Chunk;
@@ -17,160 +19,407 @@ import cubyz.world.SavableChunk;
 import cubyz.world.World;
 
 /**
- * Multiple chunks are bundled up in regions to reduce disk reads/writes.
+ * Multiple chunks are bundled up in regions to reduce disk reads/writes.<br>
+ * The file starts with a fixed size header that stores the position and length of every chunk.
+ * The chunk data itself is stored in slots made of {@value #SECTOR_SIZE} byte sectors,
+ * so saving a chunk only needs to write its own sectors and its header entry.
  */
 public class RegionFile extends RegionFileCompare {
 	public static final int REGION_SHIFT = 3;
 	public static final int REGION_SIZE = 1 << REGION_SHIFT;
-	private byte[] data = new byte[0];
-	private final boolean[] occupancy = new boolean[REGION_SIZE*REGION_SIZE*REGION_SIZE];
-	private final int[] startingIndices = new int[REGION_SIZE*REGION_SIZE*REGION_SIZE + 1];
-	private boolean wasChanged = false;
-	private boolean storeOnChange = false;
+	private static final int CHUNKS_PER_REGION = REGION_SIZE*REGION_SIZE*REGION_SIZE;
+
+	/** Replaces the legacy format, which started with the compressor version 0 and stored everything in one consecutive block. */
+	private static final int FORMAT_VERSION = 1;
+	private static final int LEGACY_FORMAT = 0;
+
+	public static final int SECTOR_SHIFT = 9;
+	public static final int SECTOR_SIZE = 1 << SECTOR_SHIFT;
+	/** format version, compressor version, then for every chunk: starting sector and length in bytes */
+	private static final int HEADER_SIZE = 8 + 8*CHUNKS_PER_REGION;
+	private static final int HEADER_SECTORS = (HEADER_SIZE + SECTOR_SIZE - 1) >> SECTOR_SHIFT;
+
+	/** The files that are open in a RegionFile instance. A new instance for the same file has to wait until the old one is {@link #clean() closed}. */
+	private static final HashSet<String> openFiles = new HashSet<>();
+
+	private final World world;
+	private final File file;
+	private FileChannel channel;
+	/** Set when this got evicted. Later loads and saves are forwarded to the current instance of the same file. */
+	private boolean closed = false;
+	private boolean registered = false;
+	private final int[] startingSectors = new int[CHUNKS_PER_REGION];
+	private final int[] lengths = new int[CHUNKS_PER_REGION];
+	/** Marks all sectors that are currently in use. Free sectors in between get reused by later saves. */
+	private final BitSet usedSectors = new BitSet();
+	/** New region files use the storage codec. Existing files keep the codec they were created with. */
+	private ChunkCodec codec = ChunkCodecs.STORAGE;
+	/** Set for files that can't be read, for example because they were written by a newer version. They must not be overwritten. */
+	private boolean readOnly = false;
+	private boolean warnedAboutReadOnly = false;
 
 	public RegionFile(World world, int wx, int wy, int wz, int voxelSize, String fileEnding) {
 		super(wx, wy, wz, voxelSize, fileEnding);
-		// Load data from file:
-		File file = new File("saves/"+world.getName()+"/"+voxelSize+"/"+wx+"/"+wy+"/"+wz+"."+fileEnding);
+		this.world = world;
+		usedSectors.set(0, HEADER_SECTORS);
+		file = new File("saves/"+world.getName()+"/"+voxelSize+"/"+wx+"/"+wy+"/"+wz+"."+fileEnding);
+		// An evicted instance may still be writing. Its changes need to be on disk before the header is read:
+		synchronized(openFiles) {
+			while(!openFiles.add(file.getAbsolutePath())) {
+				try {
+					openFiles.wait();
+				} catch(InterruptedException e) {
+					Logger.error(e);
+					readOnly = true;
+					return;
+				}
+			}
+			registered = true;
+		}
 		if(!file.exists()) {
 			return;
 		}
-		try (InputStream in = new FileInputStream(file)) {
-			byte[] data = in.readAllBytes();
-			if(data.length < 4) return;
-			
-			int offset = 0;
-			int compressor = Bits.getInt(data, offset);
-			offset += 4;
-			if(compressor != 0) {
-				Logger.error("Unknown compression algorithm "+compressor+" for save file \""+file.getAbsolutePath()+"\".");
-				return;
+		try {
+			if(file.length() < 4) return;
+			int version;
+			try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				ByteBuffer buffer = ByteBuffer.allocate(4);
+				readFully(in, buffer, 0);
+				version = buffer.getInt(0);
+			}
+			if(version == LEGACY_FORMAT) {
+				upgradeLegacyFile();
+			} else if(version == FORMAT_VERSION) {
+				loadHeader();
+			} else {
+				Logger.error("Unknown region format "+version+" for save file \""+file.getAbsolutePath()+"\". The region won't be saved.");
+				readOnly = true;
+			}
+		} catch (IOException e) {
+			Logger.error("Unable to load chunk resources. The region won't be saved.");
+			Logger.error(e);
+			// The header might be half read, so it can't be trusted:
+			Arrays.fill(lengths, 0);
+			readOnly = true;
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if(read < 0) throw new IOException("Unexpected end of file.");
+			position += read;
+		}
+		buffer.flip();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	private FileChannel getChannel() throws IOException {
+		if(channel == null) {
+			file.getParentFile().mkdirs();
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			if(channel.size() < HEADER_SIZE) {
+				writeHeader(channel);
+			}
+		}
+		return channel;
+	}
+
+	private void loadHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			readFully(in, header, 0);
+		}
+		int compressor = header.getInt(4);
+		codec = ChunkCodecs.get(compressor);
+		if(codec == null) {
+			Logger.error("Unknown compression algorithm "+compressor+" for save file \""+file.getAbsolutePath()+"\". The region won't be saved.");
+			codec = ChunkCodecs.STORAGE;
+			readOnly = true;
+			return;
+		}
+		for(int i = 0; i < CHUNKS_PER_REGION; i++) {
+			startingSectors[i] = header.getInt(8 + 8*i);
+			lengths[i] = header.getInt(12 + 8*i);
+			if(lengths[i] != 0) {
+				usedSectors.set(startingSectors[i], startingSectors[i] + sectorsNeeded(lengths[i]));
 			}
-			byte[] occupancyBytes = new byte[occupancy.length/8];
-			System.arraycopy(data, 4, occupancyBytes, 0, occupancyBytes.length);
-			offset += occupancyBytes.length;
-			int index = -1;
-			for(int i = 0; i < occupancy.length; i++) {
-				occupancy[i] = (occupancyBytes[i >> 3] & 1L << (i & 7)) != 0;
-				if(occupancy[i]) {
-					startingIndices[i] = Bits.getInt(data, offset);
-					for(index++; index < i; index++) {
-						startingIndices[index] = startingIndices[i];
-					}
-					offset += 4;
-				} else if(i == 0) {
-					startingIndices[i] = 0;
-				} else {
-					startingIndices[i] = startingIndices[i - 1];
+		}
+	}
+
+	private void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(FORMAT_VERSION);
+		header.putInt(codec.id); // compressor version
+		for(int i = 0; i < CHUNKS_PER_REGION; i++) {
+			header.putInt(startingSectors[i]);
+			header.putInt(lengths[i]);
+		}
+		header.flip();
+		writeFully(channel, header, 0);
+	}
+
+	/**
+	 * Reads a file in the old format, that stored all chunks consecutively, and rewrites it in the sector format.
+	 * The new file is written next to the old one and then moved over it, so the region survives if anything goes wrong in between.
+	 */
+	private void upgradeLegacyFile() throws IOException {
+		byte[] data = Files.readAllBytes(file.toPath());
+		int offset = 4;
+		boolean[] occupancy = new boolean[CHUNKS_PER_REGION];
+		int[] startingIndices = new int[CHUNKS_PER_REGION + 1];
+		int occupancyOffset = offset;
+		offset += occupancy.length/8;
+		int index = -1;
+		for(int i = 0; i < occupancy.length; i++) {
+			occupancy[i] = (data[occupancyOffset + (i >> 3)] & 1L << (i & 7)) != 0;
+			if(occupancy[i]) {
+				startingIndices[i] = Bits.getInt(data, offset);
+				for(index++; index < i; index++) {
+					startingIndices[index] = startingIndices[i];
 				}
+				offset += 4;
+			} else if(i == 0) {
+				startingIndices[i] = 0;
+			} else {
+				startingIndices[i] = startingIndices[i - 1];
 			}
-			
-			this.data = Arrays.copyOfRange(data, offset, data.length);
-			for(index++; index < startingIndices.length; index++) {
-				startingIndices[index] = this.data.length;
+		}
+		int dataStart = offset;
+		for(index++; index < startingIndices.length; index++) {
+			startingIndices[index] = data.length - dataStart;
+		}
+
+		// Rewrite the file in the new format:
+		codec = ChunkCodecs.DEFLATE; // The legacy format only supported Deflate.
+		Path tempFile = new File(file.getPath()+".tmp").toPath();
+		int nextSector = HEADER_SECTORS;
+		try (FileChannel out = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			for(int i = 0; i < CHUNKS_PER_REGION; i++) {
+				int length = startingIndices[i + 1] - startingIndices[i];
+				if(length == 0) continue;
+				startingSectors[i] = nextSector;
+				lengths[i] = length;
+				writeFully(out, ByteBuffer.wrap(data, dataStart + startingIndices[i], length), (long)nextSector << SECTOR_SHIFT);
+				nextSector += sectorsNeeded(length);
 			}
+			writeHeader(out);
+			out.force(true);
 		} catch (IOException e) {
-			Logger.error("Unable to load chunk resources.");
-			Logger.error(e);
+			Files.deleteIfExists(tempFile);
+			throw e;
+		}
+		Files.move(tempFile, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		usedSectors.set(HEADER_SECTORS, nextSector);
+		Logger.info("Upgraded region file \""+file.getPath()+"\" to the sector format.");
+	}
+
+	private static int sectorsNeeded(int length) {
+		return (length + SECTOR_SIZE - 1) >> SECTOR_SHIFT;
+	}
+
+	/**
+	 * Finds the first free space in the file that can hold the given amount of sectors.
+	 * @param sectors
+	 * @return starting sector
+	 */
+	private int allocateSectors(int sectors) {
+		int start = usedSectors.nextClearBit(HEADER_SECTORS);
+		while(true) {
+			int end = usedSectors.nextSetBit(start);
+			if(end == -1 || end - start >= sectors) break;
+			start = usedSectors.nextClearBit(end);
 		}
+		usedSectors.set(start, start + sectors);
+		return start;
 	}
-	
+
 	private int getChunkIndex(SavableChunk ch) {
 		int chunkIndex = (ch.wx - wx)/ch.getWidth();
 		chunkIndex = chunkIndex << REGION_SHIFT | (ch.wy - wy)/ch.getWidth();
 		chunkIndex = chunkIndex << REGION_SHIFT | (ch.wz - wz)/ch.getWidth();
 		return chunkIndex;
 	}
-	
+
 	public boolean loadChunk(SavableChunk ch) {
 		assert ch.fileEnding().equals(fileEnding) : "Wrong RegionFile: Uses file ending ."+fileEnding+"  instead of ."+ch.fileEnding();
 		int chunkIndex = getChunkIndex(ch);
-		
-		int inputLength = startingIndices[chunkIndex + 1] - startingIndices[chunkIndex];
-		if(inputLength == 0) return false;
-		
-		byte[] out = ChunkIO.decompressChunk(data, startingIndices[chunkIndex], inputLength);
 
-		if(out == null) return false;
-		
-		return ch.loadFromByteArray(out, out.length);
+		byte[] input;
+		int inputLength;
+		synchronized(this) {
+			if(closed) {
+				input = null;
+				inputLength = 0;
+			} else {
+				inputLength = lengths[chunkIndex];
+				if(inputLength == 0) return false;
+				input = ChunkIO.getInputBuffer(inputLength);
+				try {
+					readFully(getChannel(), ByteBuffer.wrap(input, 0, inputLength), (long)startingSectors[chunkIndex] << SECTOR_SHIFT);
+				} catch (IOException e) {
+					Logger.error("Unable to load chunk resources.");
+					Logger.error(e);
+					return false;
+				}
+			}
+		}
+		if(input == null) return getCurrentInstance().loadChunk(ch);
+
+		return ChunkIO.decompressChunk(input, 0, inputLength, codec, ch);
 	}
-	
+
 	public void saveChunk(SavableChunk ch) {
-		assert ch.fileEnding().equals(fileEnding) : "Wrong RegionFile: Uses file ending ."+fileEnding+"  instead of ."+ch.fileEnding();
+		saveChunks(new SavableChunk[] {ch}, new byte[][] {ch.saveToByteArray()});
+	}
+
+	/**
+	 * Saves multiple chunks of this region at once. All header entries are updated with a single write.<br>
+	 * The chunks are always written into free sectors and the header only points to them after they were written,
+	 * so a crash at any point leaves every chunk either in its old or in its new state.
+	 * @param chunks
+	 * @param data the uncompressed data of every chunk, as returned by {@link SavableChunk#saveToByteArray()}.
+	 */
+	public void saveChunks(SavableChunk[] chunks, byte[][] data) {
+		boolean isClosed;
 		synchronized(this) {
-			wasChanged = true;
-			int chunkIndex = getChunkIndex(ch);
-			
-			int dataInsertionIndex = startingIndices[chunkIndex];
-			int oldDataLength = startingIndices[chunkIndex + 1] - dataInsertionIndex;
-
-			byte[] output = ChunkIO.compressChunk(ch);
-
-			byte[] newData = new byte[data.length + output.length - oldDataLength];
-			System.arraycopy(data, 0, newData, 0, dataInsertionIndex);
-			System.arraycopy(output, 0, newData, dataInsertionIndex, output.length);
-			System.arraycopy(data, startingIndices[chunkIndex + 1], newData, dataInsertionIndex + output.length, data.length - startingIndices[chunkIndex + 1]);
-			data = newData;
-			
-			for(int i = chunkIndex + 1; i < startingIndices.length; i++) {
-				startingIndices[i] += output.length - oldDataLength;
-			}
-			if(oldDataLength == 0) {
-				// This chunks wasn't in the list before:
-				occupancy[chunkIndex] = true;
-			}
-			if(storeOnChange)
-				unsynchronized_store();
-		}
-	}
-	
-	private void unsynchronized_store() {
-		if(!wasChanged) return; // No need to save it.
-		File file = new File("saves/"+ Server.world.getName()+"/"+voxelSize+"/"+wx+"/"+wy+"/"+wz+"."+fileEnding);
-		file.getParentFile().mkdirs();
-		try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
-			byte[] occupancyBytes = new byte[occupancy.length/8];
-			int numberOfChunks = 0;
-			for(int i = 0; i < occupancy.length; i++) {
-				if(occupancy[i]) {
-					occupancyBytes[i >> 3] |= 1L << (i & 7);
-					numberOfChunks++;
+			isClosed = closed;
+			if(readOnly && !isClosed) {
+				if(!warnedAboutReadOnly) {
+					Logger.warning("Changes in region \""+file.getPath()+"\" are not saved, because the file couldn't be read.");
+					warnedAboutReadOnly = true;
 				}
+				return;
 			}
-			
-			byte[] metaData = new byte[4 + occupancyBytes.length + 4*numberOfChunks];
-			int offset = 0;
-			Bits.putInt(metaData, offset, 0); // compressor version
-			offset += 4;
-			System.arraycopy(occupancyBytes, 0, metaData, 4, occupancyBytes.length);
-			offset += occupancyBytes.length;
-			for(int i = 0; i < occupancy.length; i++) {
-				if(occupancy[i]) {
-					Bits.putInt(metaData, offset, startingIndices[i]);
-					offset += 4;
-				}
+		}
+		if(isClosed) {
+			getCurrentInstance().saveChunks(chunks, data);
+			return;
+		}
+		byte[][] outputs = new byte[chunks.length][];
+		int[] chunkIndices = new int[chunks.length];
+		int minIndex = CHUNKS_PER_REGION;
+		int maxIndex = -1;
+		for(int i = 0; i < chunks.length; i++) {
+			assert chunks[i].fileEnding().equals(fileEnding) : "Wrong RegionFile: Uses file ending ."+fileEnding+"  instead of ."+chunks[i].fileEnding();
+			outputs[i] = ChunkIO.compressChunk(data[i], codec);
+			chunkIndices[i] = getChunkIndex(chunks[i]);
+			minIndex = Math.min(minIndex, chunkIndices[i]);
+			maxIndex = Math.max(maxIndex, chunkIndices[i]);
+		}
+		if(maxIndex == -1) return;
+		synchronized(this) {
+			isClosed = closed; // Could have been evicted while compressing.
+			if(!isClosed && !readOnly) {
+				writeChunks(chunkIndices, outputs, minIndex, maxIndex);
+			}
+		}
+		if(isClosed) {
+			getCurrentInstance().saveChunks(chunks, data);
+		}
+	}
+
+	/**
+	 * Needs the lock of this.
+	 */
+	private void writeChunks(int[] chunkIndices, byte[][] outputs, int minIndex, int maxIndex) {
+		int[] newStarts = new int[chunkIndices.length];
+		try {
+			FileChannel channel = getChannel();
+			for(int i = 0; i < chunkIndices.length; i++) {
+				newStarts[i] = allocateSectors(sectorsNeeded(outputs[i].length));
+				writeFully(channel, ByteBuffer.wrap(outputs[i]), (long)newStarts[i] << SECTOR_SHIFT);
+			}
+			// The data must be on disk, before the header points to it:
+			channel.force(false);
+			int[] newStartingSectors = Arrays.copyOfRange(startingSectors, minIndex, maxIndex + 1);
+			int[] newLengths = Arrays.copyOfRange(lengths, minIndex, maxIndex + 1);
+			for(int i = 0; i < chunkIndices.length; i++) {
+				newStartingSectors[chunkIndices[i] - minIndex] = newStarts[i];
+				newLengths[chunkIndices[i] - minIndex] = outputs[i].length;
 			}
-			
-			out.write(metaData);
-			out.write(data);
+			ByteBuffer entries = ByteBuffer.allocate(8*newLengths.length);
+			for(int i = 0; i < newLengths.length; i++) {
+				entries.putInt(newStartingSectors[i]);
+				entries.putInt(newLengths[i]);
+			}
+			entries.flip();
+			writeFully(channel, entries, 8 + 8*minIndex);
 		} catch (IOException e) {
-			Logger.error("Unable to store chunk resources.");
+			Logger.error("Unable to store chunk resources. The region won't be saved anymore.");
 			Logger.error(e);
+			// It is unknown whether the header points to the old or the new data, so no sectors can be reused safely:
+			readOnly = true;
+			return;
+		}
+		// Only now the old sectors are no longer referenced by the file:
+		for(int i = 0; i < chunkIndices.length; i++) {
+			int chunkIndex = chunkIndices[i];
+			if(lengths[chunkIndex] != 0) {
+				usedSectors.clear(startingSectors[chunkIndex], startingSectors[chunkIndex] + sectorsNeeded(lengths[chunkIndex]));
+			}
+			startingSectors[chunkIndex] = newStarts[i];
+			lengths[chunkIndex] = outputs[i].length;
 		}
-		wasChanged = false;
 	}
-	
+
+	/**
+	 * @return the instance that is currently in the region cache for this file.
+	 */
+	private RegionFile getCurrentInstance() {
+		RegionFile instance = ChunkIO.getOrLoadRegionFile(world, wx, wy, wz, voxelSize, fileEnding);
+		assert instance != this : "Closed region files must not stay in the cache.";
+		return instance;
+	}
+
+	/**
+	 * @return a rough estimate of the heap memory used by this region file in bytes.
+	 */
+	public int getMemoryUsage() {
+		return 256 + 8*CHUNKS_PER_REGION + usedSectors.size()/8;
+	}
+
+	/**
+	 * Closes the underlying file. Called when this gets evicted from the region cache.
+	 * Waits for running loads and saves, later ones are forwarded to the new instance of this region.
+	 */
 	public void clean() {
 		synchronized(this) {
-			storeOnChange = true;
-			unsynchronized_store();
+			if(closed) return;
+			closed = true;
+			if(channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					Logger.error(e);
+				}
+				channel = null;
+			}
+		}
+		if(!registered) return;
+		synchronized(openFiles) {
+			openFiles.remove(file.getAbsolutePath());
+			openFiles.notifyAll();
 		}
 	}
-	
+
+	/**
+	 * Makes sure that all previous writes actually reached the disk.
+	 */
 	public void store() {
 		synchronized(this) {
-			unsynchronized_store();
+			if(channel == null) return;
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+				Logger.error("Unable to store chunk resources.");
+				Logger.error(e);
+			}
 		}
 	}
 
@@ -183,13 +432,4 @@ public class RegionFile extends RegionFileCompare {
 	public static int findCoordinate(int worldCoordinate, int voxelSize) {
 		return worldCoordinate & ~(REGION_SIZE*voxelSize*Chunk.chunkSize - 1);
 	}
-	
-	@Override
-	public void finalize() {
-		if(wasChanged) {
-			Logger.crash(wx+" "+wy+" "+wz+" "+voxelSize);
-			clean();
-			GameLauncher.instance.exit();
-		}
-	}
 }
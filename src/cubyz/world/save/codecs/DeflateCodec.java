@@ -0,0 +1,75 @@
+package cubyz.world.save.codecs;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import cubyz.utils.Logger;
+import cubyz.world.Chunk;
+import cubyz.world.save.ChunkCodec;
+
+/**
+ * The zlib based compression that was used by all region files before there were other codecs.
+ */
+public class DeflateCodec extends ChunkCodec {
+	private static final ThreadLocal<byte[]> threadLocalCompressionBuffer = ThreadLocal.withInitial(() -> new byte[4 << Chunk.chunkShift*3]);
+	// Creating a new (de)compressor each time is expensive, because zlib has to allocate and initialize its native state.
+	private static final ThreadLocal<Deflater> threadLocalDeflater = ThreadLocal.withInitial(Deflater::new);
+	private static final ThreadLocal<Inflater> threadLocalInflater = ThreadLocal.withInitial(Inflater::new);
+
+	public DeflateCodec() {
+		super((byte)0);
+	}
+
+	@Override
+	public byte[] compress(byte[] input, int offset, int length) {
+		byte[] output = threadLocalCompressionBuffer.get();
+
+		Deflater compressor = threadLocalDeflater.get();
+		compressor.setInput(input, offset, length);
+		compressor.finish();
+		int dataLength = compressor.deflate(output);
+
+		while(!compressor.finished()) { // The buffer was too small. Switching to a bigger buffer.
+			output = Arrays.copyOf(output, output.length*2);
+			threadLocalCompressionBuffer.set(output);
+			dataLength += compressor.deflate(output, dataLength, output.length - dataLength);
+		}
+		compressor.reset();
+
+		return Arrays.copyOf(output, dataLength);
+	}
+
+	@Override
+	public int decompress(byte[] in, int offset, int length) {
+		byte[] output = getOutputBuffer();
+
+		Inflater decompresser = threadLocalInflater.get();
+		decompresser.setInput(in, offset, length);
+		int outputLength = 0;
+		try {
+			while(true) {
+				outputLength += decompresser.inflate(output, outputLength, output.length - outputLength);
+				if(decompresser.finished()) break;
+				if(decompresser.needsInput() || decompresser.needsDictionary()) {
+					Logger.error("Compressed chunk data is incomplete.");
+					return -1;
+				}
+				if(outputLength == output.length) { // The buffer was too small. Switching to a bigger buffer.
+					if(outputLength >= MAX_DECOMPRESSED_SIZE) {
+						Logger.error("Compressed chunk data is corrupted.");
+						return -1;
+					}
+					output = ensureOutputCapacity(output.length*2);
+				}
+			}
+		} catch (DataFormatException e) {
+			Logger.error(e);
+			return -1;
+		} finally {
+			decompresser.reset();
+		}
+		return outputLength;
+	}
+}
@@ -0,0 +1,154 @@
+package cubyz.world.save.codecs;
+
+import java.util.Arrays;
+
+import cubyz.utils.Logger;
+import cubyz.utils.math.Bits;
+import cubyz.world.save.ChunkCodec;
+
+/**
+ * A simple LZ77 codec in the style of LZ4.<br>
+ * Compresses worse than Deflate, but is several times faster in both directions, which makes it a good fit for data that is sent right away.<br>
+ * Format: The uncompressed length as an int, followed by a list of sequences.<br>
+ * Each sequence starts with a token byte: The upper 4 bits store the amount of literals, the lower 4 bits the match length minus {@value #MIN_MATCH}.
+ * If a value is 15, more bytes follow that are added to it until a byte is not 255.<br>
+ * After the literals a 2 byte offset and the remaining match length follow. The last sequence only contains literals.
+ */
+public class FastLZCodec extends ChunkCodec {
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_SHIFT = 12;
+	private static final ThreadLocal<int[]> threadLocalHashTable = ThreadLocal.withInitial(() -> new int[1 << HASH_SHIFT]);
+	private static final ThreadLocal<byte[]> threadLocalCompressionBuffer = ThreadLocal.withInitial(() -> new byte[4096]);
+
+	public FastLZCodec() {
+		super((byte)1);
+	}
+
+	private static int hash(int value) {
+		return (value*-1640531535) >>> (32 - HASH_SHIFT); // Fibonacci hashing
+	}
+
+	private static int writeLength(byte[] out, int outIndex, int length) {
+		while(length >= 255) {
+			out[outIndex++] = (byte)255;
+			length -= 255;
+		}
+		out[outIndex++] = (byte)length;
+		return outIndex;
+	}
+
+	private static int writeSequence(byte[] out, int outIndex, byte[] in, int literalStart, int literalLength, int offset, int matchLength) {
+		int matchToken = Math.max(0, matchLength - MIN_MATCH);
+		int token = Math.min(literalLength, 15) << 4 | Math.min(matchToken, 15);
+		out[outIndex++] = (byte)token;
+		if(literalLength >= 15) {
+			outIndex = writeLength(out, outIndex, literalLength - 15);
+		}
+		System.arraycopy(in, literalStart, out, outIndex, literalLength);
+		outIndex += literalLength;
+		if(matchLength == 0) return outIndex; // Last sequence.
+		out[outIndex++] = (byte)(offset >>> 8);
+		out[outIndex++] = (byte)offset;
+		if(matchToken >= 15) {
+			outIndex = writeLength(out, outIndex, matchToken - 15);
+		}
+		return outIndex;
+	}
+
+	@Override
+	public byte[] compress(byte[] input, int offset, int length) {
+		int maxOutputLength = 4 + length + length/255 + 16;
+		byte[] output = threadLocalCompressionBuffer.get();
+		if(output.length < maxOutputLength) {
+			output = new byte[maxOutputLength];
+			threadLocalCompressionBuffer.set(output);
+		}
+		int[] hashTable = threadLocalHashTable.get();
+		Arrays.fill(hashTable, -1);
+
+		Bits.putInt(output, 0, length);
+		int outIndex = 4;
+		int end = offset + length;
+		int anchor = offset;
+		int i = offset;
+		while(i + MIN_MATCH <= end) {
+			int value = Bits.getInt(input, i);
+			int h = hash(value);
+			int reference = hashTable[h];
+			hashTable[h] = i;
+			if(reference >= 0 && i - reference <= MAX_OFFSET && Bits.getInt(input, reference) == value) {
+				int matchLength = MIN_MATCH;
+				while(i + matchLength < end && input[reference + matchLength] == input[i + matchLength]) {
+					matchLength++;
+				}
+				outIndex = writeSequence(output, outIndex, input, anchor, i - anchor, i - reference, matchLength);
+				i += matchLength;
+				anchor = i;
+			} else {
+				i++;
+			}
+		}
+		outIndex = writeSequence(output, outIndex, input, anchor, end - anchor, 0, 0);
+		return Arrays.copyOf(output, outIndex);
+	}
+
+	@Override
+	public int decompress(byte[] in, int offset, int length) {
+		if(length < 4) return -1;
+		int outputLength = Bits.getInt(in, offset);
+		if(outputLength < 0 || outputLength > MAX_DECOMPRESSED_SIZE) return corrupted();
+		byte[] output = ensureOutputCapacity(outputLength);
+		int end = offset + length;
+		int inIndex = offset + 4;
+		int outIndex = 0;
+		while(inIndex < end) {
+			int token = in[inIndex++] & 0xff;
+			int literalLength = token >>> 4;
+			if(literalLength == 15) {
+				int next;
+				do {
+					if(inIndex >= end) return corrupted();
+					next = in[inIndex++] & 0xff;
+					literalLength += next;
+				} while(next == 255);
+			}
+			if(inIndex + literalLength > end || outIndex + literalLength > outputLength) return corrupted();
+			System.arraycopy(in, inIndex, output, outIndex, literalLength);
+			inIndex += literalLength;
+			outIndex += literalLength;
+			if(inIndex == end) break; // Last sequence.
+
+			if(inIndex + 2 > end) return corrupted();
+			int matchOffset = (in[inIndex] & 0xff) << 8 | (in[inIndex + 1] & 0xff);
+			inIndex += 2;
+			int matchLength = token & 15;
+			if(matchLength == 15) {
+				int next;
+				do {
+					if(inIndex >= end) return corrupted();
+					next = in[inIndex++] & 0xff;
+					matchLength += next;
+				} while(next == 255);
+			}
+			matchLength += MIN_MATCH;
+			if(matchOffset == 0 || matchOffset > outIndex || outIndex + matchLength > outputLength) return corrupted();
+			int reference = outIndex - matchOffset;
+			if(matchOffset >= matchLength) {
+				System.arraycopy(output, reference, output, outIndex, matchLength);
+				outIndex += matchLength;
+			} else { // The match overlaps with itself, so it needs to be copied byte by byte.
+				for(int j = 0; j < matchLength; j++) {
+					output[outIndex++] = output[reference + j];
+				}
+			}
+		}
+		if(outIndex != outputLength) return corrupted();
+		return outputLength;
+	}
+
+	private static int corrupted() {
+		Logger.error("Compressed chunk data is corrupted.");
+		return -1;
+	}
+}
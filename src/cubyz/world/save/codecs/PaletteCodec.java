@@ -0,0 +1,192 @@
+package cubyz.world.save.codecs;
+
+import java.util.Arrays;
+
+import cubyz.utils.Logger;
+import cubyz.utils.math.Bits;
+import cubyz.world.Chunk;
+import cubyz.world.save.ChunkCodec;
+import cubyz.world.save.ChunkCodecs;
+
+/**
+ * A codec that understands that chunk data is made of block ints.<br>
+ * Chunks usually only contain a handful of different blocks, and the terrain is mostly layered along the y axis.
+ * So the ints are replaced by indices into a local palette and run-length encoded along y columns, before everything gets compressed with Deflate.<br>
+ * Format of the data before Deflate (all numbers are var-ints unless noted otherwise):
+ * byte length, order(1 byte: 1 = column order, 0 = linear), palette size, palette(ints), runs of (palette index, run length), remaining bytes that don't form a whole int.
+ */
+public class PaletteCodec extends ChunkCodec {
+	private static final int CHUNK_VOLUME = Chunk.chunkSize*Chunk.chunkSize*Chunk.chunkSize;
+	private static final ThreadLocal<byte[]> threadLocalEncodingBuffer = ThreadLocal.withInitial(() -> new byte[4096]);
+	private static final ThreadLocal<int[]> threadLocalPaletteKeys = ThreadLocal.withInitial(() -> new int[256]);
+	private static final ThreadLocal<int[]> threadLocalPaletteValues = ThreadLocal.withInitial(() -> new int[256]);
+
+	public PaletteCodec() {
+		super((byte)2);
+	}
+
+	/**
+	 * Converts the position in the encoding order into the int index inside the data.
+	 * In column order y is iterated first, because the terrain mostly changes along y.
+	 */
+	private static int getIntIndex(int i, boolean columnOrder) {
+		if(!columnOrder) return i;
+		int y = i & Chunk.chunkMask;
+		int z = i >>> Chunk.chunkShift & Chunk.chunkMask;
+		int x = i >>> Chunk.chunkShift2;
+		return Chunk.getIndex(x, y, z);
+	}
+
+	private static byte[] ensureCapacity(byte[] buffer, int capacity) {
+		if(capacity > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length*2));
+			threadLocalEncodingBuffer.set(buffer);
+		}
+		return buffer;
+	}
+
+	private static int writeVarInt(byte[] out, int index, int value) {
+		while((value & ~0x7f) != 0) {
+			out[index++] = (byte)((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out[index++] = (byte)value;
+		return index;
+	}
+
+	@Override
+	public byte[] compress(byte[] input, int offset, int length) {
+		int intCount = length/4;
+		boolean columnOrder = intCount == CHUNK_VOLUME;
+		byte[] buffer = threadLocalEncodingBuffer.get();
+		buffer = ensureCapacity(buffer, 11);
+		int index = writeVarInt(buffer, 0, length);
+		buffer[index++] = (byte)(columnOrder ? 1 : 0);
+
+		// Build the palette using a small open addressing hash map:
+		int[] keys = threadLocalPaletteKeys.get();
+		int[] values = threadLocalPaletteValues.get();
+		Arrays.fill(values, -1);
+		int[] palette = new int[16];
+		int paletteSize = 0;
+		int[] paletteIndices = new int[intCount];
+		for(int i = 0; i < intCount; i++) {
+			int block = Bits.getInt(input, offset + 4*i);
+			int slot = (block*-1640531535) & (keys.length - 1);
+			while(values[slot] != -1 && keys[slot] != block) {
+				slot = (slot + 1) & (keys.length - 1);
+			}
+			if(values[slot] == -1) {
+				if(paletteSize == palette.length) {
+					palette = Arrays.copyOf(palette, paletteSize*2);
+				}
+				palette[paletteSize] = block;
+				keys[slot] = block;
+				values[slot] = paletteSize++;
+				if(paletteSize*2 > keys.length) { // Keep the load factor low. Rehashing is rare, because chunks rarely have many different blocks.
+					keys = new int[keys.length*2];
+					values = new int[keys.length];
+					Arrays.fill(values, -1);
+					for(int j = 0; j < paletteSize; j++) {
+						int newSlot = (palette[j]*-1640531535) & (keys.length - 1);
+						while(values[newSlot] != -1) {
+							newSlot = (newSlot + 1) & (keys.length - 1);
+						}
+						keys[newSlot] = palette[j];
+						values[newSlot] = j;
+					}
+					threadLocalPaletteKeys.set(keys);
+					threadLocalPaletteValues.set(values);
+				}
+				slot = -1;
+			}
+			paletteIndices[i] = slot == -1 ? paletteSize - 1 : values[slot];
+		}
+
+		buffer = ensureCapacity(buffer, index + 5 + 4*paletteSize);
+		index = writeVarInt(buffer, index, paletteSize);
+		for(int i = 0; i < paletteSize; i++) {
+			Bits.putInt(buffer, index, palette[i]);
+			index += 4;
+		}
+
+		// Run-length encode the palette indices:
+		int i = 0;
+		while(i < intCount) {
+			int paletteIndex = paletteIndices[getIntIndex(i, columnOrder)];
+			int runLength = 1;
+			while(i + runLength < intCount && paletteIndices[getIntIndex(i + runLength, columnOrder)] == paletteIndex) {
+				runLength++;
+			}
+			buffer = ensureCapacity(buffer, index + 10);
+			index = writeVarInt(buffer, index, paletteIndex);
+			index = writeVarInt(buffer, index, runLength);
+			i += runLength;
+		}
+
+		int remainingBytes = length - 4*intCount;
+		buffer = ensureCapacity(buffer, index + remainingBytes);
+		System.arraycopy(input, offset + 4*intCount, buffer, index, remainingBytes);
+		index += remainingBytes;
+
+		return ChunkCodecs.DEFLATE.compress(buffer, 0, index);
+	}
+
+	@Override
+	public int decompress(byte[] in, int offset, int length) {
+		int encodedLength = ChunkCodecs.DEFLATE.decompress(in, offset, length);
+		if(encodedLength == -1) return -1;
+		// The output buffer is needed for the final result, so the encoded data needs to be moved somewhere else:
+		byte[] encoded = ensureCapacity(threadLocalEncodingBuffer.get(), encodedLength);
+		System.arraycopy(getOutputBuffer(), 0, encoded, 0, encodedLength);
+
+		int[] position = new int[] {0};
+		try {
+			int outputLength = readVarInt(encoded, position);
+			boolean columnOrder = encoded[position[0]++] == 1;
+			int intCount = outputLength/4;
+			if(outputLength < 0 || outputLength > MAX_DECOMPRESSED_SIZE || columnOrder && intCount != CHUNK_VOLUME) return corrupted();
+			int paletteSize = readVarInt(encoded, position);
+			if(paletteSize < 0 || paletteSize > intCount) return corrupted();
+			int[] palette = new int[paletteSize];
+			for(int i = 0; i < paletteSize; i++) {
+				palette[i] = Bits.getInt(encoded, position[0]);
+				position[0] += 4;
+			}
+
+			byte[] output = ensureOutputCapacity(outputLength);
+			int i = 0;
+			while(i < intCount) {
+				int paletteIndex = readVarInt(encoded, position);
+				int runLength = readVarInt(encoded, position);
+				if(paletteIndex < 0 || paletteIndex >= paletteSize || runLength <= 0 || i + runLength > intCount) return corrupted();
+				int block = palette[paletteIndex];
+				for(int end = i + runLength; i < end; i++) {
+					Bits.putInt(output, 4*getIntIndex(i, columnOrder), block);
+				}
+			}
+			int remainingBytes = outputLength - 4*intCount;
+			if(position[0] + remainingBytes != encodedLength) return corrupted();
+			System.arraycopy(encoded, position[0], output, 4*intCount, remainingBytes);
+			return outputLength;
+		} catch(ArrayIndexOutOfBoundsException e) {
+			return corrupted();
+		}
+	}
+
+	private static int readVarInt(byte[] in, int[] position) {
+		int value = 0;
+		int shift = 0;
+		while(true) {
+			byte nextByte = in[position[0]++];
+			value |= (nextByte & 0x7f) << shift;
+			if((nextByte & 0x80) == 0) return value;
+			shift += 7;
+		}
+	}
+
+	private static int corrupted() {
+		Logger.error("Compressed chunk data is corrupted.");
+		return -1;
+	}
+}
@@ -1,17 +1,19 @@
 package cubyz.world.terrain;
 
 import cubyz.multiplayer.server.Server;
-import cubyz.utils.datastructures.Cache;
+import cubyz.utils.MemoryGovernor;
+import cubyz.utils.datastructures.AsyncLoadingCache;
 import cubyz.world.Chunk;
 import cubyz.world.ChunkData;
 import cubyz.world.terrain.biomes.Biome;
 import cubyz.world.terrain.noise.Cached3DFractalNoise;
 
 public class CaveBiomeMap extends InterpolatableCaveBiomeMap {
-	private static final int CACHE_SIZE = 1 << 8; // Must be a power of 2!
-	private static final int CACHE_MASK = CACHE_SIZE - 1;
-	private static final int ASSOCIATIVITY = 8;
-	private static final Cache<CaveBiomeMapFragment> cache = new Cache<>(new CaveBiomeMapFragment[CACHE_SIZE][ASSOCIATIVITY]);
+	private static final long CACHE_SIZE = 64L << 20; // 64 MiB, 2048 fragments
+	private static final AsyncLoadingCache<CaveBiomeMapFragment> cache = new AsyncLoadingCache<>("caveBiomeMap", CACHE_SIZE, CaveBiomeMapFragment::getMemoryUsage);
+	static {
+		MemoryGovernor.register(cache);
+	}
 
 	private static TerrainGenerationProfile profile;
 
@@ -76,22 +78,36 @@ public class CaveBiomeMap extends InterpolatableCaveBiomeMap {
 		return getRoughBiome(wx, wy, wz, seed, false);
 	}
 
-	static CaveBiomeMapFragment getOrGenerateFragment(int wx, int wy, int wz) {
+	static ChunkData getFragmentKey(int wx, int wy, int wz) {
 		wx &= ~CaveBiomeMapFragment.CAVE_BIOME_MAP_MASK;
 		wy &= ~CaveBiomeMapFragment.CAVE_BIOME_MAP_MASK;
 		wz &= ~CaveBiomeMapFragment.CAVE_BIOME_MAP_MASK;
-		ChunkData compare = new ChunkData(wx, wy, wz, CaveBiomeMapFragment.CAVE_BIOME_SIZE);
-		int hash = compare.hashCode() & CACHE_MASK;
-		CaveBiomeMapFragment ret = cache.find(compare, hash);
-		if (ret != null) return ret;
-		synchronized(cache.cache[hash]) {
-			// Try again in case it was already generated in another thread:
-			ret = cache.find(new ChunkData(wx, wy, wz, 1), hash);
-			if (ret != null) return ret;
-			ret = new CaveBiomeMapFragment(wx, wy, wz, profile);
-			cache.addToCache(ret, hash & CACHE_MASK);
-			return ret;
-		}
+		return new ChunkData(wx, wy, wz, CaveBiomeMapFragment.CAVE_BIOME_SIZE);
+	}
+
+	/**
+	 * Gets the fragments of all keys. The missing ones are generated in parallel.
+	 * @param keys from {@link #getFragmentKey(int, int, int)}
+	 * @param fragments output
+	 */
+	static void getOrGenerateFragments(ChunkData[] keys, CaveBiomeMapFragment[] fragments) {
+		cache.getAll(keys, fragments, CaveBiomeMap::generateFragment);
+	}
+
+	/**
+	 * Starts generating the fragment in the background.
+	 * @param key from {@link #getFragmentKey(int, int, int)}
+	 * @param priority
+	 */
+	static void prefetchFragment(ChunkData key, float priority) {
+		cache.getAsync(key, () -> generateFragment(key), priority);
+	}
+
+	private static CaveBiomeMapFragment generateFragment(ChunkData key) {
+		long startTime = GenerationStage.CAVE_BIOME_FRAGMENT.start();
+		CaveBiomeMapFragment fragment = new CaveBiomeMapFragment(key.wx, key.wy, key.wz, profile);
+		GenerationStage.CAVE_BIOME_FRAGMENT.end(startTime);
+		return fragment;
 	}
 
 	public static void cleanup() {
@@ -26,6 +26,13 @@ public class CaveBiomeMapFragment extends ChunkData {
 		}
 	}
 
+	/**
+	 * @return a rough estimate of the heap memory used by this fragment in bytes.
+	 */
+	public int getMemoryUsage() {
+		return 8*biomeMap.length;
+	}
+
 	public static int getIndex(int relX, int relY, int relZ) {
 		assert(relX >= 0 && relX < CAVE_BIOME_MAP_SIZE) : "x coordinate out of bounds: " + relX;
 		assert(relY >= 0 && relY < CAVE_BIOME_MAP_SIZE) : "y coordinate out of bounds: " + relY;
@@ -1,6 +1,7 @@
 package cubyz.world.terrain;
 
-import cubyz.utils.datastructures.Cache;
+import cubyz.utils.MemoryGovernor;
+import cubyz.utils.datastructures.AsyncLoadingCache;
 import cubyz.world.Chunk;
 import cubyz.world.ChunkData;
 
@@ -10,10 +11,11 @@ import cubyz.world.ChunkData;
  */
 
 public class CaveMap {
-	private static final int CACHE_SIZE = 1 << 9; // Must be a power of 2!
-	private static final int CACHE_MASK = CACHE_SIZE - 1;
-	private static final int ASSOCIATIVITY = 8; // 512 MiB Cache size
-	private static final Cache<CaveMapFragment> cache = new Cache<>(new CaveMapFragment[CACHE_SIZE][ASSOCIATIVITY]);
+	private static final long CACHE_SIZE = 128L << 20; // 128 MiB, 4096 fragments
+	private static final AsyncLoadingCache<CaveMapFragment> cache = new AsyncLoadingCache<>("caveMap", CACHE_SIZE, CaveMapFragment::getMemoryUsage);
+	static {
+		MemoryGovernor.register(cache);
+	}
 
 	private static TerrainGenerationProfile profile;
 
@@ -23,14 +25,43 @@ public class CaveMap {
 
 	public CaveMap(Chunk chunk) {
 		reference = chunk;
-		fragments[0] = getOrGenerateFragment(chunk.wx - chunk.getWidth(), chunk.wy - chunk.getWidth(), chunk.wz - chunk.getWidth(), chunk.voxelSize);
-		fragments[1] = getOrGenerateFragment(chunk.wx - chunk.getWidth(), chunk.wy - chunk.getWidth(), chunk.wz + chunk.getWidth(), chunk.voxelSize);
-		fragments[2] = getOrGenerateFragment(chunk.wx - chunk.getWidth(), chunk.wy + chunk.getWidth(), chunk.wz - chunk.getWidth(), chunk.voxelSize);
-		fragments[3] = getOrGenerateFragment(chunk.wx - chunk.getWidth(), chunk.wy + chunk.getWidth(), chunk.wz + chunk.getWidth(), chunk.voxelSize);
-		fragments[4] = getOrGenerateFragment(chunk.wx + chunk.getWidth(), chunk.wy - chunk.getWidth(), chunk.wz - chunk.getWidth(), chunk.voxelSize);
-		fragments[5] = getOrGenerateFragment(chunk.wx + chunk.getWidth(), chunk.wy - chunk.getWidth(), chunk.wz + chunk.getWidth(), chunk.voxelSize);
-		fragments[6] = getOrGenerateFragment(chunk.wx + chunk.getWidth(), chunk.wy + chunk.getWidth(), chunk.wz - chunk.getWidth(), chunk.voxelSize);
-		fragments[7] = getOrGenerateFragment(chunk.wx + chunk.getWidth(), chunk.wy + chunk.getWidth(), chunk.wz + chunk.getWidth(), chunk.voxelSize);
+		// The missing fragments are generated in parallel:
+		cache.getAll(getFragmentKeys(chunk), fragments, CaveMap::generateFragment);
+	}
+
+	/**
+	 * @param chunk
+	 * @return the keys of the 8 fragments around the chunk, in the order of {@link #fragments}.
+	 */
+	private static ChunkData[] getFragmentKeys(ChunkData chunk) {
+		int width = chunk.voxelSize*Chunk.chunkSize;
+		ChunkData[] keys = new ChunkData[8];
+		for(int i = 0; i < 8; i++) {
+			int dx = (i & 4) != 0 ? width : -width;
+			int dy = (i & 2) != 0 ? width : -width;
+			int dz = (i & 1) != 0 ? width : -width;
+			keys[i] = getFragmentKey(chunk.wx + dx, chunk.wy + dy, chunk.wz + dz, chunk.voxelSize);
+		}
+		return keys;
+	}
+
+	/**
+	 * Starts generating the fragments that the chunk is going to need in the background.
+	 * @param chunk
+	 * @param chunkPriority
+	 */
+	public static void prefetch(ChunkData chunk, float chunkPriority) {
+		float priority = GenerationStage.CAVE_FRAGMENT.getPrefetchPriority(chunkPriority);
+		for(ChunkData key : getFragmentKeys(chunk)) {
+			cache.getAsync(key, () -> generateFragment(key), priority);
+		}
+	}
+
+	private static CaveMapFragment generateFragment(ChunkData key) {
+		long startTime = GenerationStage.CAVE_FRAGMENT.start();
+		CaveMapFragment fragment = new CaveMapFragment(key.wx, key.wy, key.wz, key.voxelSize, profile);
+		GenerationStage.CAVE_FRAGMENT.end(startTime);
+		return fragment;
 	}
 
 	public boolean isSolid(int relX, int relY, int relZ) {
@@ -79,6 +110,19 @@ public class CaveMap {
 		}
 	}
 
+	/**
+	 * Checks the height data of every column, which is cheap compared to looking at every block.
+	 * @return true if there is no terrain inside the reference chunk.
+	 */
+	public boolean isEmpty() {
+		for(int x = 0; x < reference.getWidth(); x += reference.voxelSize) {
+			for(int z = 0; z < reference.getWidth(); z += reference.voxelSize) {
+				if(getHeightData(x, z) != 0) return false;
+			}
+		}
+		return true;
+	}
+
 	public int findTerrainChangeAbove(int relX, int relZ, int y) {
 		int wx = relX + reference.wx;
 		int wz = relZ + reference.wz;
@@ -162,22 +206,11 @@ public class CaveMap {
 		return result*reference.voxelSize + fragments[0].wy - reference.wy;
 	}
 	
-	private static CaveMapFragment getOrGenerateFragment(int wx, int wy, int wz, int voxelSize) {
+	private static ChunkData getFragmentKey(int wx, int wy, int wz, int voxelSize) {
 		wx &= ~(CaveMapFragment.WIDTH_MASK*voxelSize | voxelSize-1);
 		wy &= ~(CaveMapFragment.HEIGHT_MASK*voxelSize | voxelSize-1);
 		wz &= ~(CaveMapFragment.WIDTH_MASK*voxelSize | voxelSize-1);
-		ChunkData compare = new ChunkData(wx, wy, wz, voxelSize);
-		int hash = compare.hashCode() & CACHE_MASK;
-		CaveMapFragment ret = cache.find(compare, hash);
-		if (ret != null) return ret;
-		synchronized(cache.cache[hash]) {
-			// Try again in case it was already generated in another thread:
-			ret = cache.find(new ChunkData(wx, wy, wz, voxelSize), hash);
-			if (ret != null) return ret;
-			ret = new CaveMapFragment(wx, wy, wz, voxelSize, profile);
-			cache.addToCache(ret, hash & CACHE_MASK);
-			return ret;
-		}
+		return new ChunkData(wx, wy, wz, voxelSize);
 	}
 
 	public static void cleanup() {
@@ -85,5 +85,10 @@ public class CaveMapFragment extends ChunkData {
 		return data[getIndex(relX, relZ)];
 	}
 
-	
+	/**
+	 * @return a rough estimate of the heap memory used by this fragment in bytes.
+	 */
+	public int getMemoryUsage() {
+		return 8*data.length;
+	}
 }
@@ -1,14 +1,16 @@
 package cubyz.world.terrain;
 
-import cubyz.utils.datastructures.Cache;
+import cubyz.utils.MemoryGovernor;
+import cubyz.utils.datastructures.AsyncLoadingCache;
 
 public final class ClimateMap {
 	private ClimateMap() {} // No instances allowed.
 
-	private static final int CACHE_SIZE = 1 << 8; // Must be a power of 2!
-	private static final int CACHE_MASK = CACHE_SIZE - 1;
-	private static final int ASSOCIATIVITY = 4;
-	private static final Cache<ClimateMapFragment> cache = new Cache<>(new ClimateMapFragment[CACHE_SIZE][ASSOCIATIVITY]);
+	private static final long CACHE_SIZE = 256L << 20; // 256 MiB, about 70 fragments
+	private static final AsyncLoadingCache<ClimateMapFragment> cache = new AsyncLoadingCache<>("climateMap", CACHE_SIZE, ClimateMapFragment::getMemoryUsage);
+	static {
+		MemoryGovernor.register(cache);
+	}
 
 	private static TerrainGenerationProfile profile;
 
@@ -47,26 +49,25 @@ public final class ClimateMap {
 		}
 		@Override
 		public boolean equals(Object other) {
-			if (other instanceof ClimateMapFragment) {
-				return ((ClimateMapFragment)other).wx == wx && ((ClimateMapFragment)other).wz == wz;
+			if (other instanceof ClimateMapFragmentComparator) {
+				return ((ClimateMapFragmentComparator)other).wx == wx && ((ClimateMapFragmentComparator)other).wz == wz;
 			}
 			return false;
 		}
+		@Override
+		public int hashCode() {
+			return ClimateMapFragment.hashCode(wx, wz);
+		}
 	}
 	
 	public static ClimateMapFragment getOrGenerateFragment(int wx, int wz) {
-		int hash = ClimateMapFragment.hashCode(wx, wz) & CACHE_MASK;
-		ClimateMapFragment ret = cache.find(new ClimateMapFragmentComparator(wx, wz), hash);
-		if (ret != null) return ret;
-		synchronized(cache.cache[hash]) {
-			// Try again in case it was already generated in another thread:
-			ret = cache.find(new ClimateMapFragmentComparator(wx, wz), hash);
-			if (ret != null) return ret;
-			ret = new ClimateMapFragment(wx, wz);
+		return cache.get(new ClimateMapFragmentComparator(wx, wz), () -> {
+			long startTime = GenerationStage.CLIMATE_MAP.start();
+			ClimateMapFragment ret = new ClimateMapFragment(wx, wz);
 			profile.climateGenerator.generateMapFragment(ret, profile.seed);
-			cache.addToCache(ret, ret.hashCode() & CACHE_MASK);
+			GenerationStage.CLIMATE_MAP.end(startTime);
 			return ret;
-		}
+		});
 	}
 
 	public static void cleanup() {
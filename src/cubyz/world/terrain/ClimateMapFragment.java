@@ -13,6 +13,13 @@ public class ClimateMapFragment {
 		map = new BiomePoint[MAP_SIZE/MapFragment.BIOME_SIZE][MAP_SIZE/MapFragment.BIOME_SIZE];
 	}
 	
+	/**
+	 * @return a rough estimate of the heap memory used by this fragment and its BiomePoints in bytes.
+	 */
+	public int getMemoryUsage() {
+		return map.length*map.length*(8 + 48);
+	}
+	
 	@Override
 	public int hashCode() {
 		return hashCode(wx, wz);
@@ -0,0 +1,116 @@
+package cubyz.world.terrain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cubyz.world.terrain.generators.Generator;
+
+/**
+ * One step of the terrain generation, together with the steps whose results it needs as input:<br>
+ * climate map → map fragment → cave fragment ← cave biome fragment, and every {@link Generator} needs all of them.<br>
+ * Inputs get a higher priority when they are prefetched, so they are usually done before the stages that need them.
+ * Also measures the time spent in each stage. That time includes waiting for inputs that weren't ready yet.
+ */
+public final class GenerationStage {
+	/** Priority bonus per stage that depends on this stage. Priorities are usually negative distances in blocks, so this is one chunk. */
+	private static final float PRIORITY_STEP = 32;
+
+	private static final ArrayList<GenerationStage> stages = new ArrayList<>();
+	private static final HashMap<String, GenerationStage> generatorStages = new HashMap<>();
+
+	public static final GenerationStage CLIMATE_MAP = new GenerationStage("climateMap");
+	public static final GenerationStage MAP_FRAGMENT = new GenerationStage("mapFragment", CLIMATE_MAP);
+	public static final GenerationStage CAVE_BIOME_FRAGMENT = new GenerationStage("caveBiomeFragment");
+	public static final GenerationStage CAVE_FRAGMENT = new GenerationStage("caveFragment", MAP_FRAGMENT, CAVE_BIOME_FRAGMENT);
+	/** Getting the cave and cave biome maps of a chunk. Mostly the time spent waiting for fragments that weren't prefetched. */
+	public static final GenerationStage CHUNK_INPUTS = new GenerationStage("chunkInputs", MAP_FRAGMENT, CAVE_FRAGMENT, CAVE_BIOME_FRAGMENT);
+	/** Loading already generated chunks from the region files. */
+	public static final GenerationStage CHUNK_FILE = new GenerationStage("chunkFile");
+
+	public final String name;
+	public final GenerationStage[] inputs;
+	/** The length of the longest chain of inputs. */
+	public final int depth;
+
+	private final AtomicLong runs = new AtomicLong();
+	private final AtomicLong totalTime = new AtomicLong();
+	private final AtomicLong maxTime = new AtomicLong();
+
+	private GenerationStage(String name, GenerationStage... inputs) {
+		this.name = name;
+		this.inputs = inputs;
+		int depth = 0;
+		for(GenerationStage input : inputs) {
+			depth = Math.max(depth, input.depth + 1);
+		}
+		this.depth = depth;
+		synchronized(stages) {
+			stages.add(this);
+		}
+	}
+
+	/**
+	 * @param generator
+	 * @return the stage of the generator. All generators depend on the map, cave and cave biome fragments.
+	 */
+	public static GenerationStage get(Generator generator) {
+		String name = generator.getRegistryID().toString();
+		synchronized(stages) {
+			GenerationStage stage = generatorStages.get(name);
+			if(stage == null) {
+				stage = new GenerationStage(name, MAP_FRAGMENT, CAVE_FRAGMENT, CAVE_BIOME_FRAGMENT);
+				generatorStages.put(name, stage);
+			}
+			return stage;
+		}
+	}
+
+	/**
+	 * @param chunkPriority priority of the chunk that needs the result of this stage.
+	 * @return the priority that the prefetching of this stage should get, so it's done before the chunk and the stages that need it.
+	 */
+	public float getPrefetchPriority(float chunkPriority) {
+		return chunkPriority + (CHUNK_INPUTS.depth - depth)*PRIORITY_STEP;
+	}
+
+	/**
+	 * @return the start time, to be passed to {@link #end(long)}.
+	 */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	public void end(long startTime) {
+		long time = System.nanoTime() - startTime;
+		runs.incrementAndGet();
+		totalTime.addAndGet(time);
+		maxTime.accumulateAndGet(time, Math::max);
+	}
+
+	public static void resetTimings() {
+		synchronized(stages) {
+			for(GenerationStage stage : stages) {
+				stage.runs.set(0);
+				stage.totalTime.set(0);
+				stage.maxTime.set(0);
+			}
+		}
+	}
+
+	/**
+	 * @return a human readable summary of the timings, one line per stage that was used.
+	 */
+	public static ArrayList<String> getStatus() {
+		ArrayList<String> lines = new ArrayList<>();
+		synchronized(stages) {
+			for(GenerationStage stage : stages) {
+				long runs = stage.runs.get();
+				if(runs == 0) continue;
+				long total = stage.totalTime.get();
+				lines.add(stage.name + ": " + runs + " runs, " + String.format("%.2f", total/1e6/runs) + " ms average, " + String.format("%.1f", stage.maxTime.get()/1e6) + " ms max, " + String.format("%.1f", total/1e9) + " s total");
+			}
+		}
+		return lines;
+	}
+}
@@ -16,14 +16,8 @@ public class InterpolatableCaveBiomeMap {
 	protected final MapFragment[] surfaceFragments = new MapFragment[4];
 
 	public InterpolatableCaveBiomeMap(ChunkData chunk, int width) {
-		fragments[0] = CaveBiomeMap.getOrGenerateFragment(chunk.wx - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wy - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wz - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2);
-		fragments[1] = CaveBiomeMap.getOrGenerateFragment(chunk.wx - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wy - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wz + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2);
-		fragments[2] = CaveBiomeMap.getOrGenerateFragment(chunk.wx - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wy + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wz - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2);
-		fragments[3] = CaveBiomeMap.getOrGenerateFragment(chunk.wx - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wy + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wz + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2);
-		fragments[4] = CaveBiomeMap.getOrGenerateFragment(chunk.wx + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wy - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wz - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2);
-		fragments[5] = CaveBiomeMap.getOrGenerateFragment(chunk.wx + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wy - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wz + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2);
-		fragments[6] = CaveBiomeMap.getOrGenerateFragment(chunk.wx + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wy + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wz - CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2);
-		fragments[7] = CaveBiomeMap.getOrGenerateFragment(chunk.wx + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wy + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2, chunk.wz + CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2);
+		// The missing fragments are generated in parallel:
+		CaveBiomeMap.getOrGenerateFragments(getFragmentKeys(chunk), fragments);
 
 		surfaceFragments[0] = Server.world.chunkManager.getOrGenerateMapFragment(chunk.wx - 32, chunk.wz - 32, chunk.voxelSize);
 		surfaceFragments[1] = Server.world.chunkManager.getOrGenerateMapFragment(chunk.wx - 32, chunk.wz + width + 32, chunk.voxelSize);
@@ -31,6 +25,40 @@ public class InterpolatableCaveBiomeMap {
 		surfaceFragments[3] = Server.world.chunkManager.getOrGenerateMapFragment(chunk.wx + width + 32, chunk.wz + width + 32, chunk.voxelSize);
 	}
 
+	/**
+	 * @param chunk
+	 * @return the keys of the 8 cave biome fragments around the chunk, in the order of {@link #fragments}.
+	 */
+	private static ChunkData[] getFragmentKeys(ChunkData chunk) {
+		int halfSize = CaveBiomeMapFragment.CAVE_BIOME_MAP_SIZE/2;
+		ChunkData[] keys = new ChunkData[8];
+		for(int i = 0; i < 8; i++) {
+			int dx = (i & 4) != 0 ? halfSize : -halfSize;
+			int dy = (i & 2) != 0 ? halfSize : -halfSize;
+			int dz = (i & 1) != 0 ? halfSize : -halfSize;
+			keys[i] = CaveBiomeMap.getFragmentKey(chunk.wx + dx, chunk.wy + dy, chunk.wz + dz);
+		}
+		return keys;
+	}
+
+	/**
+	 * Starts generating the cave biome and map fragments that a map of the given area is going to need in the background.
+	 * @param chunk
+	 * @param width
+	 * @param chunkPriority
+	 */
+	public static void prefetch(ChunkData chunk, int width, float chunkPriority) {
+		float priority = GenerationStage.CAVE_BIOME_FRAGMENT.getPrefetchPriority(chunkPriority);
+		for(ChunkData key : getFragmentKeys(chunk)) {
+			CaveBiomeMap.prefetchFragment(key, priority);
+		}
+		priority = GenerationStage.MAP_FRAGMENT.getPrefetchPriority(chunkPriority);
+		Server.world.chunkManager.prefetchMapFragment(chunk.wx - 32, chunk.wz - 32, chunk.voxelSize, priority);
+		Server.world.chunkManager.prefetchMapFragment(chunk.wx - 32, chunk.wz + width + 32, chunk.voxelSize, priority);
+		Server.world.chunkManager.prefetchMapFragment(chunk.wx + width + 32, chunk.wz - 32, chunk.voxelSize, priority);
+		Server.world.chunkManager.prefetchMapFragment(chunk.wx + width + 32, chunk.wz + width + 32, chunk.voxelSize, priority);
+	}
+
 	public float interpolateValue(int wx, int wy, int wz) {
 		// find the closest gridpoint:
 		int gridPointX = wx & ~CaveBiomeMapFragment.CAVE_BIOME_MASK;
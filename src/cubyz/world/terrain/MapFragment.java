@@ -37,6 +37,13 @@ public class MapFragment extends MapFragmentCompare {
 		return heightMap[wx][wz];
 	}
 	
+	/**
+	 * @return a rough estimate of the heap memory used by this fragment in bytes.
+	 */
+	public int getMemoryUsage() {
+		return heightMap.length*heightMap.length*(4 + 8);
+	}
+	
 	public int getMinHeight() {
 		return minHeight;
 	}
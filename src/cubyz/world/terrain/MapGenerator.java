@@ -2,6 +2,7 @@ package cubyz.world.terrain;
 
 import cubyz.api.CurrentWorldRegistries;
 import cubyz.api.RegistryElement;
+import cubyz.utils.ParallelJob;
 import pixelguys.json.JsonObject;
 
 /**
@@ -17,4 +18,14 @@ public interface MapGenerator extends RegistryElement {
 	void init(JsonObject parameters, CurrentWorldRegistries registries);
 
 	void generateMapFragment(MapFragment fragment, long seed);
+
+	/**
+	 * Same as above, but the generator may split the work into parallel loops of the job.
+	 * @param fragment
+	 * @param seed
+	 * @param job owned by the calling thread.
+	 */
+	default void generateMapFragment(MapFragment fragment, long seed, ParallelJob<?> job) {
+		generateMapFragment(fragment, seed);
+	}
 }
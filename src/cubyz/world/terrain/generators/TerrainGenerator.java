@@ -11,10 +11,13 @@ import cubyz.world.terrain.biomes.Biome;
 import pixelguys.json.JsonObject;
 
 /**
- * Generates the basic terrain(stone, dirt, sand, ...).
+ * Generates the basic terrain(stone, dirt, sand, ...).<br>
+ * Works on whole runs of solid or empty voxels in each column, which are found directly in the bitmask of the CaveMap.
  */
 
 public class TerrainGenerator implements Generator {
+	/** The number of stone voxels that share one biome lookup. */
+	private static final int STONE_SEGMENT = 8;
 	private int water;
 
 	@Override
@@ -34,36 +37,68 @@ public class TerrainGenerator implements Generator {
 
 	@Override
 	public void generate(long seed, int wx, int wy, int wz, Chunk chunk, CaveMap caveMap, CaveBiomeMap biomeMap) {
+		if(wy >= 0 && caveMap.isEmpty()) {
+			return; // The chunk is filled with air. There is no water above 0, so nothing needs to be done.
+		}
 		FastRandom rand = new FastRandom(seed);
 		long seedX = rand.nextInt() | 1;
 		long seedY = rand.nextInt() | 1;
 		long seedZ = rand.nextInt() | 1;
-		for(int x = 0; x < chunk.getWidth(); x += chunk.voxelSize) {
-			for(int z = 0; z < chunk.getWidth(); z += chunk.voxelSize) {
-				int heightData = caveMap.getHeightData(x, z);
+		int voxelSize = chunk.voxelSize;
+		for(int x = 0; x < chunk.getWidth(); x += voxelSize) {
+			for(int z = 0; z < chunk.getWidth(); z += voxelSize) {
+				// Bit i is set if the voxel at y = i*voxelSize is solid.
+				long heightData = caveMap.getHeightData(x, z) & 0xffff_ffffL;
 				boolean makeSurfaceStructure = true;
-				for(int y = chunk.getWidth() - chunk.voxelSize; y >= 0; y -= chunk.voxelSize) {
-					int mask = 1 << y/chunk.voxelSize;
-					if((heightData & mask) != 0) {
+				int surfaceHeight = Integer.MIN_VALUE; // Only needed for water, so it's calculated lazily.
+				int y = chunk.getWidth() - voxelSize;
+				while(y >= 0) {
+					int i = y/voxelSize;
+					long below = heightData & (1L << i + 1) - 1; // Only the bits up to the current voxel.
+					if((heightData & 1L << i) != 0) {
 						if(makeSurfaceStructure) {
-							int surfaceBlock = caveMap.findTerrainChangeAbove(x, z, y) - chunk.voxelSize;
+							int surfaceBlock = caveMap.findTerrainChangeAbove(x, z, y) - voxelSize;
 							rand.setSeed((seedX*(wx + x) << 32) ^ seedY*(wy + y) ^ seedZ*(wz + z));
 							// Add the biomes surface structure:
-							//Biome biome = map.getBiome(wx + x, wz + z);
 							Biome biome = biomeMap.getBiome(x, y, z);
-							y = Math.min(y + chunk.voxelSize, biome.struct.addSubTerranian(chunk, surfaceBlock, caveMap.findTerrainChangeBelow(x, z, surfaceBlock), x, z, rand));
+							y = Math.min(y + voxelSize, biome.struct.addSubTerranian(chunk, surfaceBlock, caveMap.findTerrainChangeBelow(x, z, surfaceBlock), x, z, rand)) - voxelSize;
 							makeSurfaceStructure = false;
-						} else {
-							Biome biome = biomeMap.getBiome(x, y, z);
-							chunk.updateBlockInGeneration(x, y, z, biome.stoneBlock);
+							continue;
 						}
+						// The run of solid voxels ends above the highest air voxel below:
+						long air = ~below & (1L << i + 1) - 1;
+						int runStart = 64 - Long.numberOfLeadingZeros(air);
+						int yBottom = y - (i - runStart)*voxelSize;
+						// The biome rarely changes inside a column, so it's only looked up once per segment:
+						for(int segmentTop = y; segmentTop >= yBottom; segmentTop -= STONE_SEGMENT*voxelSize) {
+							int segmentBottom = Math.max(yBottom, segmentTop - (STONE_SEGMENT - 1)*voxelSize);
+							Biome biome = biomeMap.getBiome(x, segmentTop, z);
+							chunk.updateBlockColumnInGeneration(x, z, segmentBottom, segmentTop, biome.stoneBlock);
+						}
+						y = yBottom - voxelSize;
 					} else {
-						if(y + wy < 0 && y + wy >= (int)biomeMap.getSurfaceHeight(x + wx, z + wz) - (chunk.voxelSize - 1)) {
-							chunk.updateBlockInGeneration(x, y, z, water);
+						int runStart = 64 - Long.numberOfLeadingZeros(below);
+						int yBottom = y - (i - runStart)*voxelSize;
+						int waterTop = Integer.MIN_VALUE, waterBottom = Integer.MAX_VALUE;
+						if(yBottom + wy < 0) {
+							if(surfaceHeight == Integer.MIN_VALUE) {
+								surfaceHeight = (int)biomeMap.getSurfaceHeight(x + wx, z + wz);
+							}
+							// Water fills the air between the surface and sea level. Rounded to voxels of this run:
+							int highest = -wy - 1;
+							int lowest = surfaceHeight - (voxelSize - 1) - wy;
+							waterTop = y <= highest ? y : y - Math.floorDiv(y - highest + voxelSize - 1, voxelSize)*voxelSize;
+							waterBottom = yBottom >= lowest ? yBottom : yBottom + Math.floorDiv(lowest - yBottom + voxelSize - 1, voxelSize)*voxelSize;
+						}
+						if(waterTop >= waterBottom) {
+							chunk.updateBlockColumnInGeneration(x, z, waterTop + voxelSize, y, 0);
+							chunk.updateBlockColumnInGeneration(x, z, waterBottom, waterTop, water);
+							chunk.updateBlockColumnInGeneration(x, z, yBottom, waterBottom - voxelSize, 0);
 						} else {
-							chunk.updateBlockInGeneration(x, y, z, 0);
+							chunk.updateBlockColumnInGeneration(x, z, yBottom, y, 0);
 						}
 						makeSurfaceStructure = true;
+						y = yBottom - voxelSize;
 					}
 				}
 			}
@@ -12,6 +12,12 @@ public final class FractalNoise {
 		FastRandom rand = new FastRandom(seed*(scale*maxResolution | 1));
 		long l1 = rand.nextLong() | 1;
 		long l2 = rand.nextLong() | 1;
+		return getSeed(x, z, offsetX, offsetZ, seed, l1, l2, maxResolution);
+	}
+	/**
+	 * Same as above, with the factors of the scale precomputed, so they don't need to be generated again for every point.
+	 */
+	private static long getSeed(int x, int z, int offsetX, int offsetZ, long seed, long l1, long l2, int maxResolution) {
 		return ((offsetX + x)*maxResolution*l1) ^ seed ^ ((offsetZ + z)*maxResolution*l2);
 	}
 	public static void generateFractalTerrain(int wx, int wz, int x0, int z0, int width, int height, int scale, long seed, float[][] map, int maxResolution) {
@@ -65,10 +71,13 @@ public final class FractalNoise {
 		int max =startingScale+1;
 		FastRandom rand = new FastRandom(seed);
 		for(int res = startingScale*2; res != 0; res >>>= 1) {
+			FastRandom factorRand = new FastRandom(seed*(res*maxResolution | 1));
+			long l1 = factorRand.nextLong() | 1;
+			long l2 = factorRand.nextLong() | 1;
 			// x coordinate on the grid:
 			for(int x = 0; x < max; x += res<<1) {
 				for(int y = res; y+res < max; y += res<<1) {
-					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, res, maxResolution));
+					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, l1, l2, maxResolution));
 					bigMap[x][y] = (bigMap[x][y-res]+bigMap[x][y+res])/2 + (rand.nextFloat()-0.5f)*res/scale;
 					if (bigMap[x][y] > upperLimit) bigMap[x][y] = upperLimit;
 					if (bigMap[x][y] < lowerLimit) bigMap[x][y] = lowerLimit;
@@ -77,7 +86,7 @@ public final class FractalNoise {
 			// y coordinate on the grid:
 			for(int x = res; x+res < max; x += res<<1) {
 				for(int y = 0; y < max; y += res<<1) {
-					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, res, maxResolution));
+					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, l1, l2, maxResolution));
 					bigMap[x][y] = (bigMap[x-res][y]+bigMap[x+res][y])/2 + (rand.nextFloat()-0.5f)*res/scale;
 					if (bigMap[x][y] > upperLimit) bigMap[x][y] = upperLimit;
 					if (bigMap[x][y] < lowerLimit) bigMap[x][y] = lowerLimit;
@@ -86,7 +95,7 @@ public final class FractalNoise {
 			// No coordinate on the grid:
 			for(int x = res; x+res < max; x += res<<1) {
 				for(int y = res; y+res < max; y += res<<1) {
-					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, res, maxResolution));
+					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, l1, l2, maxResolution));
 					bigMap[x][y] = (bigMap[x-res][y-res]+bigMap[x+res][y-res]+bigMap[x-res][y+res]+bigMap[x+res][y+res])/4 + (rand.nextFloat()-0.5f)*res/scale;
 					if (bigMap[x][y] > upperLimit) bigMap[x][y] = upperLimit;
 					if (bigMap[x][y] < lowerLimit) bigMap[x][y] = lowerLimit;
@@ -1,7 +1,6 @@
 package cubyz.world.terrain.noise;
 
 import cubyz.utils.FastRandom;
-import cubyz.utils.Logger;
 import cubyz.utils.math.CubyzMath;
 
 public class PerlinNoise {
@@ -13,23 +12,6 @@ public class PerlinNoise {
 		return 2*FastRandom.nextFloat(l1*x+l2*y+l3*i+resolution) - 1;
 	}
 	
-	private float getGradientX(int x, int y) {
-		try {
-			return xGridPoints[x][y];
-		} catch (ArrayIndexOutOfBoundsException e) { // quick and dirty fix
-			Logger.error(e);
-			return 0;
-		}
-	}
-	
-	private float getGradientY(int x, int y) {
-		try {
-			return yGridPoints[x][y];
-		} catch (ArrayIndexOutOfBoundsException e) {
-			Logger.error(e);
-			return 0;
-		}
-	}
 	/* Function to linearly interpolate between a0 and a1
 	 * Weight w should be in the range [0.0, 1.0]
 	 */
@@ -42,47 +24,66 @@ public class PerlinNoise {
 		return 3*x*x-2*x*x*x;
 	}
 
-	// Computes the dot product of the distance and gradient vectors.
-	private float dotGridGradient(int ix, int iy, float x, float y, int resolution) {
-
-		// Compute the distance vector
-		float dx = x/resolution - ix;
-		float dy = y/resolution - iy;
-
-		// Compute the dot-product
-		float gx = getGradientX(ix, iy);
-		float gy = getGradientY(ix, iy);
-		float gr = (float)Math.sqrt(gx*gx + gy*gy);
-		gx /= gr;
-		gy /= gr;
-		return dx*gx + dy*gy;
-	}
-
-	// Compute Perlin noise at coordinates x, y
-	private float perlin(int x, int y, int resolution, int resolution2) {
+	private static final float SQRT_2 = (float)Math.sqrt(2);
 
+	/**
+	 * Computes the perlin noise for a row of samples with the same x coordinate and adds it to the row of the map.
+	 * Everything that only depends on x is only computed once per row and the gradients only get loaded when the grid cell changes.
+	 * The operations are the same as when computing every sample on its own, so the result doesn't change.
+	 * @param row output
+	 * @param x relative to the grid
+	 * @param y relative to the grid
+	 * @param count number of samples
+	 * @param step distance between two samples
+	 * @param resolution grid size
+	 * @param resolution2 resolution - 1
+	 * @param fac amplitude
+	 * @param ridgid adds (1 - |noise|)*fac instead of noise*fac
+	 */
+	private void addRow(float[] row, int x, int y, int count, int step, int resolution, int resolution2, float fac, boolean ridgid) {
 		// Determine grid cell coordinates
 		int x0 = x/resolution;
 		int x1 = x0 + 1;
-		int y0 = y/resolution;
-		int y1 = y0 + 1;
-
 		// Determine interpolation weights
-		// Could also use higher order polynomial/s-curve here
 		float sx = s((x&resolution2)/(float)resolution);
-		float sy = s((y&resolution2)/(float)resolution);
-
-		// Interpolate between grid point gradients
-		float n0, n1, ix0, ix1;
-
-		n0 = dotGridGradient(x0, y0, x, y, resolution);
-		n1 = dotGridGradient(x1, y0, x, y, resolution);
-		ix0 = lerp(n0, n1, sx);
+		// Compute the distance vector
+		float xRel = (float)x/resolution;
+		float dx0 = xRel - x0;
+		float dx1 = xRel - x1;
+		float[] gx0 = xGridPoints[x0];
+		float[] gx1 = xGridPoints[x1];
+		float[] gy0 = yGridPoints[x0];
+		float[] gy1 = yGridPoints[x1];
+		int y0 = -1, y1 = 0;
+		float gx00 = 0, gy00 = 0, gx10 = 0, gy10 = 0, gx01 = 0, gy01 = 0, gx11 = 0, gy11 = 0;
+		for(int i = 0; i < count; i++, y += step) {
+			if(y/resolution != y0) {
+				y0 = y/resolution;
+				y1 = y0 + 1;
+				gx00 = gx0[y0];
+				gy00 = gy0[y0];
+				gx10 = gx1[y0];
+				gy10 = gy1[y0];
+				gx01 = gx0[y1];
+				gy01 = gy0[y1];
+				gx11 = gx1[y1];
+				gy11 = gy1[y1];
+			}
+			float sy = s((y&resolution2)/(float)resolution);
+			float yRel = (float)y/resolution;
+			float dy0 = yRel - y0;
+			float dy1 = yRel - y1;
 
-		n0 = dotGridGradient(x0, y1, x, y, resolution);
-		n1 = dotGridGradient(x1, y1, x, y, resolution);
-		ix1 = lerp(n0, n1, sx);
-		return lerp(ix0, ix1, sy)*(float)Math.sqrt(2);
+			// Interpolate between grid point gradients
+			float ix0 = lerp(dx0*gx00 + dy0*gy00, dx1*gx10 + dy0*gy10, sx);
+			float ix1 = lerp(dx0*gx01 + dy1*gy01, dx1*gx11 + dy1*gy11, sx);
+			float value = lerp(ix0, ix1, sy)*SQRT_2;
+			if(ridgid) {
+				row[i] += (1 - Math.abs(value))*fac;
+			} else {
+				row[i] += value*fac;
+			}
+		}
 	}
 	
 	// Calculate all grid points that will be needed to prevent double calculating them.
@@ -121,6 +122,16 @@ public class PerlinNoise {
 		
 		xGrid[numX][numY] = generateGradient(x0+1, y0+1, 0, l1, l2, l3, resolutionShift);
 		yGrid[numX][numY] = generateGradient(x0+1, y0+1, 1, l1, l2, l3, resolutionShift);
+		// Normalize the gradients once here, instead of once for every sample:
+		for(int i = 0; i < xGrid.length; i++) {
+			for(int j = 0; j < xGrid[i].length; j++) {
+				float gx = xGrid[i][j];
+				float gy = yGrid[i][j];
+				float gr = (float)Math.sqrt(gx*gx + gy*gy);
+				xGrid[i][j] = gx/gr;
+				yGrid[i][j] = gy/gr;
+			}
+		}
 		xGridPoints = xGrid;
 		yGridPoints = yGrid;
 	}
@@ -152,9 +163,7 @@ public class PerlinNoise {
 			int y0 = y & ~scaleMask;
 				
 			for (int x1 = x; x1 < width + x; x1 += voxelSize) {
-				for (int y1 = y; y1 < height + y; y1 += voxelSize) {
-					map[(x1 - x)/voxelSize][(y1 - y)/voxelSize] += (1 - Math.abs(perlin(x1-x0, y1-y0, scale, scaleMask)))*fac;
-				}
+				addRow(map[(x1 - x)/voxelSize], x1-x0, y-y0, height/voxelSize, voxelSize, scale, scaleMask, fac, true);
 			}
 			fac *= reductionFactor;
 		}
@@ -188,9 +197,7 @@ public class PerlinNoise {
 			int y0 = y & ~scaleMask;
 				
 			for (int x1 = x; x1 < width + x; x1 += voxelSize) {
-				for (int y1 = y; y1 < height + y; y1 += voxelSize) {
-					map[(x1 - x)/voxelSize][(y1 - y)/voxelSize] += perlin(x1-x0, y1-y0, scale, scaleMask)*fac;
-				}
+				addRow(map[(x1 - x)/voxelSize], x1-x0, y-y0, height/voxelSize, voxelSize, scale, scaleMask, fac, false);
 			}
 			fac *= reductionFactor;
 		}
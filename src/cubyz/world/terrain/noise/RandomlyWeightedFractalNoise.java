@@ -37,6 +37,12 @@ public final class RandomlyWeightedFractalNoise {
 		FastRandom rand = new FastRandom(seed*(scale*maxResolution | 1));
 		long l1 = rand.nextLong() | 1;
 		long l2 = rand.nextLong() | 1;
+		return getSeed(x, z, offsetX, offsetZ, seed, l1, l2, maxResolution);
+	}
+	/**
+	 * Same as above, with the factors of the scale precomputed, so they don't need to be generated again for every point.
+	 */
+	private static long getSeed(int x, int z, int offsetX, int offsetZ, long seed, long l1, long l2, int maxResolution) {
 		return ((offsetX + x)*maxResolution*l1) ^ seed ^ ((offsetZ + z)*maxResolution*l2);
 	}
 	public static void generateFractalTerrain(int wx, int wz, int x0, int z0, int width, int height, int scale, long seed, float[][] map, int maxResolution) {
@@ -70,10 +76,13 @@ public final class RandomlyWeightedFractalNoise {
 		int max =startingScale+1;
 		FastRandom rand = new FastRandom(seed);
 		for(int res = startingScale*2; res != 0; res >>>= 1) {
+			FastRandom factorRand = new FastRandom(seed*(res*maxResolution | 1));
+			long l1 = factorRand.nextLong() | 1;
+			long l2 = factorRand.nextLong() | 1;
 			// x coordinate on the grid:
 			for(int x = 0; x < max; x += res<<1) {
 				for(int y = res; y+res < max; y += res<<1) {
-					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, res, maxResolution));
+					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, l1, l2, maxResolution));
 					float w = rand.nextFloat();
 					bigMap[x][y] = bigMap[x][y-res]*(1-w) + bigMap[x][y+res]*w + (rand.nextFloat()-0.5f)*res/scale;
 					if (bigMap[x][y] > upperLimit) bigMap[x][y] = upperLimit;
@@ -83,7 +92,7 @@ public final class RandomlyWeightedFractalNoise {
 			// y coordinate on the grid:
 			for(int x = res; x+res < max; x += res<<1) {
 				for(int y = 0; y < max; y += res<<1) {
-					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, res, maxResolution));
+					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, l1, l2, maxResolution));
 					float w = rand.nextFloat();
 					bigMap[x][y] = bigMap[x-res][y]*(1-w) + bigMap[x+res][y]*w + (rand.nextFloat()-0.5f)*res/scale;
 					if (bigMap[x][y] > upperLimit) bigMap[x][y] = upperLimit;
@@ -93,7 +102,7 @@ public final class RandomlyWeightedFractalNoise {
 			// No coordinate on the grid:
 			for(int x = res; x+res < max; x += res<<1) {
 				for(int y = res; y+res < max; y += res<<1) {
-					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, res, maxResolution));
+					rand.setSeed(getSeed(x, y, offsetX, offsetZ, seed, l1, l2, maxResolution));
 					float w1 = rand.nextFloat();
 					float w2 = rand.nextFloat();
 					bigMap[x][y] = (bigMap[x-res][y]*(1-w1)+bigMap[x+res][y]*w1)*(1-w2)+(bigMap[x][y-res]*(1-w1)+bigMap[x][y+res]*w1)*w2 + (rand.nextFloat()-0.5f)*res/scale;
@@ -3,6 +3,7 @@ package cubyz.world.terrain.worldgenerators;
 import cubyz.api.CurrentWorldRegistries;
 import cubyz.api.Resource;
 import cubyz.utils.FastRandom;
+import cubyz.utils.ParallelJob;
 import cubyz.world.terrain.BiomePoint;
 import cubyz.world.terrain.ClimateMap;
 import cubyz.world.terrain.MapFragment;
@@ -28,8 +29,18 @@ public class MapGenV1 implements MapGenerator {
 	
 	private static final ThreadLocal<PerlinNoise> threadLocalNoise = ThreadLocal.withInitial(PerlinNoise::new);
 
+	/** The number of rows of the map that are interpolated in one block of the parallel loop. */
+	private static final int ROWS_PER_BLOCK = 16;
+	/** The number of random numbers used for every sample of the biome interpolation. */
+	private static final int RANDOM_CALLS_PER_SAMPLE = 3;
+
 	@Override
 	public void generateMapFragment(MapFragment map, long seed) {
+		generateMapFragment(map, seed, new ParallelJob<>());
+	}
+
+	@Override
+	public void generateMapFragment(MapFragment map, long seed, ParallelJob<?> job) {
 		int scaledSize = MAP_SIZE/map.voxelSize;
 		// Create the biomes that will be placed on the map:
 		BiomePoint[][] biomePositions = ClimateMap.getBiomeMap(map.wx - BIOME_SIZE, map.wz - BIOME_SIZE, MAP_SIZE + 3*BIOME_SIZE, MAP_SIZE + 3*BIOME_SIZE);
@@ -38,22 +49,49 @@ public class MapGenV1 implements MapGenerator {
 		int scaledBiomeSize = BIOME_SIZE/map.voxelSize;
 		float[][] xOffsetMap = new float[scaledSize][scaledSize];
 		float[][] zOffsetMap = new float[scaledSize][scaledSize];
-
-		FractalNoise.generateSparseFractalTerrain(map.wx, map.wz, MAP_SIZE, MAP_SIZE, BIOME_SIZE/2, seed^675396758496549L, xOffsetMap, map.voxelSize);
-		FractalNoise.generateSparseFractalTerrain(map.wx, map.wz, MAP_SIZE, MAP_SIZE, BIOME_SIZE/2, seed^543864367373859L, zOffsetMap, map.voxelSize);
-
 		// A ridgid noise map to generate interesting mountains.
 		float[][] mountainMap = new float[scaledSize][scaledSize];
-		RandomlyWeightedFractalNoise.generateSparseFractalTerrain(map.wx, map.wz, MAP_SIZE, MAP_SIZE, 64, seed ^ -6758947592930535L, mountainMap, map.voxelSize);
-		
 		// A smooth map for smaller hills.
-		float[][] hillMap = threadLocalNoise.get().generateSmoothNoise(map.wx, map.wz, MAP_SIZE, MAP_SIZE, 128, 32, seed ^ -157839765839495820L, map.voxelSize, 0.5f);
-		
+		float[][][] hillMap = new float[1][][];
 		// A fractal map to generate high-detail roughness.
 		float[][] roughMap = new float[scaledSize][scaledSize];
-		FractalNoise.generateSparseFractalTerrain(map.wx, map.wz, MAP_SIZE, MAP_SIZE, 64, seed ^ -954936678493L, roughMap, map.voxelSize);
-		
-		for(int x = 0; x < map.heightMap.length; x++) {
+
+		// The noise maps don't depend on each other:
+		job.parallelFor(5, i -> {
+			switch(i) {
+				case 0:
+					FractalNoise.generateSparseFractalTerrain(map.wx, map.wz, MAP_SIZE, MAP_SIZE, BIOME_SIZE/2, seed^675396758496549L, xOffsetMap, map.voxelSize);
+					break;
+				case 1:
+					FractalNoise.generateSparseFractalTerrain(map.wx, map.wz, MAP_SIZE, MAP_SIZE, BIOME_SIZE/2, seed^543864367373859L, zOffsetMap, map.voxelSize);
+					break;
+				case 2:
+					RandomlyWeightedFractalNoise.generateSparseFractalTerrain(map.wx, map.wz, MAP_SIZE, MAP_SIZE, 64, seed ^ -6758947592930535L, mountainMap, map.voxelSize);
+					break;
+				case 3:
+					hillMap[0] = threadLocalNoise.get().generateSmoothNoise(map.wx, map.wz, MAP_SIZE, MAP_SIZE, 128, 32, seed ^ -157839765839495820L, map.voxelSize, 0.5f);
+					break;
+				case 4:
+					FractalNoise.generateSparseFractalTerrain(map.wx, map.wz, MAP_SIZE, MAP_SIZE, 64, seed ^ -954936678493L, roughMap, map.voxelSize);
+					break;
+			}
+		});
+
+		// The biome interpolation is done in blocks of rows.
+		// Every block starts with its own copy of the random sequence, skipped forward to where the previous rows would have left it:
+		int blocks = (scaledSize + ROWS_PER_BLOCK - 1)/ROWS_PER_BLOCK;
+		job.parallelFor(blocks, block -> {
+			int xStart = block*ROWS_PER_BLOCK;
+			FastRandom blockRand = new FastRandom(rand);
+			blockRand.skip((long)xStart*scaledSize*RANDOM_CALLS_PER_SAMPLE);
+			interpolateRows(map, xStart, Math.min(xStart + ROWS_PER_BLOCK, scaledSize), blockRand, biomePositions, scaledBiomeSize, xOffsetMap, zOffsetMap, mountainMap, hillMap[0], roughMap);
+		});
+	}
+
+	private static void interpolateRows(MapFragment map, int xStart, int xEnd, FastRandom rand, BiomePoint[][] biomePositions, int scaledBiomeSize, float[][] xOffsetMap, float[][] zOffsetMap, float[][] mountainMap, float[][] hillMap, float[][] roughMap) {
+		int minHeight = Integer.MAX_VALUE;
+		int maxHeight = 0;
+		for(int x = xStart; x < xEnd; x++) {
 			for(int z = 0; z < map.heightMap.length; z++) {
 				// Do the biome interpolation:
 				float totalWeight = 0;
@@ -97,9 +135,9 @@ public class MapGenV1 implements MapGenerator {
 				height += (hillMap[x][z] - 0.5f)*2*hills;
 				height += (mountainMap[x][z] - 0.5f)*2*mountains;
 				map.heightMap[x][z] = height;
-				map.minHeight = Math.min(map.minHeight, (int)map.heightMap[x][z]);
-				map.minHeight = Math.max(map.minHeight, 0);
-				map.maxHeight = Math.max(map.maxHeight, (int)map.heightMap[x][z]);
+				minHeight = Math.min(minHeight, (int)map.heightMap[x][z]);
+				minHeight = Math.max(minHeight, 0);
+				maxHeight = Math.max(maxHeight, (int)map.heightMap[x][z]);
 				
 
 				// Select a biome. The shape of the biome is randomized by applying noise (fractal noise and white noise) to the coordinates.
@@ -121,6 +159,10 @@ public class MapGenV1 implements MapGenerator {
 				map.biomeMap[x][z] = shortestBiome.getFittingReplacement(height + rand.nextFloat()*4 - 2);
 			}
 		}
+		synchronized(map) {
+			map.minHeight = Math.min(map.minHeight, minHeight);
+			map.maxHeight = Math.max(map.maxHeight, maxHeight);
+		}
 	}
 	
 }